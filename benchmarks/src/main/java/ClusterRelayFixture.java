@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+// Broadcast delivery on one server or across a cluster link for ClusterRelayBench
+public final class ClusterRelayFixture {
+    private ClusterRelayFixture() {
+    }
+
+    // Two clustered servers on loopback that broadcast what they receive, a binary client sending to
+    // the first and another receiving from the first ("local") or the second ("remote", one hop over
+    // the cluster link). Applying the returned operator sends that many messages and waits until the
+    // receiver has all of them.
+    public static IntUnaryOperator clusterRelay(String route, String message) throws IOException {
+        return new ClusterRelay(route, message);
+    }
+
+    private static ChatServerEngine relayServer(String seed) throws IOException {
+        ChatServerEngine[] engine = new ChatServerEngine[1];
+        engine[0] = new ChatServerEngine(Fixtures.freePort(), 1, new ChatServerEngine.Listener() {
+            @Override
+            public void onConnect(ChatConnection connection) {
+            }
+
+            @Override
+            public void onMessage(ChatConnection connection, ChatFrame frame) {
+                if (frame.type() == ChatFrame.TEXT) engine[0].broadcast(frame.text(), connection);
+            }
+
+            @Override
+            public void onDisconnect(ChatConnection connection) {
+            }
+        });
+        engine[0].setCluster(new ClusterConfig("127.0.0.1", Fixtures.freePort(),
+                seed == null ? List.of() : List.of(seed), 10, 200));
+        engine[0].start();
+        return engine[0];
+    }
+
+    private static final class ClusterRelay implements IntUnaryOperator, AutoCloseable {
+        private final ChatServerEngine first;
+        private final ChatServerEngine second;
+        private final String message;
+        private FrameChannel sender;
+        private FrameChannel receiver;
+
+        ClusterRelay(String route, String message) throws IOException {
+            this.message = message;
+            this.first = relayServer(null);
+            try {
+                this.second = relayServer(first.cluster().nodeId());
+            } catch (IOException e) {
+                first.stop();
+                throw e;
+            }
+            try {
+                sender = FrameChannel.connect("localhost", first.getPort());
+                receiver = FrameChannel.connect("localhost", (route.equals("remote") ? second : first).getPort());
+                // The link, then the receiving node's subscriber, have to be gossiped before anything is routed
+                long deadline = System.nanoTime() + 10_000_000_000L;
+                while (first.cluster().peers().isEmpty()) {
+                    if (System.nanoTime() > deadline) throw new IOException("Cluster nodes did not link up");
+                    Thread.sleep(10);
+                }
+                Thread.sleep(200);
+            } catch (IOException | InterruptedException e) {
+                close();
+                throw new IOException("Cluster setup failed", e);
+            }
+        }
+
+        @Override
+        public int applyAsInt(int count) {
+            try {
+                for (int i = 0; i < count; i++) sender.sendText(message);
+                int received = 0;
+                ChatFrame frame;
+                while (received < count && (frame = receiver.read()) != null) {
+                    if (frame.type() == ChatFrame.TEXT) received++;
+                }
+                if (received < count) throw new IOException("Server closed the connection");
+                return received;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (sender != null) sender.close();
+            if (receiver != null) receiver.close();
+            second.stop();
+            first.stop();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+// Per-connection compression of chat payloads for CompressionBench
+public final class CompressionFixture {
+    private CompressionFixture() {
+    }
+
+    // A stream of distinct frames of one kind ("bot": templated status lines, "chat": ordinary words,
+    // "random": incompressible), compressed in turn by one connection's FrameCompression; returns the
+    // compressed frame size. With inflate, a peer also inflates each one, as the receiving side would.
+    public static IntSupplier compressor(String kind, int payloadBytes, String inflate) {
+        ByteBuffer[] frames = new ByteBuffer[256];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, i + 1, sample(kind, payloadBytes, i, random));
+        }
+        FrameCompression sender = new FrameCompression();
+        FrameCompression receiver = inflate.equals("inflate") ? new FrameCompression() : null;
+        ChatFrame frame = new ChatFrame();
+        int[] next = {0};
+        return () -> {
+            ByteBuffer compressed = sender.compress(frames[next[0]++ & (frames.length - 1)].rewind());
+            int size = compressed.remaining();
+            if (receiver != null) {
+                try {
+                    FrameCodec.decode(compressed, frame);
+                    if ((frame.flags() & ChatFrame.COMPRESSED) != 0) frame.inflate(receiver);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return size;
+        };
+    }
+
+    private static String sample(String kind, int bytes, int i, ThreadLocalRandom random) {
+        String[] words = {"the", "meeting", "is", "moved", "to", "tomorrow", "can", "you", "review", "my", "patch",
+                "before", "lunch", "thanks", "sure", "looks", "good", "deploy", "after", "standup", "any", "news"};
+        StringBuilder sb = new StringBuilder(bytes);
+        while (sb.length() < bytes) {
+            switch (kind) {
+                case "bot" -> sb.append("[ci-bot] build #").append(1000 + i).append(" of service-")
+                        .append(random.nextInt(20)).append(" finished: status=SUCCESS tests=")
+                        .append(random.nextInt(5000)).append(" duration=").append(random.nextInt(600)).append("s. ");
+                case "chat" -> sb.append(words[random.nextInt(words.length)]).append(' ');
+                default -> sb.append((char) ('!' + random.nextInt(94)));
+            }
+        }
+        sb.setLength(bytes);
+        return sb.toString();
+    }
+}
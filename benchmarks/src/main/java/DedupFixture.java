@@ -0,0 +1,34 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+// The duplicate check on client message ids for DedupBench
+public final class DedupFixture {
+    private DedupFixture() {
+    }
+
+    // One sender's duplicate check on its next message id, every eighth of them a resend of a recent
+    // one; returns 1 for a first sighting. "window" is DedupWindow's sliding bitmap, "ring" the last
+    // DedupWindow.SIZE ids in an insertion-ordered hash map that evicts the oldest.
+    public static IntSupplier dedupCheck(String structure) {
+        int[] next = {ThreadLocalRandom.current().nextInt()};
+        if (structure.equals("window")) {
+            DedupWindow window = new DedupWindow();
+            return () -> {
+                int id = next[0]++;
+                return window.firstTime((id & 7) == 0 ? id - 5 : id) ? 1 : 0;
+            };
+        }
+        Map<Integer, Boolean> recent = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > DedupWindow.SIZE;
+            }
+        };
+        return () -> {
+            int id = next[0]++;
+            return recent.putIfAbsent((id & 7) == 0 ? id - 5 : id, Boolean.TRUE) == null ? 1 : 0;
+        };
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// Broadcast fan-out to many recipients for FanOutBench
+public final class FanOutFixture {
+    private FanOutFixture() {
+    }
+
+    // A server with `recipients` subscribed text connections. Applying the returned consumer broadcasts
+    // a message and then drains every recipient's queue, standing in for the writers; no socket I/O.
+    public static Consumer<String> fanOut(int recipients) throws IOException {
+        return new FanOut(recipients);
+    }
+
+    private static final class FanOut implements Consumer<String>, AutoCloseable {
+        private final ChatServerEngine engine = new ChatServerEngine(0, 1, new ChatServerEngine.Listener() {
+            @Override
+            public void onConnect(ChatConnection connection) {
+            }
+
+            @Override
+            public void onMessage(ChatConnection connection, ChatFrame frame) {
+            }
+
+            @Override
+            public void onDisconnect(ChatConnection connection) {
+            }
+        });
+        private final ChatServerEngine.EventLoop loop = engine.new EventLoop(0);
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private final OutboundQueue[] queues;
+
+        FanOut(int recipients) throws IOException {
+            // Flush requests land on this loop and return at once: the channels are never registered
+            loop.start();
+            queues = new OutboundQueue[recipients];
+            try {
+                for (int i = 0; i < recipients; i++) {
+                    SocketChannel channel = SocketChannel.open();
+                    channels.add(channel);
+                    queues[i] = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, SlowConsumerPolicy.DROP_OLDEST);
+                    ChatConnection connection = new ChatConnection(i, channel, loop, queues[i]);
+                    onLoop(connection::negotiationTimedOut);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // Subscribers belong to their loop, so the broadcast is made from it, as a client's would be
+        @Override
+        public void accept(String message) {
+            onLoop(() -> engine.broadcast(message));
+            for (OutboundQueue queue : queues) {
+                while (queue.poll() != null) {
+                    // Dropped on the floor, as if written
+                }
+            }
+        }
+
+        private void onLoop(Runnable task) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            loop.submit(() -> {
+                task.run();
+                done.complete(null);
+            });
+            done.join();
+        }
+
+        @Override
+        public void close() {
+            loop.shutdown();
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore cleanup errors
+                }
+            }
+        }
+    }
+}
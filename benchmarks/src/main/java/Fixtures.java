@@ -0,0 +1,71 @@
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.function.UnaryOperator;
+
+// The application lives in the unnamed package, which JMH benchmarks (and any named package) cannot
+// reference. Each benchmark has a fixture class in the unnamed package too that hands it its hot paths
+// as JDK functional interfaces, looked up reflectively by bench.AppHooks once, during setup. These are
+// the helpers the fixtures share.
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    // A server on loopback that sends every TEXT message back to its sender
+    static ChatServerEngine echoServer(SSLContext tls) throws IOException {
+        ChatServerEngine engine = new ChatServerEngine(freePort(), 1, new ChatServerEngine.Listener() {
+            @Override
+            public void onConnect(ChatConnection connection) {
+            }
+
+            @Override
+            public void onMessage(ChatConnection connection, ChatFrame frame) {
+                if (frame.type() == ChatFrame.TEXT) connection.send(frame.text());
+            }
+
+            @Override
+            public void onDisconnect(ChatConnection connection) {
+            }
+        });
+        if (tls != null) engine.setTls(tls);
+        engine.start();
+        return engine;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // One binary client of an echo server; applying it sends a message and waits for it to come back
+    static final class BinaryEcho implements UnaryOperator<String>, AutoCloseable {
+        private final ChatServerEngine engine;
+        private final FrameChannel channel;
+
+        BinaryEcho(ChatServerEngine engine, SSLContext tls) throws IOException {
+            this.engine = engine;
+            this.channel = FrameChannel.connect("localhost", engine.getPort(), 0, null, false, tls);
+        }
+
+        @Override
+        public String apply(String message) {
+            try {
+                channel.sendText(message);
+                ChatFrame frame;
+                while ((frame = channel.read()) != null) {
+                    if (frame.type() == ChatFrame.TEXT) return frame.text();
+                }
+                throw new IOException("Server closed the connection");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            engine.stop();
+        }
+    }
+}
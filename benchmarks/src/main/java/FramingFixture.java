@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.IntSupplier;
+
+// Frame and line encoding and decoding for FramingBench
+public final class FramingFixture {
+    private FramingFixture() {
+    }
+
+    // Encode one TEXT frame into a reused buffer; returns the frame size
+    public static IntSupplier frameEncoder(String text) {
+        ByteBuffer out = ByteBuffer.allocateDirect(FrameCodec.HEADER_SIZE + FrameCodec.utf8Length(text));
+        return () -> {
+            out.clear();
+            FrameCodec.writeText(out, ChatFrame.TEXT, (byte) 0, 1, text);
+            return out.position();
+        };
+    }
+
+    // Decode one TEXT frame from a buffer holding it; returns the payload length
+    public static IntSupplier frameDecoder(String text) {
+        ByteBuffer encoded = FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, 1, text);
+        ChatFrame frame = new ChatFrame();
+        return () -> {
+            try {
+                FrameCodec.decode(encoded.rewind(), frame);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return frame.payloadLength();
+        };
+    }
+
+    // Decode the frame and materialize its text, as a listener relaying it would
+    public static IntSupplier frameTextDecoder(String text) {
+        ByteBuffer encoded = FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, 1, text);
+        ChatFrame frame = new ChatFrame();
+        return () -> {
+            try {
+                FrameCodec.decode(encoded.rewind(), frame);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return frame.text().length();
+        };
+    }
+
+    // Legacy line protocol encoding; returns the line size
+    public static IntSupplier lineEncoder(String text) {
+        return () -> ChatConnection.encodeLine(text).remaining();
+    }
+}
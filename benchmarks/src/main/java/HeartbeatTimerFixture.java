@@ -0,0 +1,46 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntSupplier;
+
+// Heartbeat bookkeeping in the timing wheel or with a timer per connection for HeartbeatTimerBench
+public final class HeartbeatTimerFixture {
+    private HeartbeatTimerFixture() {
+    }
+
+    // Heartbeat timeouts for `connections` idle connections, each re-armed 30 s (300 ticks of 100 ms)
+    // after it fires, with deadlines spread evenly: in a TimingWheel ("wheel", as the event loops keep
+    // them) or a PriorityQueue of timers ("heap", a timer per connection). Applying the returned
+    // supplier advances one tick and returns how many fired.
+    public static IntSupplier heartbeatTimers(String structure, int connections) {
+        long tick = 100_000_000L;
+        long interval = 300 * tick;
+        long[] now = {0};
+        if (structure.equals("wheel")) {
+            TimingWheel<Integer> wheel = new TimingWheel<>(tick, 512, 0);
+            List<TimingWheel.Timeout<Integer>> timeouts = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                TimingWheel.Timeout<Integer> timeout = new TimingWheel.Timeout<>(i);
+                timeouts.add(timeout);
+                wheel.schedule(timeout, 0, interval * i / connections + tick);
+            }
+            return () -> {
+                now[0] += tick;
+                return wheel.advance(now[0], i -> wheel.schedule(timeouts.get(i), now[0], interval));
+            };
+        }
+        PriorityQueue<long[]> heap = new PriorityQueue<>(connections, (a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 0; i < connections; i++) heap.add(new long[]{interval * i / connections + tick});
+        return () -> {
+            now[0] += tick;
+            int fired = 0;
+            while (heap.peek()[0] <= now[0]) {
+                long[] timer = heap.poll();
+                timer[0] = now[0] + interval;
+                heap.add(timer);
+                fired++;
+            }
+            return fired;
+        };
+    }
+}
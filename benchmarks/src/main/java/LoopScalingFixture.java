@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+// Broadcast and room throughput against the number of event loops for LoopScalingBench
+public final class LoopScalingFixture {
+    private LoopScalingFixture() {
+    }
+
+    // A server on `loops` event loops with `clients` binary subscribers on loopback, plus one more client
+    // whose messages the server either broadcasts to all of them or, for fanOut "room", publishes to a
+    // room every connection has joined. Applying the returned operator sends that many messages and
+    // returns once every subscriber has received all of them, read by one selector.
+    public static IntUnaryOperator loopScaling(int loops, int clients, String fanOut, String message)
+            throws IOException {
+        return new LoopScaling(loops, clients, fanOut.equals("room"), message);
+    }
+
+    private static final class LoopScaling implements IntUnaryOperator, AutoCloseable {
+        private static final String ROOM = "bench";
+
+        private final ChatServerEngine engine;
+        private final String message;
+        private final int frameSize;
+        private final Selector selector;
+        private final List<SocketChannel> subscribers = new ArrayList<>();
+        private final ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+        private FrameChannel sender;
+
+        LoopScaling(int loops, int clients, boolean room, String message) throws IOException {
+            this.message = message;
+            this.frameSize = FrameCodec.HEADER_SIZE + FrameCodec.utf8Length(message);
+            ChatServerEngine[] server = new ChatServerEngine[1];
+            engine = server[0] = new ChatServerEngine(Fixtures.freePort(), loops, new ChatServerEngine.Listener() {
+                @Override
+                public void onConnect(ChatConnection connection) {
+                    if (room) server[0].rooms().join(ROOM, connection);
+                }
+
+                @Override
+                public void onMessage(ChatConnection connection, ChatFrame frame) {
+                    if (frame.type() != ChatFrame.TEXT) return;
+                    if (room) {
+                        server[0].publishToRoom(ROOM, frame.text(), connection);
+                    } else {
+                        server[0].broadcast(frame.text(), connection);
+                    }
+                }
+
+                @Override
+                public void onDisconnect(ChatConnection connection) {
+                }
+            });
+            // No PINGs in the middle of the byte count
+            engine.setHeartbeatPolicy(new HeartbeatPolicy(0, 0, 100));
+            engine.start();
+            selector = Selector.open();
+            try {
+                // The sender lands on the first loop and the subscribers round-robin over all of them
+                sender = FrameChannel.connect("localhost", engine.getPort());
+                ByteBuffer subscribe = ByteBuffer.allocate(FrameCodec.PREAMBLE.length + FrameCodec.HEADER_SIZE);
+                subscribe.put(FrameCodec.preamble()).put(FrameCodec.encodeControl(ChatFrame.REPLAY, 0)).flip();
+                for (int i = 0; i < clients; i++) {
+                    SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", engine.getPort()));
+                    subscribers.add(channel);
+                    while (subscribe.hasRemaining()) channel.write(subscribe);
+                    subscribe.rewind();
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ);
+                }
+                // Each is subscribed once it has the echoed preamble and the REPLAY frame
+                drain((long) clients * (FrameCodec.PREAMBLE.length + FrameCodec.HEADER_SIZE));
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int applyAsInt(int count) {
+            try {
+                for (int i = 0; i < count; i++) sender.sendText(message);
+                drain((long) subscribers.size() * count * frameSize);
+                return count * subscribers.size();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void drain(long bytes) throws IOException {
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (bytes > 0) {
+                if (selector.select(1000) == 0 && System.nanoTime() > deadline) {
+                    throw new IOException("Subscribers are missing " + bytes + " bytes");
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    int n = ((SocketChannel) key.channel()).read(sink.clear());
+                    if (n < 0) throw new IOException("Server closed a subscriber");
+                    bytes -= n;
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (sender != null) sender.close();
+            for (SocketChannel channel : subscribers) channel.close();
+            selector.close();
+            engine.stop();
+        }
+    }
+}
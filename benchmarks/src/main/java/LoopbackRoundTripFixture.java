@@ -0,0 +1,56 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+
+// Text and binary clients of a loopback echo server for LoopbackRoundTripBench
+public final class LoopbackRoundTripFixture {
+    private LoopbackRoundTripFixture() {
+    }
+
+    // Echo server on loopback plus one client speaking `protocol` ("text" or "binary"). Applying the
+    // returned operator sends a message and waits for it to come back.
+    public static UnaryOperator<String> loopbackEcho(String protocol) throws IOException {
+        ChatServerEngine engine = Fixtures.echoServer(null);
+        try {
+            return protocol.equals("binary") ? new Fixtures.BinaryEcho(engine, null) : new TextEcho(engine);
+        } catch (IOException e) {
+            engine.stop();
+            throw e;
+        }
+    }
+
+    private static final class TextEcho implements UnaryOperator<String>, AutoCloseable {
+        private final ChatServerEngine engine;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        TextEcho(ChatServerEngine engine) throws IOException {
+            this.engine = engine;
+            this.socket = new Socket("localhost", engine.getPort());
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String apply(String message) {
+            out.println(message);
+            try {
+                return in.readLine();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            engine.stop();
+        }
+    }
+}
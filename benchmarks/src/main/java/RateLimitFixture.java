@@ -0,0 +1,30 @@
+import java.util.function.IntSupplier;
+
+// The per-message admission check for RateLimitBench
+public final class RateLimitFixture {
+    private RateLimitFixture() {
+    }
+
+    // One admission check against a bucket shared by every calling thread; returns 1 if a token was taken.
+    // "atomic" is TokenBucket, "locked" the usual refill-on-demand bucket behind a monitor.
+    public static IntSupplier rateLimiter(String kind, int perSecond) {
+        int burst = perSecond * 2;
+        if (kind.equals("atomic")) {
+            TokenBucket bucket = new TokenBucket(perSecond, burst);
+            return () -> bucket.tryTake(System.nanoTime()) == 0 ? 1 : 0;
+        }
+        Object lock = new Object();
+        double[] tokens = {burst};
+        long[] refilledAt = {System.nanoTime()};
+        return () -> {
+            long now = System.nanoTime();
+            synchronized (lock) {
+                tokens[0] = Math.min(burst, tokens[0] + (now - refilledAt[0]) * (perSecond / 1e9));
+                refilledAt[0] = now;
+                if (tokens[0] < 1) return 0;
+                tokens[0]--;
+                return 1;
+            }
+        };
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+// Room joins, leaves and room messages for RoomsBench
+public final class RoomsFixture {
+    private RoomsFixture() {
+    }
+
+    // roomCount rooms over `connections` in-memory connections that each sit in roomsPerConnection rooms.
+    // "publish" sends to a random room; "churn" moves a random connection from one of its rooms to another.
+    public static Function<String, Runnable> rooms(int roomCount, int connections, int roomsPerConnection)
+            throws IOException {
+        return new Rooms(roomCount, connections, roomsPerConnection);
+    }
+
+    private static final class Rooms implements Function<String, Runnable>, AutoCloseable {
+        private final ChatServerEngine engine = new ChatServerEngine(0, 1, null);
+        private final ChatServerEngine.EventLoop loop = engine.new EventLoop(0);
+        private final SocketChannel channel = SocketChannel.open();
+        private final RoomIndex index = engine.rooms();
+        private final String[] names;
+        private final ChatConnection[] members;
+        private final int[][] memberOf;
+        private final String message = "#room CLIENT-1: a message of ordinary chat length, about sixty bytes";
+
+        Rooms(int roomCount, int connections, int roomsPerConnection) throws IOException {
+            loop.start();
+            names = new String[roomCount];
+            for (int r = 0; r < roomCount; r++) names[r] = "room-" + r;
+            members = new ChatConnection[connections];
+            memberOf = new int[connections][roomsPerConnection];
+            // Connections share one unconnected channel: nothing is written, queues just hold the last few messages
+            for (int c = 0; c < connections; c++) {
+                members[c] = new ChatConnection(c, channel, loop, new OutboundQueue(16, SlowConsumerPolicy.DROP_OLDEST));
+                for (int k = 0; k < roomsPerConnection; k++) {
+                    int room = (int) (((long) c * roomsPerConnection + k) % roomCount);
+                    memberOf[c][k] = room;
+                    index.join(names[room], members[c]);
+                }
+            }
+        }
+
+        @Override
+        public Runnable apply(String operation) {
+            return switch (operation) {
+                case "publish" -> () -> index.publish(names[ThreadLocalRandom.current().nextInt(names.length)], message, null);
+                case "churn" -> this::churn;
+                default -> throw new IllegalArgumentException(operation);
+            };
+        }
+
+        private void churn() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int c = random.nextInt(members.length);
+            int[] rooms = memberOf[c];
+            synchronized (rooms) {
+                int k = random.nextInt(rooms.length);
+                int next = random.nextInt(names.length);
+                if (index.join(names[next], members[c])) {
+                    index.leave(names[rooms[k]], members[c]);
+                    rooms[k] = next;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            loop.shutdown();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+// Queries against a prebuilt message index for SearchBench
+public final class SearchFixture {
+    private SearchFixture() {
+    }
+
+    // A message log of `messages` synthetic chat lines and their search index, built in a temporary
+    // directory and fully merged. Each call runs the query and returns the number of hits (at most 20).
+    // Words are "w<rank>" drawn log-uniformly from 50,000, roughly Zipf: w1 is in about a third of the
+    // messages, w20000 in a few hundred per million.
+    public static IntSupplier searchIndex(int messages, String query) throws Exception {
+        return new Search(messages, query);
+    }
+
+    private static final class Search implements IntSupplier, AutoCloseable {
+        private final Path directory;
+        private final MessageLog log;
+        private final SearchIndex index;
+        private final String query;
+
+        Search(int messages, String query) throws Exception {
+            this.query = query;
+            this.directory = Files.createTempDirectory("chat-bench-search");
+            this.log = MessageLog.open(directory.resolve("log"));
+            this.index = SearchIndex.open(directory.resolve("index"), log);
+            Random random = new Random(42);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < messages; i++) {
+                sb.setLength(0);
+                sb.append("user").append(random.nextInt(1000)).append(':');
+                for (int words = 6 + random.nextInt(8); words > 0; words--) {
+                    sb.append(" w").append((int) Math.exp(random.nextDouble() * Math.log(50_000)));
+                }
+                String text = sb.toString();
+                index.add(log.append(ChatFrame.TEXT, text), text);
+            }
+            index.awaitIdle();
+        }
+
+        @Override
+        public int getAsInt() {
+            return index.search(query, 20).size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            index.close();
+            log.close();
+            try (var files = Files.walk(directory)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+            }
+        }
+    }
+}
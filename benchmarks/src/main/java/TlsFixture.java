@@ -0,0 +1,91 @@
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.function.UnaryOperator;
+
+// Connection setup and round trips with and without TLS for TlsBench, on a throwaway certificate
+public final class TlsFixture {
+    private TlsFixture() {
+    }
+
+    // The binary round trip of loopbackEcho over "plain" TCP or "tls", to price encryption per message
+    public static UnaryOperator<String> secureEcho(String transport) throws IOException {
+        boolean tls = transport.equals("tls");
+        ChatServerEngine engine = Fixtures.echoServer(tls ? tlsServerContext() : null);
+        try {
+            return new Fixtures.BinaryEcho(engine, tls ? tlsClientContext() : null);
+        } catch (IOException e) {
+            engine.stop();
+            throw e;
+        }
+    }
+
+    // Each run connects a binary client (through the preamble and subscribe) and closes it: "plain" TCP,
+    // "full" with a full TLS handshake every time, or "resumed" with the client resuming its session
+    public static Runnable handshake(String mode) throws IOException {
+        return new Handshake(mode);
+    }
+
+    // A throwaway self-signed localhost certificate, made by the JDK's keytool
+    private static File keystore;
+
+    private static synchronized File keystore() throws IOException {
+        if (keystore != null) return keystore;
+        File file = new File(Files.createTempDirectory("chat-bench-tls").toFile(), "chat.p12");
+        file.getParentFile().deleteOnExit();
+        file.deleteOnExit();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1",
+                "-validity", "2", "-keystore", file.getPath(), "-storepass", "changeit")
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            if (process.waitFor() != 0) throw new IOException("keytool failed with exit code " + process.exitValue());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running keytool", e);
+        }
+        keystore = file;
+        return keystore;
+    }
+
+    private static SSLContext tlsServerContext() throws IOException {
+        return TlsConfig.serverContext(keystore(), "changeit".toCharArray());
+    }
+
+    // A fresh client context, so its session cache starts empty
+    private static SSLContext tlsClientContext() throws IOException {
+        return TlsConfig.newClientContext(keystore(), "changeit".toCharArray());
+    }
+
+    private static final class Handshake implements Runnable, AutoCloseable {
+        private final ChatServerEngine engine;
+        private final SSLContext client;
+        private final boolean resume;
+
+        Handshake(String mode) throws IOException {
+            boolean tls = !mode.equals("plain");
+            resume = mode.equals("resumed");
+            engine = Fixtures.echoServer(tls ? tlsServerContext() : null);
+            client = tls ? tlsClientContext() : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                FrameChannel channel = FrameChannel.connect("localhost", engine.getPort(), 0, null, false, client);
+                // Drops the session from the client's cache, so the next connect cannot resume it
+                if (client != null && !resume) channel.tlsSession().invalidate();
+                channel.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            engine.stop();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Transcript line formatting for TranscriptFormatBench
+public final class TranscriptFormatFixture {
+    private TranscriptFormatFixture() {
+    }
+
+    // The rows appendToChat queues for the transcript, formatted exactly as ChatTranscript does
+    public static Consumer<String> transcriptFormatter() {
+        ChatTranscript transcript = new ChatTranscript(null);
+        List<String> rows = new ArrayList<>();
+        return message -> {
+            rows.clear();
+            transcript.format(message, "CLIENT", rows);
+        };
+    }
+}
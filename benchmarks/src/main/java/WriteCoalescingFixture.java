@@ -0,0 +1,91 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntUnaryOperator;
+
+// Bursts of lines through an autoflush PrintWriter or CoalescingWriter for WriteCoalescingBench
+public final class WriteCoalescingFixture {
+    private WriteCoalescingFixture() {
+    }
+
+    // A loopback connection written through `writer`: "autoflush" (PrintWriter, one write per line) or
+    // "coalescing" (CoalescingWriter, lines appended then flushed together). Applying the returned
+    // operator writes a burst of that many copies of `line`, reads them all back off the other end,
+    // and returns the socket write calls it took.
+    public static IntUnaryOperator lineBurst(String writer, String line) throws IOException {
+        return new LineBurst(writer, line);
+    }
+
+    private static final class LineBurst implements IntUnaryOperator, AutoCloseable {
+        private final ServerSocketChannel server;
+        private final SocketChannel sender;
+        private final SocketChannel receiver;
+        private final String line;
+        private final int lineBytes;
+        private final ByteBuffer drain = ByteBuffer.allocateDirect(64 * 1024);
+        private PrintWriter autoflush;
+        private CoalescingWriter coalescing;
+        // PrintWriter's socket writes, counted as its stream is written to
+        private long streamWrites;
+
+        LineBurst(String writer, String line) throws IOException {
+            this.line = line;
+            this.lineBytes = ChatConnection.encodeLine(line).remaining();
+            server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+            sender = SocketChannel.open(server.getLocalAddress());
+            receiver = server.accept();
+            if (writer.equals("autoflush")) {
+                sender.socket().setTcpNoDelay(true);
+                OutputStream counted = new FilterOutputStream(sender.socket().getOutputStream()) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        streamWrites++;
+                        out.write(b, off, len);
+                    }
+                };
+                autoflush = new PrintWriter(counted, true, StandardCharsets.UTF_8);
+            } else {
+                coalescing = new CoalescingWriter(sender, new FlushPolicy(0, Integer.MAX_VALUE, true));
+            }
+        }
+
+        @Override
+        public int applyAsInt(int burst) {
+            long before = writes();
+            for (int i = 0; i < burst; i++) {
+                if (autoflush != null) {
+                    autoflush.println(line);
+                } else {
+                    coalescing.append(line);
+                }
+            }
+            if (coalescing != null) coalescing.flush();
+            try {
+                long expected = (long) burst * lineBytes;
+                while (expected > 0) {
+                    expected -= receiver.read(drain.clear());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return (int) (writes() - before);
+        }
+
+        private long writes() {
+            return autoflush != null ? streamWrites : coalescing.socketWrites();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sender.close();
+            receiver.close();
+            server.close();
+        }
+    }
+}
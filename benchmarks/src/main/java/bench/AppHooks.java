@@ -0,0 +1,36 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// Reflective access to the unnamed-package fixture classes (see Fixtures); used only in @Setup methods
+final class AppHooks {
+    private AppHooks() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T get(String fixture, String factory, Object... args) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = args[i] instanceof Integer ? int.class : args[i].getClass();
+        }
+        Method method = Class.forName(fixture).getMethod(factory, types);
+        try {
+            return (T) method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    static void close(Object hook) throws Exception {
+        if (hook instanceof AutoCloseable closeable) closeable.close();
+    }
+
+    // ASCII chat text of the given size
+    static String message(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes);
+        String words = "the quick brown fox jumps over the lazy dog ";
+        while (sb.length() < bytes) sb.append(words, 0, Math.min(words.length(), bytes - sb.length()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.function.IntUnaryOperator;
+
+// Broadcast delivery between two binary clients on loopback, both on one server ("local") or on two
+// clustered servers ("remote", relayed over the cluster link). A burst of 1 is a round trip, so its
+// ops/s is the inverse of delivery latency; a burst of 64 shows throughput once the link batches
+// writes, with the messages counter giving messages per second.
+@State(Scope.Thread)
+public class ClusterRelayBench extends BenchDefaults {
+    @Param({"local", "remote"})
+    public String route;
+
+    @Param({"1", "64"})
+    public int burst;
+
+    private IntUnaryOperator relay;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Delivered {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        relay = AppHooks.get("ClusterRelayFixture", "clusterRelay", route, AppHooks.message(64));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AppHooks.close(relay);
+    }
+
+    @Benchmark
+    public int deliver(Delivered delivered) {
+        int received = relay.applyAsInt(burst);
+        delivered.messages += received;
+        return received;
+    }
+}
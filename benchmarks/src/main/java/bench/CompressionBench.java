@@ -0,0 +1,60 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.function.IntSupplier;
+
+// Per-connection compression: CPU per message (compress alone, and compress plus the receiver's
+// inflate) against bytes saved. The wireBytes/rawBytes aux counters give the ratio per kind and size.
+@State(Scope.Thread)
+public class CompressionBench extends BenchDefaults {
+    // FrameCodec.HEADER_SIZE; only payloads are compressed
+    private static final int HEADER_SIZE = 10;
+
+    @Param({"bot", "chat", "random"})
+    public String kind;
+
+    @Param({"128", "512", "4096"})
+    public int payloadBytes;
+
+    private IntSupplier compress;
+    private IntSupplier roundTrip;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long rawBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        compress = AppHooks.get("CompressionFixture", "compressor", kind, payloadBytes, "none");
+        roundTrip = AppHooks.get("CompressionFixture", "compressor", kind, payloadBytes, "inflate");
+    }
+
+    @Benchmark
+    public int compress(Bytes bytes) {
+        int size = compress.getAsInt();
+        bytes.rawBytes += payloadBytes;
+        bytes.wireBytes += size - HEADER_SIZE;
+        return size;
+    }
+
+    @Benchmark
+    public int compressAndInflate() {
+        return roundTrip.getAsInt();
+    }
+}
@@ -0,0 +1,30 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.function.IntSupplier;
+
+// The duplicate check every identified client message goes through: DedupWindow's fixed bitmap
+// against a bounded ring of recent ids kept in a hash map. Both are O(1); the bitmap should also
+// allocate nothing per op, where the map boxes and links an entry for every id.
+@State(Scope.Benchmark)
+public class DedupBench extends BenchDefaults {
+    @Param({"window", "ring"})
+    public String structure;
+
+    private IntSupplier check;
+
+    @Setup
+    public void setup() throws Exception {
+        check = AppHooks.get("DedupFixture", "dedupCheck", structure);
+    }
+
+    @Benchmark
+    public int check() {
+        return check.getAsInt();
+    }
+}
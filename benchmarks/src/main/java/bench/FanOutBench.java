@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.function.Consumer;
+
+// ChatServerEngine.broadcast to N subscribed recipients, made on their event loop (one task handoff per
+// op), with the recipients' queues drained after each message; measures the server-side fan-out cost
+// without socket writes
+@State(Scope.Thread)
+public class FanOutBench extends BenchDefaults {
+    @Param({"1", "100", "10000"})
+    public int recipients;
+
+    private Consumer<String> broadcast;
+    private String message;
+
+    @Setup
+    public void setup() throws Exception {
+        broadcast = AppHooks.get("FanOutFixture", "fanOut", recipients);
+        message = AppHooks.message(64);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AppHooks.close(broadcast);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        broadcast.accept(message);
+    }
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.function.IntSupplier;
+
+// Binary frame encode/decode and legacy line encoding, per message size
+@State(Scope.Thread)
+public class FramingBench extends BenchDefaults {
+    @Param({"16", "256", "4096"})
+    public int payloadBytes;
+
+    private IntSupplier encodeFrame;
+    private IntSupplier decodeFrame;
+    private IntSupplier decodeFrameText;
+    private IntSupplier encodeLine;
+
+    @Setup
+    public void setup() throws Exception {
+        String text = AppHooks.message(payloadBytes);
+        encodeFrame = AppHooks.get("FramingFixture", "frameEncoder", text);
+        decodeFrame = AppHooks.get("FramingFixture", "frameDecoder", text);
+        decodeFrameText = AppHooks.get("FramingFixture", "frameTextDecoder", text);
+        encodeLine = AppHooks.get("FramingFixture", "lineEncoder", text);
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        return encodeFrame.getAsInt();
+    }
+
+    @Benchmark
+    public int decodeFrame() {
+        return decodeFrame.getAsInt();
+    }
+
+    @Benchmark
+    public int decodeFrameText() {
+        return decodeFrameText.getAsInt();
+    }
+
+    @Benchmark
+    public int encodeLine() {
+        return encodeLine.getAsInt();
+    }
+}
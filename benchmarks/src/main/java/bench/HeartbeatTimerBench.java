@@ -0,0 +1,33 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.function.IntSupplier;
+
+// One 100 ms tick of heartbeat bookkeeping for N idle connections, each re-armed every 30 s: the event
+// loops' hashed timing wheel against a timer per connection in a priority queue. Both fire the same
+// N / 300 timeouts per tick; the wheel pays O(1) for each, the heap O(log N).
+@State(Scope.Thread)
+public class HeartbeatTimerBench extends BenchDefaults {
+    @Param({"wheel", "heap"})
+    public String structure;
+
+    @Param({"1000", "100000"})
+    public int connections;
+
+    private IntSupplier tick;
+
+    @Setup
+    public void setup() throws Exception {
+        tick = AppHooks.get("HeartbeatTimerFixture", "heartbeatTimers", structure, connections);
+    }
+
+    @Benchmark
+    public int tick() {
+        return tick.getAsInt();
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.function.IntUnaryOperator;
+
+// Fan-out throughput as the server's event loops go from 1 to 16: one client's burst of messages
+// delivered to 64 subscribers spread over the loops. "broadcast" hands each message to every loop's
+// inbox under the broadcast lock; "room" publishes to a room they all joined, from the sender's loop
+// through the inbox each other loop keeps for it. Each op is one burst delivered to everyone; the
+// deliveries aux counter gives messages written per second. Loops beyond the machine's cores only
+// add handoffs.
+@State(Scope.Thread)
+public class LoopScalingBench extends BenchDefaults {
+    @Param({"1", "2", "4", "8", "16"})
+    public int loops;
+
+    @Param({"64"})
+    public int clients;
+
+    @Param({"32"})
+    public int burst;
+
+    @Param({"broadcast", "room"})
+    public String fanOut;
+
+    private IntUnaryOperator broadcast;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Deliveries {
+        public long deliveries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            deliveries = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        broadcast = AppHooks.get("LoopScalingFixture", "loopScaling", loops, clients, fanOut, AppHooks.message(64));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AppHooks.close(broadcast);
+    }
+
+    @Benchmark
+    public int broadcastBurst(Deliveries counter) {
+        int delivered = broadcast.applyAsInt(burst);
+        counter.deliveries += delivered;
+        return delivered;
+    }
+}
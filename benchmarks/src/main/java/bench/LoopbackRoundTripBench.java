@@ -0,0 +1,37 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.function.UnaryOperator;
+
+// One message to the server and back over loopback: println/readLine for text clients,
+// sendText/read for binary ones
+@State(Scope.Thread)
+public class LoopbackRoundTripBench extends BenchDefaults {
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private UnaryOperator<String> echo;
+    private String message;
+
+    @Setup
+    public void setup() throws Exception {
+        echo = AppHooks.get("LoopbackRoundTripFixture", "loopbackEcho", protocol);
+        message = AppHooks.message(64);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AppHooks.close(echo);
+    }
+
+    @Benchmark
+    public String roundTrip() {
+        return echo.apply(message);
+    }
+}
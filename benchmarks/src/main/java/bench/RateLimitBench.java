@@ -0,0 +1,37 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.function.IntSupplier;
+
+// The per-message admission check against one bucket, as every connection of a user shares theirs:
+// TokenBucket's single CAS against a bucket behind a lock. The rate is far above what the callers
+// reach, so nearly every check takes a token; allocation per op should be zero for both.
+@State(Scope.Benchmark)
+public class RateLimitBench extends BenchDefaults {
+    @Param({"atomic", "locked"})
+    public String bucket;
+
+    private IntSupplier admit;
+
+    @Setup
+    public void setup() throws Exception {
+        admit = AppHooks.get("RateLimitFixture", "rateLimiter", bucket, 100_000_000);
+    }
+
+    @Benchmark
+    public int admit() {
+        return admit.getAsInt();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int admitShared() {
+        return admit.getAsInt();
+    }
+}
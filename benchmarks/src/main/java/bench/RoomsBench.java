@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.function.Function;
+
+// Room publish throughput over a large RoomIndex, alone and while another thread keeps moving
+// connections between rooms. Recipients' queues are bounded and never drained, so each delivery
+// is an enqueue that evicts the oldest message.
+@State(Scope.Group)
+public class RoomsBench extends BenchDefaults {
+    @Param({"100000"})
+    public int rooms;
+
+    @Param({"5000"})
+    public int connections;
+
+    @Param({"40"})
+    public int roomsPerConnection;
+
+    private Object fixture;
+    private Runnable publish;
+    private Runnable churn;
+
+    @Setup
+    public void setup() throws Exception {
+        Function<String, Runnable> ops = AppHooks.get("RoomsFixture", "rooms", rooms, connections, roomsPerConnection);
+        fixture = ops;
+        publish = ops.apply("publish");
+        churn = ops.apply("churn");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AppHooks.close(fixture);
+    }
+
+    @Benchmark
+    @Group("quiet")
+    public void publish() {
+        publish.run();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void publishUnderChurn() {
+        publish.run();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void joinLeave() {
+        churn.run();
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.function.IntSupplier;
+
+// A top-20 search over a million indexed messages: one rare term, one in about a third of the
+// messages, and AND queries whose leapfrog intersection skips through the common term's postings.
+// Setup builds and merges the index, so it takes a while.
+@State(Scope.Benchmark)
+public class SearchBench extends BenchDefaults {
+    @Param({"1000000"})
+    public int messages;
+
+    @Param({"w20000", "w1", "w1 w2000", "w1 w2 w3"})
+    public String query;
+
+    private IntSupplier search;
+
+    @Setup
+    public void setup() throws Exception {
+        search = AppHooks.get("SearchFixture", "searchIndex", messages, query);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AppHooks.close(search);
+    }
+
+    @Benchmark
+    public int search() {
+        return search.getAsInt();
+    }
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+// What TLS costs over loopback: connecting a client (plain, full handshake, resumed session), in
+// microseconds per connection, and a steady-state binary round trip with and without encryption.
+// The certificate is a self-signed one generated with keytool at setup.
+public class TlsBench extends BenchDefaults {
+    @State(Scope.Thread)
+    public static class Connect {
+        @Param({"plain", "full", "resumed"})
+        public String mode;
+
+        private Runnable connect;
+
+        @Setup
+        public void setup() throws Exception {
+            connect = AppHooks.get("TlsFixture", "handshake", mode);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            AppHooks.close(connect);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Echo {
+        @Param({"plain", "tls"})
+        public String transport;
+
+        @Param({"64", "4096"})
+        public int messageBytes;
+
+        private UnaryOperator<String> echo;
+        private String message;
+
+        @Setup
+        public void setup() throws Exception {
+            echo = AppHooks.get("TlsFixture", "secureEcho", transport);
+            message = AppHooks.message(messageBytes);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            AppHooks.close(echo);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void handshake(Connect state) {
+        state.connect.run();
+    }
+
+    @Benchmark
+    public String roundTrip(Echo state) {
+        return state.echo.apply(state.message);
+    }
+}
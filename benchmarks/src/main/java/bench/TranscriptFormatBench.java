@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
+
+// appendToChat's formatting: ChatTranscript's rows against the original per-call String.format
+@State(Scope.Thread)
+public class TranscriptFormatBench extends BenchDefaults {
+    @Param({"single", "multiline"})
+    public String shape;
+
+    private Consumer<String> format;
+    private String message;
+
+    @Setup
+    public void setup() throws Exception {
+        format = AppHooks.get("TranscriptFormatFixture", "transcriptFormatter");
+        message = shape.equals("single") ? AppHooks.message(64) : AppHooks.message(30) + "\n" + AppHooks.message(30);
+    }
+
+    @Benchmark
+    public void transcript() {
+        format.accept(message);
+    }
+
+    @Benchmark
+    public String legacy() {
+        String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+        return String.format("[%s] %s: %s%n", timestamp, "CLIENT", message);
+    }
+}
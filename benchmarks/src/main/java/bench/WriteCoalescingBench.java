@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.function.IntUnaryOperator;
+
+// A burst of 64-byte lines over loopback, written by an autoflush PrintWriter (the console endpoints
+// before CoalescingWriter) or appended to a CoalescingWriter and flushed once. Each op is one burst;
+// the socketWrites/messages aux counters give the syscalls per message.
+@State(Scope.Thread)
+public class WriteCoalescingBench extends BenchDefaults {
+    @Param({"autoflush", "coalescing"})
+    public String writer;
+
+    @Param({"1", "16", "128"})
+    public int burst;
+
+    private IntUnaryOperator send;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Writes {
+        public long messages;
+        public long socketWrites;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+            socketWrites = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        send = AppHooks.get("WriteCoalescingFixture", "lineBurst", writer, AppHooks.message(64));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AppHooks.close(send);
+    }
+
+    @Benchmark
+    public int writeBurst(Writes writes) {
+        int calls = send.applyAsInt(burst);
+        writes.messages += burst;
+        writes.socketWrites += calls;
+        return calls;
+    }
+}
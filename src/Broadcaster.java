@@ -0,0 +1,66 @@
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Fan-out over a set of connections. A message is encoded once per wire protocol and every
+// member gets a read-only view of the same bytes in its own bounded OutboundQueue, so a slow
+// member only ever fills its own queue. Published from an event loop, members on other loops get
+// it through their loop's inbox from this one; from any other thread it is queued directly.
+public class Broadcaster {
+    private final Set<ChatConnection> members = ConcurrentHashMap.newKeySet();
+
+    public void join(ChatConnection connection) {
+        members.add(connection);
+    }
+
+    public void leave(ChatConnection connection) {
+        members.remove(connection);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public Collection<ChatConnection> members() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    // Deliver to every member except the sender (may be null). Binary members see seq in the frame header.
+    public void publish(int seq, String message, ChatConnection except) {
+        publish(message, null, seq, except);
+    }
+
+    // Same, with the binary frame already encoded (read-only) by the caller
+    public void publish(String message, ByteBuffer frame, ChatConnection except) {
+        publish(message, frame, 0, except);
+    }
+
+    private void publish(String message, ByteBuffer frame, int seq, ChatConnection except) {
+        ByteBuffer line = null;
+        ChatServerEngine.EventLoop here = null;
+        boolean located = false;
+        for (ChatConnection member : members) {
+            if (member == except) continue;
+            ByteBuffer bytes;
+            if (member.isBinary()) {
+                if (frame == null) frame = FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, seq, message).asReadOnlyBuffer();
+                bytes = frame.duplicate();
+            } else {
+                if (line == null) line = ChatConnection.encodeLine(message).asReadOnlyBuffer();
+                bytes = line.duplicate();
+            }
+            if (!located) {
+                here = member.loop().current();
+                located = true;
+            }
+            if (here != null) {
+                here.route(member, bytes);
+            } else {
+                member.enqueue(bytes);
+            }
+        }
+        if (here != null) here.endRouting();
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shared pool of direct ByteBuffers in power-of-two size classes. Connections lease buffers for
+// socket reads and writes and hand them back on disconnect, so steady-state traffic and connection
+// churn reuse the same native memory instead of allocating. With -Dchat.pool.leakDetection=true
+// every lease remembers where it was taken so unreleased buffers can be reported.
+public final class BufferPool {
+    public static final int MIN_CLASS_SIZE = 1024;
+    public static final int MAX_CLASS_SIZE = 2 * 1024 * 1024;
+    private static final long DEFAULT_MAX_POOLED_BYTES = Long.getLong("chat.pool.maxBytes", 64L * 1024 * 1024);
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_POOLED_BYTES,
+            Boolean.getBoolean("chat.pool.leakDetection"));
+
+    static {
+        if (SHARED.leakDetection) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> SHARED.reportLeaks(System.err, 0),
+                    "BufferPoolLeakReport"));
+        }
+    }
+
+    private final SizeClass[] classes;
+    private final boolean leakDetection;
+    private final Map<ByteBuffer, Lease> leases = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final LongAdder unpooledAllocations = new LongAdder();
+
+    public BufferPool(long maxPooledBytes, boolean leakDetection) {
+        int count = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE / MIN_CLASS_SIZE) + 1;
+        this.classes = new SizeClass[count];
+        // Each class may keep an equal share of the byte budget on its free list
+        long perClass = maxPooledBytes / count;
+        for (int i = 0; i < count; i++) {
+            int size = MIN_CLASS_SIZE << i;
+            classes[i] = new SizeClass(size, (int) Math.max(1, perClass / size));
+        }
+        this.leakDetection = leakDetection;
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    // A cleared direct buffer with at least minCapacity bytes. Must be given back with release().
+    public ByteBuffer acquire(int minCapacity) {
+        SizeClass sizeClass = classFor(minCapacity);
+        ByteBuffer buffer;
+        if (sizeClass == null) {
+            unpooledAllocations.increment();
+            buffer = ByteBuffer.allocateDirect(minCapacity);
+        } else {
+            buffer = sizeClass.take();
+        }
+        if (leakDetection) {
+            leases.put(buffer, new Lease(Thread.currentThread().getName(), System.nanoTime(), new Throwable()));
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (leakDetection && leases.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not leased from this pool");
+        }
+        SizeClass sizeClass = classFor(buffer.capacity());
+        if (sizeClass != null && sizeClass.size == buffer.capacity()) {
+            sizeClass.give(buffer);
+        }
+    }
+
+    public Stats stats() {
+        List<ClassStats> perClass = new ArrayList<>(classes.length);
+        for (SizeClass c : classes) {
+            perClass.add(new ClassStats(c.size, c.leased.get(), c.free.get(), c.acquires.sum(), c.allocations.sum()));
+        }
+        return new Stats(perClass, unpooledAllocations.sum(), leakDetection ? leases.size() : -1);
+    }
+
+    // Print leases older than minAgeMillis with the stack that took them; needs leak detection
+    public int reportLeaks(PrintStream out, long minAgeMillis) {
+        if (!leakDetection) return 0;
+        long cutoff = System.nanoTime() - minAgeMillis * 1_000_000L;
+        List<Lease> old = new ArrayList<>();
+        synchronized (leases) {
+            for (Lease lease : leases.values()) {
+                if (lease.acquiredAt - cutoff <= 0) old.add(lease);
+            }
+        }
+        for (Lease lease : old) {
+            out.println("Leaked buffer, leased on " + lease.thread + ":");
+            for (StackTraceElement frame : lease.site.getStackTrace()) {
+                out.println("\tat " + frame);
+            }
+        }
+        return old.size();
+    }
+
+    private SizeClass classFor(int capacity) {
+        if (capacity > MAX_CLASS_SIZE) return null;
+        int rounded = Math.max(MIN_CLASS_SIZE, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        return classes[Integer.numberOfTrailingZeros(rounded / MIN_CLASS_SIZE)];
+    }
+
+    private static final class SizeClass {
+        final int size;
+        final int maxFree;
+        final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger free = new AtomicInteger();
+        final AtomicInteger leased = new AtomicInteger();
+        final LongAdder acquires = new LongAdder();
+        final LongAdder allocations = new LongAdder();
+
+        SizeClass(int size, int maxFree) {
+            this.size = size;
+            this.maxFree = maxFree;
+        }
+
+        ByteBuffer take() {
+            acquires.increment();
+            leased.incrementAndGet();
+            ByteBuffer buffer = buffers.poll();
+            if (buffer != null) {
+                free.decrementAndGet();
+                return buffer.clear();
+            }
+            allocations.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        void give(ByteBuffer buffer) {
+            leased.decrementAndGet();
+            // Over budget: let the GC reclaim it
+            if (free.incrementAndGet() > maxFree) {
+                free.decrementAndGet();
+                return;
+            }
+            buffers.add(buffer);
+        }
+    }
+
+    private record Lease(String thread, long acquiredAt, Throwable site) {
+    }
+
+    public record ClassStats(int size, int leased, int free, long acquires, long allocations) {
+        // Fraction of acquires served from the free list
+        public double hitRate() {
+            return acquires == 0 ? 1.0 : 1.0 - (double) allocations / acquires;
+        }
+    }
+
+    public record Stats(List<ClassStats> classes, long unpooledAllocations, int trackedLeases) {
+        public long leasedBytes() {
+            long total = 0;
+            for (ClassStats c : classes) total += (long) c.size() * c.leased();
+            return total;
+        }
+
+        public long pooledBytes() {
+            long total = 0;
+            for (ClassStats c : classes) total += (long) c.size() * c.free();
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("leased=%dKB pooled=%dKB unpooled=%d", leasedBytes() / 1024,
+                    pooledBytes() / 1024, unpooledAllocations));
+            if (trackedLeases >= 0) sb.append(" tracked=").append(trackedLeases);
+            for (ClassStats c : classes) {
+                if (c.acquires() == 0) continue;
+                sb.append(String.format("%n  %7d B: leased=%d free=%d acquires=%d hit=%.1f%%", c.size(), c.leased(),
+                        c.free(), c.acquires(), c.hitRate() * 100));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -1,27 +1,80 @@
+import javax.net.ssl.SSLContext;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
 import java.net.SocketException;
 import java.net.ConnectException;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ChatClientGUI extends JFrame {
-    private JTextArea chatArea;
+    private TranscriptView chatView;
+    private ChatTranscript transcript;
     private JTextField messageField;
     private JTextField serverField;
     private JTextField portField;
+    private JTextField usernameField;
+    private JCheckBox compressBox;
+    private JCheckBox tlsBox;
+    private DefaultListModel<String> onlineUsers;
     private JButton connectButton;
     private JButton sendButton;
+    private JButton fileButton;
+    private JProgressBar transferBar;
     private JLabel statusLabel;
 
-    private Socket socket;
-    private BufferedReader bufferedReader;
-    private PrintWriter printWriter;
-    private boolean isConnected = false;
+    private static final long RECONNECT_BASE_MS = 100;
+    private static final long RECONNECT_MAX_MS = 10_000;
+    // Below DedupWindow.SIZE, so the server still remembers every id a reconnect resends
+    private static final int MAX_UNACKED = 256;
+
+    private volatile FrameChannel frameChannel;
+    private volatile boolean isConnected = false;
+    private volatile boolean reconnecting = false;
+    private volatile boolean userDisconnected = false;
+    private Thread connectionThread;
+    // Highest broadcast sequence seen from lastServer; sent back on reconnect to replay what was missed
+    private volatile int lastSeq;
+    private String lastServer;
+    // Logged in under this name on every (re)connect; null to stay anonymous
+    private volatile String username;
+    // From the last login, so a reconnect can take the name over from a connection the server still has
+    private volatile String sessionToken;
+    private volatile boolean compress;
+    // Null for plaintext; one shared context so reconnects resume the TLS session
+    private volatile SSLContext tlsContext;
+    // Uploads and downloads; they carry on across reconnects
+    private final FileTransferClient files = new FileTransferClient(
+            Path.of(System.getProperty("chat.files.downloads", "downloads")), new TransferListener());
+    private volatile boolean transferUpdateQueued;
+    // Messages the server has not acknowledged yet, by id in the order sent. A new connection resends
+    // them under the same ids and the server drops any it already had. Ids run on from a random start
+    // so a restarted client does not reuse ones the server still remembers.
+    private final Map<Integer, String> unacked = new LinkedHashMap<>();
+    private int nextMessageId = ThreadLocalRandom.current().nextInt();
+    // Guarded by unacked: messages typed so far, numbering them in the order they were sent
+    private long typed;
+    // Every send blocks, so none happens on the EDT or under the unacked lock; one sender thread
+    // takes them in order instead. It only touches sendingOn, the connection it sends on, and
+    // sentThrough, the last message that connection has had, which a resend may already have covered.
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "MessageSender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FrameChannel sendingOn;
+    private long sentThrough;
+    // Sent on every connection so the server recognises resends even when not logged in
+    private final String clientId = Long.toHexString(ThreadLocalRandom.current().nextLong());
 
     public ChatClientGUI() {
         initializeGUI();
@@ -30,22 +83,27 @@ public class ChatClientGUI extends JFrame {
     private void initializeGUI() {
         setTitle("Chat Client");
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
-        setSize(650, 550);
+        setSize(880, 550);
         setLocationRelativeTo(null);
 
         // Create components
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setBackground(new Color(248, 249, 250));
-        chatArea.setFont(new Font("Segoe UI", Font.PLAIN, 13));
-        chatArea.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        chatView = new TranscriptView(new TranscriptModel());
+        chatView.setBackground(new Color(248, 249, 250));
+        chatView.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
-        JScrollPane scrollPane = new JScrollPane(chatArea);
+        transcript = new ChatTranscript(chatView);
+
+        JScrollPane scrollPane = new JScrollPane(chatView);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         scrollPane.setBorder(BorderFactory.createTitledBorder("Chat Messages"));
 
         serverField = new JTextField("localhost", 12);
         portField = new JTextField("8080", 6);
+        usernameField = new JTextField(10);
+        compressBox = new JCheckBox("Compress");
+        compressBox.setToolTipText("Ask the server to compress long messages on this connection");
+        tlsBox = new JCheckBox("TLS");
+        tlsBox.setToolTipText("Encrypt the connection; trust comes from -Dchat.tls.truststore or the JDK defaults");
         connectButton = new JButton("Connect");
         connectButton.setPreferredSize(new Dimension(100, 30));
 
@@ -61,6 +119,15 @@ public class ChatClientGUI extends JFrame {
         sendButton.setEnabled(false);
         sendButton.setPreferredSize(new Dimension(80, 30));
 
+        fileButton = new JButton("File...");
+        fileButton.setToolTipText("Share a file with everyone; /get <id> downloads one");
+        fileButton.setEnabled(false);
+        fileButton.setPreferredSize(new Dimension(80, 30));
+
+        transferBar = new JProgressBar(0, 1000);
+        transferBar.setStringPainted(true);
+        transferBar.setVisible(false);
+
         // Layout
         JPanel connectionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
         connectionPanel.setBorder(BorderFactory.createEtchedBorder());
@@ -68,6 +135,10 @@ public class ChatClientGUI extends JFrame {
         connectionPanel.add(serverField);
         connectionPanel.add(new JLabel("Port:"));
         connectionPanel.add(portField);
+        connectionPanel.add(new JLabel("Name:"));
+        connectionPanel.add(usernameField);
+        connectionPanel.add(compressBox);
+        connectionPanel.add(tlsBox);
         connectionPanel.add(connectButton);
         connectionPanel.add(Box.createHorizontalStrut(20));
         connectionPanel.add(statusLabel);
@@ -76,16 +147,39 @@ public class ChatClientGUI extends JFrame {
         messagePanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         messagePanel.add(new JLabel("Message:"), BorderLayout.WEST);
         messagePanel.add(messageField, BorderLayout.CENTER);
-        messagePanel.add(sendButton, BorderLayout.EAST);
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+        buttonPanel.add(fileButton);
+        buttonPanel.add(sendButton);
+        messagePanel.add(buttonPanel, BorderLayout.EAST);
+        messagePanel.add(transferBar, BorderLayout.SOUTH);
+
+        // Who is online, kept current by the server's presence batches; double-click to message someone
+        onlineUsers = new DefaultListModel<>();
+        JList<String> onlineList = new JList<>(onlineUsers);
+        onlineList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                String selected = onlineList.getSelectedValue();
+                if (e.getClickCount() == 2 && selected != null && messageField.isEnabled()) {
+                    messageField.setText("/msg " + selected.split(" ")[0] + " ");
+                    messageField.requestFocus();
+                }
+            }
+        });
+        JScrollPane onlinePane = new JScrollPane(onlineList);
+        onlinePane.setBorder(BorderFactory.createTitledBorder("Online"));
+        onlinePane.setPreferredSize(new Dimension(150, 0));
 
         setLayout(new BorderLayout());
         add(connectionPanel, BorderLayout.NORTH);
         add(scrollPane, BorderLayout.CENTER);
+        add(onlinePane, BorderLayout.EAST);
         add(messagePanel, BorderLayout.SOUTH);
 
         // Event listeners
         connectButton.addActionListener(e -> toggleConnection());
         sendButton.addActionListener(e -> sendMessage());
+        fileButton.addActionListener(e -> chooseFile());
         messageField.addActionListener(e -> sendMessage());
 
         // Window closing event
@@ -99,19 +193,22 @@ public class ChatClientGUI extends JFrame {
 
         appendToChat("=== Chat Client Started ===", "SYSTEM");
         appendToChat("Enter server details and click Connect", "SYSTEM");
+        appendToChat("Rooms: /join <room>, /leave <room>, /rooms, #<room> <message>", "SYSTEM");
+        appendToChat("Users: /msg <user> <message>, /away, /back, /who", "SYSTEM");
     }
 
     private void toggleConnection() {
-        if (!isConnected) {
-            connect();
-        } else {
+        if (isConnected || reconnecting) {
             disconnect();
+        } else {
+            connect();
         }
     }
 
     private void connect() {
         String serverAddress = serverField.getText().trim();
         String portText = portField.getText().trim();
+        String name = usernameField.getText().trim();
 
         if (serverAddress.isEmpty()) {
             showError("Please enter server address");
@@ -123,6 +220,11 @@ public class ChatClientGUI extends JFrame {
             return;
         }
 
+        if (!name.isEmpty() && !UserRegistry.isValidName(name)) {
+            showError("Names use letters, digits, '-' and '_' (at most " + UserRegistry.MAX_NAME_LENGTH + ")");
+            return;
+        }
+
         try {
             int port = Integer.parseInt(portText);
 
@@ -139,49 +241,243 @@ public class ChatClientGUI extends JFrame {
             statusLabel.setText("Status: Connecting...");
             statusLabel.setForeground(Color.ORANGE);
 
-            // Connect in background thread
-            new Thread(() -> {
-                try {
-                    socket = new Socket(serverAddress, port);
-                    bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    printWriter = new PrintWriter(socket.getOutputStream(), true);
+            String server = serverAddress + ":" + port;
+            if (!server.equals(lastServer)) {
+                lastServer = server;
+                lastSeq = 0;
+            }
+            username = name.isEmpty() ? null : name;
+            compress = compressBox.isSelected();
+            tlsContext = tlsBox.isSelected() ? TlsConfig.clientContext() : null;
+            userDisconnected = false;
 
-                    isConnected = true;
+            // Connect in background thread; it then reads messages and reconnects until the user disconnects
+            connectionThread = new Thread(() -> runConnection(serverAddress, port), "ConnectionThread");
+            connectionThread.start();
 
-                    SwingUtilities.invokeLater(() -> {
-                        // Update UI for successful connection
-                        connectButton.setText("Disconnect");
-                        connectButton.setEnabled(true);
-                        statusLabel.setText("Status: Connected to " + serverAddress + ":" + port);
-                        statusLabel.setForeground(new Color(34, 139, 34));
-                        messageField.setEnabled(true);
-                        sendButton.setEnabled(true);
-                        serverField.setEnabled(false);
-                        portField.setEnabled(false);
-                        messageField.requestFocus();
-
-                        appendToChat("Successfully connected to server!", "SYSTEM");
-                    });
+        } catch (NumberFormatException e) {
+            showError("Please enter a valid port number");
+            resetConnectionUI();
+        } catch (IOException e) {
+            showError(e.getMessage());
+            resetConnectionUI();
+        }
+    }
 
-                    // Start reading messages
-                    startMessageReading();
+    private void runConnection(String serverAddress, int port) {
+        try {
+            FrameChannel channel = FrameChannel.connect(serverAddress, port, lastSeq, username, compress, tlsContext,
+                    clientId, sessionToken);
+            if (!adopt(channel)) return;
+            if (compress && !channel.isCompressed()) appendToChat("Server has compression turned off", "SYSTEM");
+        } catch (ConnectException e) {
+            SwingUtilities.invokeLater(() -> {
+                handleConnectionError("Cannot connect to server. Make sure the server is running on " +
+                        serverAddress + ":" + port);
+            });
+            return;
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(() -> {
+                handleConnectionError("Connection failed: " + e.getMessage());
+            });
+            return;
+        }
 
-                } catch (ConnectException e) {
-                    SwingUtilities.invokeLater(() -> {
-                        handleConnectionError("Cannot connect to server. Make sure the server is running on " +
-                                serverAddress + ":" + port);
-                    });
-                } catch (IOException e) {
+        SwingUtilities.invokeLater(() -> {
+            showConnected(serverAddress, port);
+            appendToChat(username == null ? "Successfully connected to server!"
+                    : "Successfully connected to server as " + username + "!", "SYSTEM");
+        });
+
+        while (true) {
+            String lost = readMessages();
+            if (lost == null || userDisconnected) return;
+            appendToChat(lost + ", reconnecting...", "SYSTEM");
+            if (!reconnect(serverAddress, port)) return;
+        }
+    }
+
+    // Make channel the live connection, unless the user pressed Disconnect while it was being opened
+    private synchronized boolean adopt(FrameChannel channel) {
+        if (userDisconnected) {
+            closeQuietly(channel);
+            return false;
+        }
+        frameChannel = channel;
+        if (channel.sessionToken() != null) sessionToken = channel.sessionToken();
+        isConnected = true;
+        files.attach(channel);
+        resendUnacked(channel);
+        return true;
+    }
+
+    // Returns why the connection was lost, or null when it ended on purpose
+    private String readMessages() {
+        FrameChannel channel = frameChannel;
+        if (channel == null) return null;
+        try {
+            ChatFrame frame;
+            while ((frame = channel.read()) != null) {
+                if (files.onFrame(frame)) continue;
+                if (frame.type() == ChatFrame.ACK) {
+                    ByteBuffer ids = frame.payload();
+                    synchronized (unacked) {
+                        while (ids.remaining() >= 4) {
+                            String message = unacked.remove(ids.getInt());
+                            // Dropped by the server's rate limit; resending would only be dropped again
+                            if (message != null && frame.flags() == ChatFrame.REJECTED) {
+                                appendToChat("Not delivered, sending too fast: " + message, "ERROR");
+                            }
+                        }
+                    }
+                    continue;
+                }
+                if (frame.type() == ChatFrame.EXIT) {
                     SwingUtilities.invokeLater(() -> {
-                        handleConnectionError("Connection failed: " + e.getMessage());
+                        appendToChat("Server closed the connection", "SYSTEM");
+                        disconnect();
                     });
+                    return null;
+                }
+                if (frame.type() == ChatFrame.REPLAY) {
+                    // Caught up: live messages continue after this seq (it can go backwards if the
+                    // server lost its history, which would otherwise hide every new message)
+                    lastSeq = frame.seq();
+                    continue;
+                }
+                if (frame.type() == ChatFrame.PRESENCE) {
+                    showPresence(frame.flags() == ChatFrame.ROSTER, frame.text());
+                    continue;
+                }
+                if (frame.type() == ChatFrame.LOGIN) {
+                    // A "/login" typed after connecting
+                    if (frame.flags() == ChatFrame.REJECTED) {
+                        appendToChat(frame.text(), "ERROR");
+                    } else {
+                        String reply = frame.text();
+                        int newline = reply.indexOf('\n');
+                        username = newline < 0 ? reply : reply.substring(0, newline);
+                        sessionToken = FrameChannel.sessionToken(reply);
+                        appendToChat("Logged in as " + username, "SYSTEM");
+                    }
+                    continue;
+                }
+                if (frame.type() != ChatFrame.TEXT) continue;
+                if (frame.seq() != 0) {
+                    // Already shown before a reconnect
+                    if (frame.seq() <= lastSeq) continue;
+                    lastSeq = frame.seq();
+                }
+                appendToChat(frame.text(), "SERVER");
+            }
+            return "Connection lost with server";
+        } catch (SocketException e) {
+            return "Connection lost with server";
+        } catch (IOException e) {
+            return "Connection error: " + e.getMessage();
+        } finally {
+            synchronized (this) {
+                if (frameChannel == channel) {
+                    frameChannel = null;
+                    isConnected = false;
                 }
-            }, "ConnectionThread").start();
+            }
+            closeQuietly(channel);
+            SwingUtilities.invokeLater(onlineUsers::clear);
+        }
+    }
 
-        } catch (NumberFormatException e) {
-            showError("Please enter a valid port number");
-            resetConnectionUI();
+    // Retry with jittered exponential backoff until connected or the user gives up; the new connection
+    // resumes after lastSeq so the server replays only what was missed
+    private boolean reconnect(String serverAddress, int port) {
+        reconnecting = true;
+        SwingUtilities.invokeLater(() -> {
+            connectButton.setText("Cancel");
+            statusLabel.setText("Status: Reconnecting...");
+            statusLabel.setForeground(Color.ORANGE);
+            messageField.setEnabled(false);
+            sendButton.setEnabled(false);
+            fileButton.setEnabled(false);
+        });
+
+        for (int attempt = 1; !userDisconnected; attempt++) {
+            try {
+                Thread.sleep(backoffMillis(attempt));
+                // The server may not have noticed the old connection drop yet; the session token lets
+                // this login take the name over from it
+                FrameChannel channel = FrameChannel.connect(serverAddress, port, lastSeq, username, compress,
+                        tlsContext, clientId, sessionToken);
+                if (!adopt(channel)) return false;
+                reconnecting = false;
+                int attempts = attempt;
+                SwingUtilities.invokeLater(() -> {
+                    showConnected(serverAddress, port);
+                    appendToChat("Reconnected after " + attempts + " attempt(s)", "SYSTEM");
+                });
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            } catch (IOException e) {
+                int failed = attempt;
+                SwingUtilities.invokeLater(() -> {
+                    if (reconnecting) statusLabel.setText("Status: Reconnecting (attempt " + failed + ")...");
+                });
+            }
         }
+        return false;
+    }
+
+    // A PRESENCE payload: "name=state" lines, either the full roster or changes since the last batch
+    private void showPresence(boolean roster, String payload) {
+        String[] lines = payload.isEmpty() ? new String[0] : payload.split("\n");
+        if (!roster) {
+            StringBuilder changes = new StringBuilder();
+            for (String line : lines) {
+                if (!changes.isEmpty()) changes.append(", ");
+                changes.append(line.replace("=", " is "));
+            }
+            if (!changes.isEmpty()) appendToChat(changes.toString(), "SYSTEM");
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (roster) onlineUsers.clear();
+            for (String line : lines) {
+                int eq = line.indexOf('=');
+                if (eq < 0) continue;
+                String name = line.substring(0, eq);
+                String state = line.substring(eq + 1);
+                for (int i = 0; i < onlineUsers.size(); i++) {
+                    if (onlineUsers.get(i).split(" ")[0].equalsIgnoreCase(name)) {
+                        onlineUsers.remove(i);
+                        break;
+                    }
+                }
+                if (state.equals("online")) onlineUsers.addElement(name);
+                else if (state.equals("away")) onlineUsers.addElement(name + " (away)");
+            }
+        });
+    }
+
+    // Half of an exponentially growing window plus a random share of the other half, so clients
+    // dropped together by a server restart don't all come back in the same instant
+    private static long backoffMillis(int attempt) {
+        long window = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempt - 1, 16));
+        return window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1);
+    }
+
+    private void showConnected(String serverAddress, int port) {
+        connectButton.setText("Disconnect");
+        connectButton.setEnabled(true);
+        statusLabel.setText("Status: Connected to " + serverAddress + ":" + port + (tlsContext != null ? " (TLS)" : ""));
+        statusLabel.setForeground(new Color(34, 139, 34));
+        messageField.setEnabled(true);
+        sendButton.setEnabled(true);
+        fileButton.setEnabled(true);
+        serverField.setEnabled(false);
+        portField.setEnabled(false);
+        usernameField.setEnabled(false);
+        compressBox.setEnabled(false);
+        tlsBox.setEnabled(false);
+        messageField.requestFocus();
     }
 
     private void handleConnectionError(String errorMessage) {
@@ -197,64 +493,108 @@ public class ChatClientGUI extends JFrame {
         statusLabel.setForeground(Color.RED);
     }
 
-    private void startMessageReading() {
-        new Thread(() -> {
-            try {
-                String message;
-                while (isConnected && (message = bufferedReader.readLine()) != null) {
-                    if (message.equalsIgnoreCase("exit")) {
-                        SwingUtilities.invokeLater(() -> {
-                            appendToChat("Server closed the connection", "SYSTEM");
-                            disconnect();
-                        });
-                        break;
-                    }
-                    final String msg = message;
-                    SwingUtilities.invokeLater(() -> appendToChat(msg, "SERVER"));
-                }
-            } catch (SocketException e) {
-                if (isConnected) {
-                    SwingUtilities.invokeLater(() -> {
-                        appendToChat("Connection lost with server", "SYSTEM");
-                        disconnect();
-                    });
-                }
-            } catch (IOException e) {
-                if (isConnected) {
-                    SwingUtilities.invokeLater(() -> {
-                        appendToChat("Connection error: " + e.getMessage(), "ERROR");
-                        disconnect();
-                    });
-                }
-            }
-        }, "MessageReaderThread").start();
-    }
-
     private void sendMessage() {
         String message = messageField.getText().trim();
-        if (message.isEmpty() || printWriter == null) return;
+        FrameChannel channel = frameChannel;
+        if (message.isEmpty() || channel == null) return;
 
-        printWriter.println(message);
-        appendToChat(message, "CLIENT");
         messageField.setText("");
-
+        // "exit" stays a UI shortcut for Disconnect; on the wire it is an EXIT frame, not text
         if (message.equalsIgnoreCase("exit")) {
             disconnect();
+            return;
         }
+        if (message.startsWith("/upload ")) {
+            upload(Path.of(message.substring(8).trim()));
+            return;
+        }
+        if (message.startsWith("/get ")) {
+            try {
+                files.download(message.substring(5).trim());
+                appendToChat("Downloading " + message.substring(5).trim() + "...", "SYSTEM");
+            } catch (IOException e) {
+                appendToChat("Download failed: " + e.getMessage(), "ERROR");
+            }
+            return;
+        }
+
+        int id;
+        long sequence;
+        synchronized (unacked) {
+            if (unacked.size() >= MAX_UNACKED) {
+                appendToChat("Too many messages waiting for the server; try again in a moment", "ERROR");
+                return;
+            }
+            if (++nextMessageId == 0) nextMessageId++;
+            id = nextMessageId;
+            sequence = ++typed;
+            unacked.put(id, message);
+        }
+        appendToChat(message, "CLIENT");
+        sender.execute(() -> send(sequence, id, message));
+    }
+
+    // On the sender thread
+    private void send(long sequence, int id, String message) {
+        FrameChannel channel = sendingOn;
+        // Resent with the rest when the connection changed, or acknowledged or cancelled since
+        if (channel == null || sequence <= sentThrough) return;
+        synchronized (unacked) {
+            if (!unacked.containsKey(id)) return;
+        }
+        sentThrough = sequence;
+        try {
+            channel.send(ChatFrame.TEXT, id, message);
+        } catch (IOException e) {
+            appendToChat("Not delivered yet; it will be resent when the connection is back", "SYSTEM");
+        }
+    }
+
+    // Switch the sender to a new connection, starting with everything not yet acknowledged; messages
+    // typed after this still go out behind them
+    private void resendUnacked(FrameChannel channel) {
+        sender.execute(() -> {
+            Map<Integer, String> pending;
+            synchronized (unacked) {
+                pending = new LinkedHashMap<>(unacked);
+                sentThrough = typed;
+            }
+            sendingOn = channel;
+            try {
+                for (Map.Entry<Integer, String> message : pending.entrySet()) {
+                    channel.send(ChatFrame.TEXT, message.getKey(), message.getValue());
+                }
+            } catch (IOException e) {
+                // Lost again; the next connection resends them
+            }
+        });
     }
 
     private void disconnect() {
-        isConnected = false;
+        FrameChannel channel;
+        synchronized (this) {
+            userDisconnected = true;
+            isConnected = false;
+            channel = frameChannel;
+            frameChannel = null;
+        }
+        if (reconnecting) {
+            reconnecting = false;
+            Thread thread = connectionThread;
+            if (thread != null) thread.interrupt();
+        }
 
-        try {
-            if (printWriter != null) {
-                printWriter.println("exit");
-                printWriter.close();
+        if (channel != null) {
+            try {
+                channel.sendControl(ChatFrame.EXIT);
+            } catch (IOException e) {
+                // Server already gone
             }
-            if (bufferedReader != null) bufferedReader.close();
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            // Ignore cleanup errors
+            closeQuietly(channel);
+        }
+        files.cancelAll("Cancelled by disconnect");
+        synchronized (unacked) {
+            unacked.clear();
         }
 
         // Update UI
@@ -264,37 +604,85 @@ public class ChatClientGUI extends JFrame {
         statusLabel.setForeground(Color.RED);
         messageField.setEnabled(false);
         sendButton.setEnabled(false);
+        fileButton.setEnabled(false);
         serverField.setEnabled(true);
         portField.setEnabled(true);
+        usernameField.setEnabled(true);
+        compressBox.setEnabled(true);
+        tlsBox.setEnabled(true);
+        onlineUsers.clear();
 
         appendToChat("Disconnected from server", "SYSTEM");
     }
 
-    private void appendToChat(String message, String type) {
-        SwingUtilities.invokeLater(() -> {
-            String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-            String prefix;
-
-            switch (type) {
-                case "SERVER":
-                    prefix = "SERVER";
-                    break;
-                case "CLIENT":
-                    prefix = "CLIENT";
-                    break;
-                case "SYSTEM":
-                    prefix = "SYSTEM";
-                    break;
-                case "ERROR":
-                    prefix = "ERROR";
-                    break;
-                default:
-                    prefix = type;
+    private void chooseFile() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) upload(chooser.getSelectedFile().toPath());
+    }
+
+    private void upload(Path path) {
+        try {
+            files.upload(path);
+            appendToChat("Uploading " + path.getFileName() + "...", "SYSTEM");
+        } catch (IOException e) {
+            appendToChat("Cannot upload " + path + ": " + e.getMessage(), "ERROR");
+        }
+    }
+
+    // Progress arrives once per chunk from the reader or an upload thread; the bar is redrawn at most
+    // once per pass of the event thread
+    private class TransferListener implements FileTransferClient.Listener {
+        @Override
+        public void onProgress(FileTransferClient.Transfer transfer) {
+            if (transferUpdateQueued) return;
+            transferUpdateQueued = true;
+            SwingUtilities.invokeLater(ChatClientGUI.this::showTransfers);
+        }
+
+        @Override
+        public void onFinished(FileTransferClient.Transfer transfer, String error) {
+            if (error != null) {
+                appendToChat(transfer.name() + ": " + error, "ERROR");
+            } else if (transfer.isUpload()) {
+                appendToChat("Shared " + transfer.name() + " as " + transfer.result(), "SYSTEM");
+            } else {
+                appendToChat("Saved " + transfer.name() + " to " + transfer.result(), "SYSTEM");
             }
+            onProgress(transfer);
+        }
+    }
 
-            chatArea.append(String.format("[%s] %s: %s%n", timestamp, prefix, message));
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+    private void showTransfers() {
+        transferUpdateQueued = false;
+        long done = 0;
+        long size = 0;
+        java.util.List<FileTransferClient.Transfer> active = files.active();
+        for (FileTransferClient.Transfer transfer : active) {
+            done += transfer.done();
+            size += Math.max(0, transfer.size());
+        }
+        transferBar.setVisible(!active.isEmpty());
+        if (active.isEmpty()) return;
+        transferBar.setValue(size == 0 ? 0 : (int) (done * 1000 / size));
+        transferBar.setString(active.size() == 1
+                ? (active.get(0).isUpload() ? "Uploading " : "Downloading ") + active.get(0).name() + " "
+                        + FileTransfers.describeSize(done) + " of " + FileTransfers.describeSize(size)
+                : active.size() + " transfers, " + FileTransfers.describeSize(done) + " of "
+                        + FileTransfers.describeSize(size));
+        transferBar.getParent().revalidate();
+    }
+
+    private static void closeQuietly(FrameChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+    }
+
+    // Safe from any thread; the transcript batches lines onto the EDT
+    private void appendToChat(String message, String type) {
+        transcript.append(message, type);
     }
 
     private void showError(String message) {
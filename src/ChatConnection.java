@@ -0,0 +1,922 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import jdk.net.ExtendedSocketOptions;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// One client channel owned by a single ChatServerEngine event loop
+public class ChatConnection {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    // Most message ids one ACK frame carries
+    private static final int ACK_BATCH = 256;
+    // Bytes of a log replay read at a time when it cannot go out with transferTo
+    private static final int REPLAY_CHUNK = 64 * 1024;
+    private static final byte[] EXIT_LINE = "exit".getBytes(StandardCharsets.US_ASCII);
+
+    // Wire protocol, decided by the first bytes the client sends
+    private static final int UNKNOWN = 0;
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+
+    // What admit() decided for a frame
+    private static final int ADMIT = 0;
+    private static final int DISCARD = 1;
+    private static final int HOLD = 2;
+
+    private final long id;
+    private final SocketChannel channel;
+    private final ChatServerEngine.EventLoop loop;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = this::flush;
+    // A flush timed by the FlushPolicy's maxLatencyMs is pending
+    private final AtomicBoolean flushDelayed = new AtomicBoolean(false);
+    private final Runnable delayedFlushTask = () -> {
+        flushDelayed.set(false);
+        flush();
+    };
+    private final String remoteAddress;
+    private final ServerMetrics metrics;
+    // One queued message at a time is timed from enqueue until the writer takes it, which is enough
+    // for queue-wait percentiles without stamping every message
+    private final AtomicReference<WaitProbe> waitProbe = new AtomicReference<>();
+
+    // Reader state, only touched on the loop thread. readBuffer is leased from the shared pool
+    // and given back on close, after any read in progress has unwound.
+    private final ChatFrame frame = new ChatFrame();
+    private final BufferPool pool = BufferPool.shared();
+    private ByteBuffer readBuffer = pool.acquire(READ_BUFFER_SIZE);
+    private int scanOffset;
+    private boolean reading;
+    private volatile int protocol = UNKNOWN;
+    // Set by the loop once the protocol is known and the listener has seen onConnect
+    boolean ready;
+    // Set once the connection receives broadcasts; binary clients subscribe with their first frame
+    boolean subscribed;
+    // Broadcast delivery, only touched on the loop thread: the last broadcast published before this
+    // connection subscribed (its replay covers up to there), its place in the loop's subscriber list,
+    // and whether the loop has queued it something it has yet to flush
+    long subscribedAfter;
+    int subscriberSlot = -1;
+    boolean deliveryPending;
+    // Set before registration on a TLS listener; all socket I/O then goes through it
+    private TlsTransport tls;
+    // Files this client is uploading, by transfer number; null until the first. Set on the loop thread;
+    // the spool thread takes uploads out as they finish.
+    Map<Integer, FileTransfers.Upload> uploads;
+    // Message ids already taken from this sender, kept in the engine's Senders under dedupKey: the
+    // logged-in user's or the client instance's, shared with their earlier connections. Null key for a
+    // window of this connection's own. Lock the window to use it, since a reconnect can overlap the
+    // old connection's last frames.
+    DedupWindow dedup;
+    String dedupKey;
+    private final int[] acks = new int[ACK_BATCH];
+    private int ackCount;
+    private final int[] rejects = new int[ACK_BATCH];
+    private int rejectCount;
+    // Set once the client negotiates compression; used on the loop thread only
+    private volatile FrameCompression compression;
+    // Set by UserRegistry on login; the session token lets the same client take the name over from
+    // this connection if it reconnects before this one is noticed closing
+    private volatile String username;
+    private volatile UserRegistry.Presence presence = UserRegistry.Presence.OFFLINE;
+    volatile String sessionToken;
+
+    // Heartbeat state, only touched on the loop thread. The loop's timing wheel holds `heartbeat`
+    // for binary connections and calls heartbeatDue when it fires.
+    TimingWheel.Timeout<ChatConnection> heartbeat;
+    private long lastReadAt = System.nanoTime();
+    // When the outstanding PING went out, 0 if none is
+    private long pingSentAt;
+    private int pingSeq;
+    // Smoothed PING round trip in nanoseconds, -1 until the first PONG
+    private volatile long smoothedRtt = -1;
+
+    // Inbound budgets: this connection's own bucket, and the logged-in user's, shared by all of that
+    // user's connections. While reading is paused the rest of the input stays in the kernel.
+    private final TokenBucket bucket;
+    private volatile TokenBucket userBucket;
+    private boolean readPaused;
+    private final Runnable resumeReadingTask = this::resumeReading;
+
+    // Writer state, only touched on the loop thread. Queued messages are copied into writeBuffer
+    // so one socket write carries many of them; the first message that does not fit rides along as
+    // `oversized`, and both go out in one gathering write. writeBuffer is leased only while there is
+    // something to send, so idle connections hold none.
+    private ByteBuffer writeBuffer;
+    private ByteBuffer oversized;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    // Log regions being replayed; they go out ahead of the regular queue, with transferTo on plain
+    // connections and otherwise read a REPLAY_CHUNK of whole frames at a time into `replayChunk`, so
+    // a long replay never sits in memory at once
+    private final ArrayDeque<FileRegion> regions = new ArrayDeque<>();
+    private ByteBuffer replayBuffer;
+    private ByteBuffer replayChunk;
+    // Confirmed sends, written after any replay and ahead of the regular queue, a buffer at a time
+    // through `confirming`; each hears whether all of it reached the socket
+    private final ArrayDeque<Confirmed> confirmed = new ArrayDeque<>();
+    private ByteBuffer confirming;
+    // File downloads, sent a CHUNK frame at a time whenever the regular queue is empty, taking turns;
+    // `chunk` is the body of the chunk whose header is in writeBuffer, still to be transferred
+    private final ArrayDeque<Download> downloads = new ArrayDeque<>();
+    private Download chunkOf;
+    private FileRegion chunk;
+    private boolean closeWhenFlushed;
+    private SelectionKey key;
+
+    ChatConnection(long id, SocketChannel channel, ChatServerEngine.EventLoop loop, OutboundQueue outbound) {
+        this.id = id;
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = outbound;
+        this.remoteAddress = describe(channel);
+        this.metrics = loop.metrics();
+        this.bucket = loop.rateLimits().connectionBucket();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    ChatServerEngine.EventLoop loop() {
+        return loop;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // The logged-in name, or null before login
+    public String getUsername() {
+        return username;
+    }
+
+    public UserRegistry.Presence getPresence() {
+        return presence;
+    }
+
+    void setUsername(String username, UserRegistry.Presence presence) {
+        this.username = username;
+        this.presence = presence;
+    }
+
+    void setUserBucket(TokenBucket bucket) {
+        this.userBucket = bucket;
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    // True for clients speaking the framed binary protocol, false for legacy line-based clients
+    public boolean isBinary() {
+        return protocol == BINARY;
+    }
+
+    public boolean isSecure() {
+        return tls != null;
+    }
+
+    // Speak TLS on this channel; call before the loop registers it
+    void useTls(SSLContext context) throws SSLException {
+        tls = TlsTransport.server(channel, context, TlsConfig.handshakeExecutor(),
+                () -> loop.submit(() -> loop.resumeRead(this)));
+    }
+
+    public boolean isCompressed() {
+        return compression != null;
+    }
+
+    // Heartbeat round trip, smoothed like TCP's SRTT; -1 before the first PONG. It includes the time the
+    // PING waited in this connection's queue and the client took to answer, as a user would notice.
+    public long rttMicros() {
+        long rtt = smoothedRtt;
+        return rtt < 0 ? -1 : rtt / 1000;
+    }
+
+    // Turn Nagle's algorithm off (true) or on for this connection; it starts as the FlushPolicy says
+    public void setNoDelay(boolean noDelay) {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+        } catch (IOException e) {
+            // The channel is closing; nothing left to tune
+        }
+    }
+
+    // Compress this connection's frames from now on, both ways; binary clients only, on the loop thread
+    boolean enableCompression() {
+        if (!isBinary() || closed.get()) return false;
+        if (compression == null) compression = new FrameCompression();
+        return true;
+    }
+
+    public int queuedMessages() {
+        return outbound.size();
+    }
+
+    public long droppedMessages() {
+        return outbound.droppedCount();
+    }
+
+    // Queue a message for this client in its own protocol; safe to call from any thread
+    public void send(String message) {
+        enqueue(isBinary() ? FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, 0, message) : encodeLine(message));
+    }
+
+    // Queue already-encoded bytes without blocking. A full queue is resolved by the slow-consumer policy.
+    void enqueue(ByteBuffer message) {
+        if (offer(message)) scheduleFlush();
+    }
+
+    // Queue without scheduling a write, for a caller that flushes once after a batch; false if not queued
+    boolean offer(ByteBuffer message) {
+        if (closed.get()) return false;
+        if (!outbound.offer(message)) {
+            close();
+            return false;
+        }
+        if (waitProbe.get() == null) waitProbe.compareAndSet(null, new WaitProbe(message, System.nanoTime()));
+        return true;
+    }
+
+    static ByteBuffer encodeLine(String message) {
+        return ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Close the channel on its own loop; safe to call from any thread
+    public void close() {
+        loop.submit(() -> loop.closeConnection(this));
+    }
+
+    // Stream stored frames from the message log to the client as the socket takes them; binary clients only.
+    // The regions go out ahead of anything still queued, so only call this before the connection subscribes.
+    public void sendRegions(List<MessageLog.Region> logRegions) {
+        if (closed.get() || logRegions.isEmpty()) return;
+        loop.execute(() -> {
+            for (MessageLog.Region region : logRegions) {
+                regions.add(new FileRegion(region.channel(), region.position(), region.position() + region.count()));
+            }
+            // Not inline: the caller may hold the broadcast lock, and the log is read as the socket drains
+            if (flushScheduled.compareAndSet(false, true)) loop.submit(flushTask);
+        });
+    }
+
+    // Send messages that must not be forgotten until they are out: written(true) runs on the loop once
+    // every one of them has been written to the socket, written(false) if the connection closes first.
+    // They bypass the outbound queue, so no slow-consumer policy drops part of them.
+    void sendConfirmed(List<ByteBuffer> messages, Consumer<Boolean> written) {
+        loop.execute(() -> {
+            if (closed.get()) {
+                written.accept(false);
+                return;
+            }
+            confirmed.add(new Confirmed(new ArrayDeque<>(messages), written));
+            flush();
+        });
+    }
+
+    // Stream [offset, end) of file to the client as CHUNK frames numbered `transfer`, interleaved with
+    // everything else queued; the file is closed once sent or when the connection closes
+    void sendFile(int transfer, FileChannel file, long offset, long end) {
+        loop.execute(() -> {
+            Download download = new Download(transfer, file, offset, end);
+            if (closed.get() || offset >= end) {
+                download.close();
+                return;
+            }
+            downloads.add(download);
+            flush();
+        });
+    }
+
+    // Tell the client to disconnect, then close once everything queued before it is written
+    public void shutdown() {
+        if (closed.get()) return;
+        outbound.offer(isBinary() ? FrameCodec.encodeControl(ChatFrame.EXIT) : encodeLine("exit"));
+        loop.execute(() -> {
+            closeWhenFlushed = true;
+            flush();
+        });
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    // The heartbeat timeout fired. Returns nanoseconds until it should fire again, or -1 when the client
+    // left a PING unanswered for the whole timeout and should be reaped. Anything read counts as an answer.
+    long heartbeatDue(long now, HeartbeatPolicy policy) {
+        if (pingSentAt != 0) {
+            if (lastReadAt - pingSentAt < 0) {
+                long waited = now - pingSentAt;
+                return waited >= policy.timeoutNanos() ? -1 : policy.timeoutNanos() - waited;
+            }
+            pingSentAt = 0;
+        }
+        long idle = now - lastReadAt;
+        if (idle < policy.intervalNanos()) return policy.intervalNanos() - idle;
+        pingSentAt = now;
+        enqueue(FrameCodec.encodeControl(ChatFrame.PING, ++pingSeq));
+        return policy.timeoutNanos();
+    }
+
+    // Returns the round trip in nanoseconds, or -1 for a PONG that answers no outstanding PING
+    long onPong(int seq) {
+        if (pingSentAt == 0 || seq != pingSeq) return -1;
+        long rtt = System.nanoTime() - pingSentAt;
+        pingSentAt = 0;
+        long smoothed = smoothedRtt;
+        smoothedRtt = smoothed < 0 ? rtt : smoothed + (rtt - smoothed) / 8;
+        return rtt;
+    }
+
+    // Text clients cannot answer a PING, so the kernel probes them instead: after the heartbeat interval
+    // of silence, then every third of the timeout, giving up after three misses. Options the platform
+    // does not offer are skipped.
+    void enableKeepAlive(HeartbeatPolicy policy) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            setIfSupported(ExtendedSocketOptions.TCP_KEEPIDLE, (int) Math.max(1, policy.intervalMs() / 1000));
+            setIfSupported(ExtendedSocketOptions.TCP_KEEPINTERVAL, (int) Math.max(1, policy.timeoutMs() / 3000));
+            setIfSupported(ExtendedSocketOptions.TCP_KEEPCOUNT, 3);
+        } catch (IOException e) {
+            // The channel is closing; nothing left to tune
+        }
+    }
+
+    private void setIfSupported(SocketOption<Integer> option, int value) throws IOException {
+        if (channel.supportedOptions().contains(option)) channel.setOption(option, value);
+    }
+
+    // A client that sent nothing within the negotiation window is a legacy text client. Over TLS the
+    // window starts once the handshake is done; a handshake that never finishes is dropped.
+    void negotiationTimedOut() {
+        if (protocol != UNKNOWN || closed.get()) return;
+        if (tls != null && !tls.isHandshakeComplete()) {
+            if (tls.nanosSinceStart() > ChatServerEngine.TLS_HANDSHAKE_TIMEOUT_MS * 1_000_000L) {
+                loop.closeConnection(this);
+            } else {
+                loop.awaitProtocol(this);
+            }
+            return;
+        }
+        if (tls != null) {
+            // The handshake finished since this check was armed; give the preamble a full window after it
+            long left = ChatServerEngine.NEGOTIATION_TIMEOUT_MS - tls.nanosSinceHandshake() / 1_000_000;
+            if (left > 0) {
+                loop.awaitProtocol(this, left);
+                return;
+            }
+        }
+        protocol = TEXT;
+        loop.connectionReady(this);
+    }
+
+    // Called on the loop thread when the channel is readable. Returns false on end of stream.
+    boolean read(ChatServerEngine.Listener listener) throws IOException {
+        if (readPaused) return true;
+        reading = true;
+        lastReadAt = System.nanoTime();
+        try {
+            if (tls == null) {
+                int n = channel.read(readBuffer);
+                if (n < 0) return false;
+                metrics.onRead(n);
+                process(listener);
+                return true;
+            }
+            // TLS may hold decrypted or whole encrypted records the selector will not report again
+            int n;
+            do {
+                n = tls.read(readBuffer);
+                if (n < 0) return false;
+                metrics.onRead(n);
+                process(listener);
+            } while (n > 0 && tls.hasBufferedInput() && !closed.get() && !readPaused);
+            if (!closed.get() && (tls.hasPendingOutput() || (tls.isHandshakeComplete() && outbound.size() > 0))) {
+                scheduleFlush();
+            }
+            return true;
+        } finally {
+            reading = false;
+            if (closed.get()) releaseBuffers();
+        }
+    }
+
+    private void process(ChatServerEngine.Listener listener) throws IOException {
+        readBuffer.flip();
+        if (protocol == UNKNOWN && !negotiate()) {
+            readBuffer.compact();
+            return;
+        }
+
+        if (protocol == BINARY) {
+            while (!closed.get() && !readPaused) {
+                int start = readBuffer.position();
+                if (!FrameCodec.decode(readBuffer, frame)) break;
+                int admission = admit();
+                if (admission == HOLD) {
+                    readBuffer.position(start);
+                    break;
+                }
+                // A dropped frame is still inflated, or the stream's dictionary falls out of step
+                if ((frame.flags() & ChatFrame.COMPRESSED) != 0) {
+                    if (compression == null) throw new ProtocolException("Compressed frame before COMPRESS");
+                    frame.inflate(compression);
+                }
+                if (admission == ADMIT) {
+                    listener.onMessage(this, frame);
+                } else if (frame.type() == ChatFrame.TEXT && frame.seq() != 0) {
+                    reject(frame.seq());
+                }
+            }
+            flushAcks();
+        } else {
+            readLines(listener);
+        }
+        if (closed.get()) return;
+
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining() && !readPaused) growReadBuffer();
+    }
+
+    // Acknowledge a client message id, along with the others taken in the same read
+    void acknowledge(int id) {
+        if (ackCount == acks.length) flushAcks();
+        acks[ackCount++] = id;
+    }
+
+    // A client message id dropped unread, so the client stops waiting for it
+    private void reject(int id) {
+        if (rejectCount == rejects.length) flushAcks();
+        rejects[rejectCount++] = id;
+    }
+
+    private void flushAcks() {
+        if (ackCount > 0) enqueue(encodeAck((byte) 0, acks, ackCount));
+        if (rejectCount > 0) enqueue(encodeAck(ChatFrame.REJECTED, rejects, rejectCount));
+        ackCount = 0;
+        rejectCount = 0;
+    }
+
+    private static ByteBuffer encodeAck(byte flags, int[] ids, int count) {
+        ByteBuffer ack = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + 4 * count);
+        ack.put(ChatFrame.ACK).put(flags).putInt(0).putInt(4 * count);
+        for (int i = 0; i < count; i++) ack.putInt(ids[i]);
+        return ack.flip();
+    }
+
+    // Decide the protocol from the first bytes; returns false until enough have arrived
+    private boolean negotiate() throws ProtocolException {
+        if (!readBuffer.hasRemaining()) return false;
+        if (readBuffer.get(readBuffer.position()) != FrameCodec.PREAMBLE[0]) {
+            protocol = TEXT;
+        } else {
+            if (readBuffer.remaining() < FrameCodec.PREAMBLE.length) return false;
+            for (byte b : FrameCodec.PREAMBLE) {
+                if (readBuffer.get() != b) throw new ProtocolException("Unsupported protocol preamble");
+            }
+            protocol = BINARY;
+            enqueue(FrameCodec.preamble());
+        }
+        loop.connectionReady(this);
+        return true;
+    }
+
+    // Legacy protocol: each '\n'-terminated line is handed over as a TEXT frame (or EXIT for "exit")
+    // whose payload is a slice of the read buffer, so no String is built here
+    private void readLines(ChatServerEngine.Listener listener) {
+        int start = readBuffer.position();
+        int limit = readBuffer.limit();
+        for (int i = start + scanOffset; i < limit && !closed.get(); i++) {
+            if (readBuffer.get(i) != '\n') continue;
+
+            int end = i;
+            if (end > start && readBuffer.get(end - 1) == '\r') end--;
+            byte type = isExitLine(start, end) ? ChatFrame.EXIT : ChatFrame.TEXT;
+            frame.set(type, (byte) 0, 0, readBuffer.slice(start, end - start));
+            int admission = admit();
+            if (admission == HOLD) {
+                readBuffer.position(start);
+                scanOffset = 0;
+                return;
+            }
+            if (admission == ADMIT) listener.onMessage(this, frame);
+            start = i + 1;
+        }
+        readBuffer.position(start);
+        scanOffset = limit - start;
+    }
+
+    // Take a token for the frame just decoded. Over budget the RateLimitPolicy decides: THROTTLE holds
+    // the frame in the buffer and stops reading until a token is due, DROP discards the frame and
+    // DISCONNECT closes the connection. EXIT is always let through.
+    private int admit() {
+        TokenBucket user = userBucket;
+        // Chunks of an open upload are paced by the uploader's window instead; stray ones, which only
+        // earn a rejection, count like any other message
+        if ((bucket == null && user == null) || frame.type() == ChatFrame.EXIT
+                || (frame.type() == ChatFrame.CHUNK && uploads != null && uploads.containsKey(frame.seq()))) {
+            return ADMIT;
+        }
+        long now = System.nanoTime();
+        long wait = bucket != null ? bucket.tryTake(now) : 0;
+        if (wait == 0 && user != null) {
+            wait = user.tryTake(now);
+            // Refused by the user's budget: the message is not read, so this connection keeps its token
+            if (wait != 0 && bucket != null) bucket.giveBack();
+        }
+        if (wait == 0) return ADMIT;
+
+        metrics.onRateLimited();
+        switch (loop.rateLimits().action()) {
+            case THROTTLE -> {
+                pauseReading(wait);
+                return HOLD;
+            }
+            case DISCONNECT -> loop.closeConnection(this);
+            case DROP -> { }
+        }
+        return DISCARD;
+    }
+
+    private void pauseReading(long waitNanos) {
+        readPaused = true;
+        if (key != null && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        loop.schedule(resumeReadingTask, (waitNanos + 999_999) / 1_000_000);
+    }
+
+    // Messages held back are still in the read buffer, so process them before waiting on the selector
+    private void resumeReading() {
+        readPaused = false;
+        if (closed.get()) return;
+        if (key != null && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        loop.resumeRead(this);
+    }
+
+    private boolean isExitLine(int start, int end) {
+        if (end - start != EXIT_LINE.length) return false;
+        for (int i = 0; i < EXIT_LINE.length; i++) {
+            if ((readBuffer.get(start + i) | 0x20) != EXIT_LINE[i]) return false;
+        }
+        return true;
+    }
+
+    // A frame or line larger than the buffer: grow up to the protocol limit
+    private void growReadBuffer() throws ProtocolException {
+        int max = FrameCodec.HEADER_SIZE + FrameCodec.MAX_PAYLOAD;
+        if (readBuffer.capacity() >= max) {
+            throw new ProtocolException("Message exceeds " + FrameCodec.MAX_PAYLOAD + " bytes");
+        }
+        ByteBuffer larger = pool.acquire(Math.min(max, readBuffer.capacity() * 2));
+        readBuffer.flip();
+        larger.put(readBuffer);
+        pool.release(readBuffer);
+        readBuffer = larger;
+    }
+
+    // Write now, or once the FlushPolicy's latency has passed if the queue is still short of a batch
+    void scheduleFlush() {
+        FlushPolicy policy = loop.flushPolicy();
+        if (!policy.flushNow(outbound.size())) {
+            if (flushDelayed.compareAndSet(false, true)) {
+                loop.execute(() -> loop.schedule(delayedFlushTask, policy.maxLatencyMs()));
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    // Called on the loop thread; writes as much as the socket accepts and toggles OP_WRITE
+    void flush() {
+        flushScheduled.set(false);
+        if (closed.get() || key == null || !key.isValid()) return;
+        try {
+            if (tls != null && !tls.isHandshakeComplete()) {
+                // Only handshake records go out until it is done; the queue waits for read() to finish it
+                boolean flushed = tls.flush();
+                key.interestOps(flushed ? key.interestOps() & ~SelectionKey.OP_WRITE
+                        : key.interestOps() | SelectionKey.OP_WRITE);
+                if (flushed && tls.canProgress()) loop.submit(() -> loop.resumeRead(this));
+                return;
+            }
+            do {
+                if (!writePending() || !transferRegions() || !transferConfirmed() || !transferChunk()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            } while (fillWriteBuffer() || nextChunk());
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeWhenFlushed) loop.closeConnection(this);
+        } catch (IOException e) {
+            loop.closeConnection(this);
+        }
+    }
+
+    // Returns true once everything previously gathered has reached the socket
+    private boolean writePending() throws IOException {
+        if (writeBuffer != null && writeBuffer.hasRemaining()) {
+            if (oversized != null && tls == null) {
+                gather[0] = writeBuffer;
+                gather[1] = oversized;
+                metrics.onWrite(channel.write(gather));
+                gather[0] = null;
+                gather[1] = null;
+            } else {
+                metrics.onWrite(write(writeBuffer));
+            }
+            if (writeBuffer.hasRemaining()) return false;
+        }
+        if (oversized != null) {
+            if (oversized.hasRemaining()) metrics.onWrite(write(oversized));
+            if (oversized.hasRemaining()) return false;
+            oversized = null;
+        }
+        return tls == null || tls.flush();
+    }
+
+    private int write(ByteBuffer buffer) throws IOException {
+        return tls != null ? tls.write(buffer) : channel.write(buffer);
+    }
+
+    // Returns true once every pending log region has been handed to the socket
+    private boolean transferRegions() throws IOException {
+        FileRegion region;
+        while ((region = regions.peek()) != null) {
+            if (tls == null && compression == null) {
+                long written = region.file.transferTo(region.position, region.end - region.position, channel);
+                metrics.onWrite(written);
+                region.position += written;
+                if (region.position < region.end) return false;
+                regions.poll();
+                continue;
+            }
+            if (replayChunk == null) {
+                if (region.position == region.end) {
+                    regions.poll();
+                    continue;
+                }
+                replayChunk = readFrames(region);
+            }
+            metrics.onWrite(write(replayChunk));
+            if (replayChunk.hasRemaining() || (tls != null && !tls.flush())) return false;
+            replayChunk = null;
+        }
+        replayBuffer = null;
+        return true;
+    }
+
+    // Returns true once every confirmed send has been handed to the socket and told so
+    private boolean transferConfirmed() throws IOException {
+        Confirmed send;
+        while ((send = confirmed.peek()) != null) {
+            if (confirming == null) {
+                ByteBuffer next = send.messages.poll();
+                if (next == null) {
+                    confirmed.poll();
+                    send.written.accept(true);
+                    continue;
+                }
+                confirming = compression != null ? compress(next) : next;
+            }
+            metrics.onWrite(write(confirming));
+            if (confirming.hasRemaining() || (tls != null && !tls.flush())) return false;
+            confirming = null;
+        }
+        return true;
+    }
+
+    // The next whole frames of a replayed region, up to REPLAY_CHUNK bytes unless a single frame is
+    // longer, compressed if the client asked for it
+    private ByteBuffer readFrames(FileRegion region) throws IOException {
+        if (replayBuffer == null) replayBuffer = ByteBuffer.allocate(REPLAY_CHUNK);
+        ByteBuffer frames = readFully(region.file, region.position,
+                replayBuffer.clear().limit((int) Math.min(REPLAY_CHUNK, region.end - region.position)));
+        int whole = 0;
+        while (frames.limit() - whole >= FrameCodec.HEADER_SIZE) {
+            int next = whole + FrameCodec.HEADER_SIZE + frames.getInt(whole + FrameCodec.LENGTH_OFFSET);
+            if (next > frames.limit()) break;
+            whole = next;
+        }
+        if (whole == 0) {
+            int length = FrameCodec.HEADER_SIZE + frames.getInt(FrameCodec.LENGTH_OFFSET);
+            if (length > region.end - region.position) throw new IOException("Message log truncated");
+            frames = readFully(region.file, region.position, ByteBuffer.allocate(length));
+            whole = length;
+        }
+        region.position += whole;
+        frames.limit(whole);
+        return compression != null ? compress(frames) : frames;
+    }
+
+    private static ByteBuffer readFully(FileChannel file, long position, ByteBuffer into) throws IOException {
+        while (into.hasRemaining()) {
+            if (file.read(into, position + into.position()) < 0) throw new IOException("Message log truncated");
+        }
+        return into.flip();
+    }
+
+    // Returns true once the body of the current file chunk has been handed to the socket
+    private boolean transferChunk() throws IOException {
+        if (chunk == null) return true;
+        long written = chunk.file.transferTo(chunk.position, chunk.end - chunk.position, channel);
+        metrics.onWrite(written);
+        chunk.position += written;
+        if (chunk.position < chunk.end) return false;
+        chunk = null;
+        if (chunkOf.position == chunkOf.end) chunkOf.close();
+        chunkOf = null;
+        return true;
+    }
+
+    // With nothing else queued, start the next chunk of the first download and send that download to
+    // the back of the line. The header goes out through writeBuffer and the body straight from the file
+    // with transferTo; under TLS the body is read into `oversized` instead. False when nothing is left.
+    private boolean nextChunk() throws IOException {
+        Download download = downloads.poll();
+        if (download == null) return false;
+        int length = (int) Math.min(FileTransfers.CHUNK_SIZE, download.end - download.position);
+        if (writeBuffer == null) writeBuffer = pool.acquire(WRITE_BUFFER_SIZE);
+        writeBuffer.clear().put(ChatFrame.CHUNK).put((byte) 0).putInt(download.transfer).putInt(length).flip();
+        if (tls == null) {
+            chunk = new FileRegion(download.file, download.position, download.position + length);
+            chunkOf = download;
+        } else {
+            ByteBuffer body = ByteBuffer.allocate(length);
+            while (body.hasRemaining()) {
+                if (download.file.read(body, download.position + body.position()) < 0) {
+                    throw new IOException("File shrank during download");
+                }
+            }
+            oversized = body.flip();
+        }
+        download.position += length;
+        if (download.position < download.end) {
+            downloads.add(download);
+        } else if (tls != null) {
+            download.close();
+        }
+        return true;
+    }
+
+    // Copy as many whole queued messages as fit into writeBuffer, plus the next one as oversized;
+    // returns false when nothing is left
+    private boolean fillWriteBuffer() {
+        ByteBuffer next = pollOutbound();
+        if (next == null) {
+            // A probed message that was dropped instead of written would otherwise block sampling
+            waitProbe.set(null);
+            pool.release(writeBuffer);
+            writeBuffer = null;
+            return false;
+        }
+
+        if (writeBuffer == null) writeBuffer = pool.acquire(WRITE_BUFFER_SIZE);
+        writeBuffer.clear();
+        while (next != null) {
+            if (next.remaining() > writeBuffer.remaining()) {
+                oversized = next;
+                break;
+            }
+            writeBuffer.put(next);
+            next = pollOutbound();
+        }
+        writeBuffer.flip();
+        return writeBuffer.hasRemaining() || oversized != null;
+    }
+
+    private ByteBuffer pollOutbound() {
+        ByteBuffer next = outbound.poll();
+        if (next != null) {
+            metrics.onMessageWritten();
+            WaitProbe probe = waitProbe.get();
+            if (probe != null && probe.message == next) {
+                metrics.onQueueWait(System.nanoTime() - probe.enqueuedAt);
+                waitProbe.set(null);
+            }
+            if (compression != null) next = compress(next);
+        }
+        return next;
+    }
+
+    // Frames are compressed as the writer takes them, not when queued, so broadcasts still share one
+    // encoding and this connection's stream sees them in the order they are written
+    private ByteBuffer compress(ByteBuffer frames) {
+        long raw = compression.rawBytes();
+        long wire = compression.wireBytes();
+        long start = System.nanoTime();
+        ByteBuffer compressed = compression.compress(frames);
+        if (compressed != frames) {
+            metrics.onCompress(compression.rawBytes() - raw, compression.wireBytes() - wire, System.nanoTime() - start);
+        }
+        return compressed;
+    }
+
+    // Returns true only for the first caller so the disconnect hook fires once
+    boolean markClosed() {
+        if (!closed.compareAndSet(false, true)) return false;
+        try {
+            if (key != null) key.cancel();
+            if (tls != null) tls.close();
+            channel.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+        outbound.clear();
+        oversized = null;
+        regions.clear();
+        replayBuffer = null;
+        replayChunk = null;
+        confirming = null;
+        for (Confirmed send : confirmed) send.written.accept(false);
+        confirmed.clear();
+        chunk = null;
+        if (chunkOf != null) chunkOf.close();
+        for (Download download : downloads) download.close();
+        downloads.clear();
+        if (!reading) releaseBuffers();
+        return true;
+    }
+
+    private void releaseBuffers() {
+        pool.release(readBuffer);
+        pool.release(writeBuffer);
+        readBuffer = null;
+        writeBuffer = null;
+        if (compression != null) compression.end();
+    }
+
+    private record WaitProbe(ByteBuffer message, long enqueuedAt) {
+    }
+
+    private static final class FileRegion {
+        final FileChannel file;
+        final long end;
+        long position;
+
+        FileRegion(FileChannel file, long position, long end) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    private record Confirmed(ArrayDeque<ByteBuffer> messages, Consumer<Boolean> written) {
+    }
+
+    private static final class Download {
+        final int transfer;
+        final FileChannel file;
+        final long end;
+        long position;
+
+        Download(int transfer, FileChannel file, long position, long end) {
+            this.transfer = transfer;
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Ignore cleanup errors
+            }
+        }
+    }
+
+    private static String describe(SocketChannel channel) {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            if (address instanceof InetSocketAddress inet) {
+                return inet.getAddress().getHostAddress();
+            }
+            return String.valueOf(address);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
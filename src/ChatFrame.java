@@ -0,0 +1,101 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One decoded protocol message. Readers reuse a single instance, and the payload is a view into
+// the read buffer, so both are only valid until the listener callback returns.
+public class ChatFrame {
+    // Client -> server: a nonzero seq is the client's id for the message, which the server answers in
+    // an ACK and uses to drop a resend it already has (DedupWindow)
+    public static final byte TEXT = 1;
+    public static final byte EXIT = 2;
+    // Client -> server: subscribe, first replaying every message after the sequence number in the header.
+    // An optional payload names the client instance, so a client that does not log in keeps its message
+    // ids across reconnects.
+    // Server -> client: replay done, live messages follow the sequence number in the header.
+    public static final byte REPLAY = 3;
+    // Client -> server: log in under the username in the payload, optionally followed on a second line
+    // by the session token of an earlier login, which takes the name over from that login's connection.
+    // Server -> client: the accepted name and its session token on a second line, or with REJECTED set,
+    // why it was refused.
+    public static final byte LOGIN = 4;
+    // Server -> client: "name=state" lines (online, away, offline). With ROSTER set the lines are
+    // everyone online, replacing what the client knew; otherwise they are changes since the last batch.
+    public static final byte PRESENCE = 5;
+
+    // Either direction: turn on per-connection compression (FrameCompression). The server answers with
+    // COMPRESS, or with REJECTED set when compression is off; only after that answer may the client
+    // send compressed frames.
+    public static final byte COMPRESS = 6;
+
+    // Either direction: are you there? The peer answers PONG with the same sequence number. The server
+    // pings binary clients that have been silent for a while (HeartbeatPolicy).
+    public static final byte PING = 7;
+    public static final byte PONG = 8;
+
+    // Either direction: a file transfer request or reply, "put", "get", "ack" or "done" and its fields
+    // on separate lines (see FileTransfers), for the transfer the client numbered in seq. With REJECTED
+    // set the payload says why the transfer failed.
+    public static final byte FILE = 9;
+    // Either direction: the next piece of the file for the transfer numbered in seq
+    public static final byte CHUNK = 10;
+    // Server -> client: the ids of the client's TEXT frames the server has taken, as 4-byte ints; one
+    // frame covers every message from the same read. With REJECTED set, the ids of messages dropped
+    // over the rate limit, which the client should not resend.
+    public static final byte ACK = 11;
+
+    public static final byte REJECTED = 1;
+    public static final byte ROSTER = 1;
+    // Flag bit on any frame type: the payload is compressed. Readers inflate and clear it.
+    public static final byte COMPRESSED = (byte) 0x80;
+
+    private byte type;
+    private byte flags;
+    private int seq;
+    private ByteBuffer payload;
+
+    void set(byte type, byte flags, int seq, ByteBuffer payload) {
+        this.type = type;
+        this.flags = flags;
+        this.seq = seq;
+        this.payload = payload;
+    }
+
+    // Swap a COMPRESSED payload for its inflated bytes, which live until the next inflate
+    void inflate(FrameCompression compression) throws ProtocolException {
+        payload = compression.inflate(payload);
+        flags &= ~COMPRESSED;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public byte flags() {
+        return flags;
+    }
+
+    public int seq() {
+        return seq;
+    }
+
+    // Read-only view of the UTF-8 payload
+    public ByteBuffer payload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    public int payloadLength() {
+        return payload.remaining();
+    }
+
+    // Decodes the payload; only call this when a String is actually needed
+    public String text() {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+                    StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
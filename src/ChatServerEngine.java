@@ -0,0 +1,964 @@
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking chat server: one acceptor thread hands channels to a fixed set of selector loops, and
+// each connection stays on its loop for life. A broadcast is handed once to every loop with
+// subscribers through that loop's single-producer inbox, and the loop fans it out to its own
+// connections. Room, direct and presence messages sent from a loop go to each recipient's loop
+// through an inbox kept for that pair of loops, so per-connection queues and flushes are only ever
+// touched by their own core and no lock is taken on the way.
+public final class ChatServerEngine {
+    // How long a silent client gets to send the binary preamble before it is treated as a text client
+    static final long NEGOTIATION_TIMEOUT_MS = 250;
+    // How long a TLS client gets to complete the handshake
+    static final long TLS_HANDSHAKE_TIMEOUT_MS = 10_000;
+    // Client instance ids key dedup windows after this prefix, which no username can contain
+    private static final String CLIENT_KEY_PREFIX = "#";
+    private static final int MAX_CLIENT_ID = 64;
+
+    // Hooks the views (GUI, console) plug into; called on event loop threads
+    public interface Listener {
+        void onConnect(ChatConnection connection);
+
+        // frame and its payload are only valid for the duration of the call
+        void onMessage(ChatConnection connection, ChatFrame frame);
+
+        void onDisconnect(ChatConnection connection);
+
+        // The connection logged in; getUsername() is set
+        default void onLogin(ChatConnection connection) {
+        }
+
+        // The connection finished uploading a file, which anyone can now fetch by id
+        default void onFileShared(ChatConnection connection, String id, String name, long size) {
+        }
+    }
+
+    private final int port;
+    private final int loopCount;
+    private final Listener listener;
+    private final Broadcaster everyone = new Broadcaster();
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final RoomIndex rooms = new RoomIndex();
+    private final UserRegistry users = new UserRegistry(this);
+    private final AtomicLong nextConnectionId = new AtomicLong(1);
+    // Ready connections, including binary ones that have not subscribed yet
+    private final AtomicInteger readyConnections = new AtomicInteger();
+    private int outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.fromProperty();
+    private FlushPolicy flushPolicy = FlushPolicy.fromProperties();
+    private HeartbeatPolicy heartbeatPolicy = HeartbeatPolicy.fromProperties();
+    private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.fromProperties();
+    private MessageLog messageLog;
+    private SearchIndex searchIndex;
+    private FileTransfers files;
+    private Mailboxes mailboxes;
+    private final DedupWindow.Senders senders = new DedupWindow.Senders();
+    private SSLContext tlsContext;
+    private ClusterConfig clusterConfig;
+    private volatile ClusterNode cluster;
+    // Sequencing, the replay ring and fan-out happen under one lock so every client sees broadcasts
+    // in seq order and a resuming client is caught up and subscribed without missing one in between
+    private final Object broadcastLock = new Object();
+    private final ReplayBuffer replayBuffer = new ReplayBuffer(ReplayBuffer.DEFAULT_CAPACITY);
+    private int lastSeq;
+    // Under broadcastLock, which also serializes the producers of every loop's inbox: the loops that
+    // have had a subscriber, and how many broadcasts have been handed to them
+    private final List<EventLoop> deliveryLoops = new ArrayList<>();
+    private long published;
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    // -Dchat.loops sets the number of event loops, one per core by default
+    public ChatServerEngine(int port, Listener listener) {
+        this(port, Integer.getInteger("chat.loops", Runtime.getRuntime().availableProcessors()), listener);
+    }
+
+    public ChatServerEngine(int port, int loopCount, Listener listener) {
+        this.port = port;
+        this.loopCount = Math.max(1, loopCount);
+        this.listener = listener;
+        rooms.onRoomsChanged(this::clusterChanged);
+    }
+
+    // Per-recipient outbound bound and what happens when a client cannot keep up; set before start()
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy, int capacity) {
+        this.slowConsumerPolicy = policy;
+        this.outboundCapacity = capacity;
+    }
+
+    // How long writers wait to batch queued messages, and the TCP_NODELAY default; set before start()
+    public void setFlushPolicy(FlushPolicy policy) {
+        this.flushPolicy = policy;
+    }
+
+    // When idle binary clients are pinged and reaped, and text clients probed; set before start()
+    public void setHeartbeatPolicy(HeartbeatPolicy policy) {
+        this.heartbeatPolicy = policy;
+    }
+
+    // Per-connection and per-user inbound budgets and what happens past them; set before start()
+    public void setRateLimitPolicy(RateLimitPolicy policy) {
+        this.rateLimitPolicy = policy;
+    }
+
+    RateLimitPolicy rateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    // Persist every broadcast and replay from it what the in-memory ring no longer holds; set before start()
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    // Index every logged broadcast for full-text search; needs the message log. Set before start().
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    // Hold direct messages for users who are offline and deliver them when they log in; set before start()
+    public void setMailboxes(Mailboxes mailboxes) {
+        this.mailboxes = mailboxes;
+    }
+
+    // Let binary clients upload files into this spool directory and download them from it; set before start()
+    public void setFileSpool(Path directory) throws IOException {
+        this.files = new FileTransfers(this, directory, FileTransfers.DEFAULT_MAX_BYTES);
+    }
+
+    void onFileShared(ChatConnection connection, String id, String name, long size) {
+        listener.onFileShared(connection, id, name, size);
+    }
+
+    // Accept TLS connections only, with this context's key and session cache; set before start()
+    public void setTls(SSLContext context) {
+        this.tlsContext = context;
+    }
+
+    public boolean isSecure() {
+        return tlsContext != null;
+    }
+
+    // Link up with the other nodes of a cluster and route messages between them; set before start()
+    public void setCluster(ClusterConfig config) {
+        this.clusterConfig = config;
+    }
+
+    // Null unless running in a cluster
+    public ClusterNode cluster() {
+        return cluster;
+    }
+
+    public void start() throws IOException {
+        lastSeq = messageLog != null ? messageLog.lastSeq() : 0;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        try {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        running = true;
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        if (clusterConfig != null) {
+            cluster = new ClusterNode(this, clusterConfig);
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                cluster = null;
+                stop();
+                throw e;
+            }
+        }
+
+        acceptThread = new Thread(this::acceptLoop, "ServerAcceptThread");
+        acceptThread.start();
+        registerMBean();
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public RoomIndex rooms() {
+        return rooms;
+    }
+
+    public UserRegistry users() {
+        return users;
+    }
+
+    private ObjectName mbeanName() throws MalformedObjectNameException {
+        return new ObjectName("chat:type=ChatServer,port=" + port);
+    }
+
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbeanName());
+        } catch (JMException e) {
+            System.out.println("Metrics MBean not registered: " + e.getMessage());
+        }
+    }
+
+    private void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName());
+        } catch (JMException e) {
+            // Ignore cleanup errors
+        }
+    }
+
+    public void stop() {
+        if (!running) return;
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+        if (cluster != null) cluster.stop();
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        unregisterMBean();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int connectionCount() {
+        return readyConnections.get();
+    }
+
+    public Collection<ChatConnection> getConnections() {
+        return everyone.members();
+    }
+
+    public void broadcast(String message) {
+        broadcast(message, null);
+    }
+
+    // Relay to every client but the sender, and to every other cluster node with subscribers
+    public void broadcast(String message, ChatConnection except) {
+        publish(message, except);
+        ClusterNode node = cluster;
+        if (node != null) node.forwardBroadcast(message);
+    }
+
+    // A broadcast relayed from another node, for the clients here only
+    void deliverBroadcast(String message) {
+        publish(message, null);
+    }
+
+    // Each broadcast gets the next sequence number, which binary clients see in the frame header and
+    // hand back on reconnect; with a message log the message is persisted first and the log assigns
+    // the number. Every node numbers its own stream, including what other nodes relay to it.
+    private void publish(String message, ChatConnection except) {
+        long start = System.nanoTime();
+        synchronized (broadcastLock) {
+            int seq = lastSeq + 1;
+            if (messageLog != null) {
+                try {
+                    seq = messageLog.append(ChatFrame.TEXT, message);
+                    if (searchIndex != null) searchIndex.add(seq, message);
+                } catch (IOException e) {
+                    System.out.println("Message log append failed: " + e.getMessage());
+                    seq = 0;
+                }
+            }
+            ByteBuffer frame = FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, seq, message).asReadOnlyBuffer();
+            if (seq != 0) {
+                lastSeq = seq;
+                replayBuffer.add(seq, frame);
+            }
+            Delivery delivery = new Delivery(++published, frame,
+                    ChatConnection.encodeLine(message).asReadOnlyBuffer(), except);
+            for (EventLoop loop : deliveryLoops) loop.deliver(delivery);
+        }
+        metrics.onBroadcast(System.nanoTime() - start);
+    }
+
+    // Deliver to every member of room but the sender, here and on any other node where the room has
+    // members. Returns how many members it has here, or -1 if it has none anywhere.
+    public int publishToRoom(String room, String message, ChatConnection except) {
+        int members = rooms.publish(room, message, except);
+        ClusterNode node = cluster;
+        int nodes = node != null ? node.forwardRoom(room, message) : 0;
+        return members < 0 && nodes == 0 ? -1 : Math.max(0, members);
+    }
+
+    // Send to the user logged in as `to`, here or on another node; false if they are not online
+    public boolean sendDirect(String to, String message) {
+        ChatConnection target = users.find(to);
+        if (target != null) {
+            ByteBuffer bytes = target.isBinary()
+                    ? FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, 0, message) : ChatConnection.encodeLine(message);
+            EventLoop here = currentLoop();
+            if (here == null) {
+                target.enqueue(bytes);
+            } else {
+                here.route(target, bytes);
+                here.endRouting();
+            }
+            return true;
+        }
+        ClusterNode node = cluster;
+        return node != null && node.forwardDirect(to, message);
+    }
+
+    // For a `to` that sendDirect() could not reach: keep the message in their mailbox until they log
+    // in here. False when there are no mailboxes or it could not be taken.
+    public boolean holdForLater(ChatConnection from, String to, String message) {
+        return mailboxes != null && mailboxes.hold(from, to, message);
+    }
+
+    // Taken on another node, as far as gossip has told this one
+    boolean isLoggedInElsewhere(String name) {
+        ClusterNode node = cluster;
+        return node != null && node.hasUser(name);
+    }
+
+    boolean hasSubscribers() {
+        return everyone.size() > 0;
+    }
+
+    // Rooms, users or subscribers here changed; the other nodes hear about it shortly
+    void clusterChanged() {
+        ClusterNode node = cluster;
+        if (node != null) node.changed();
+    }
+
+    FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    HeartbeatPolicy heartbeatPolicy() {
+        return heartbeatPolicy;
+    }
+
+    // Engine-level control frames are handled here; everything else goes to the listener
+    private final Listener dispatcher = new Listener() {
+        @Override
+        public void onConnect(ChatConnection connection) {
+            listener.onConnect(connection);
+        }
+
+        @Override
+        public void onMessage(ChatConnection connection, ChatFrame frame) {
+            // Binary clients log in before subscribing, so the handshake settles before any replay
+            if (frame.type() == ChatFrame.LOGIN) {
+                // "name", or "name\ntoken" to take over the session of an earlier login
+                String[] fields = frame.text().split("\n", 2);
+                login(connection, fields[0], fields.length > 1 ? fields[1] : null);
+                return;
+            }
+            if (frame.type() == ChatFrame.PONG) {
+                long rtt = connection.onPong(frame.seq());
+                if (rtt >= 0) metrics.onHeartbeatRtt(rtt);
+                return;
+            }
+            if (frame.type() == ChatFrame.PING) {
+                connection.enqueue(FrameCodec.encodeControl(ChatFrame.PONG, frame.seq()));
+                return;
+            }
+            if (frame.type() == ChatFrame.COMPRESS) {
+                boolean enabled = FrameCompression.ENABLED && connection.enableCompression();
+                connection.enqueue(FrameCodec.encodeText(ChatFrame.COMPRESS, enabled ? 0 : ChatFrame.REJECTED, 0, ""));
+                return;
+            }
+            if (frame.type() == ChatFrame.FILE || frame.type() == ChatFrame.CHUNK) {
+                if (files != null) {
+                    files.onFrame(connection, frame);
+                } else {
+                    connection.enqueue(FrameCodec.encodeText(ChatFrame.FILE, ChatFrame.REJECTED, frame.seq(),
+                            "File transfer is turned off"));
+                }
+                return;
+            }
+            if (!connection.subscribed) {
+                boolean replay = frame.type() == ChatFrame.REPLAY;
+                // A client that stays anonymous is known by the instance id it subscribes with
+                if (replay && connection.dedupKey == null && frame.payloadLength() > 0
+                        && frame.payloadLength() <= MAX_CLIENT_ID) {
+                    useSenderWindow(connection, CLIENT_KEY_PREFIX + frame.text());
+                }
+                subscribe(connection, replay ? frame.seq() : 0);
+            }
+            if (frame.type() == ChatFrame.REPLAY) return;
+            // A client message id: a resend of a message already taken is acknowledged again but
+            // not delivered twice
+            int id = frame.type() == ChatFrame.TEXT ? frame.seq() : 0;
+            if (id != 0) {
+                if (connection.dedup == null) connection.dedup = new DedupWindow();
+                boolean first;
+                synchronized (connection.dedup) {
+                    first = connection.dedup.firstTime(id);
+                }
+                if (!first) {
+                    metrics.onDuplicate();
+                    connection.acknowledge(id);
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            listener.onMessage(connection, frame);
+            metrics.onDispatch(System.nanoTime() - start);
+            if (id != 0) connection.acknowledge(id);
+        }
+
+        @Override
+        public void onDisconnect(ChatConnection connection) {
+            listener.onDisconnect(connection);
+        }
+    };
+
+    // Start delivering broadcasts. A binary client that has seen up to afterSeq first gets what it
+    // missed, from the replay ring when it still holds all of it and from the message log otherwise,
+    // then a REPLAY frame carrying the current seq so it knows where the live stream picks up.
+    private void subscribe(ChatConnection connection, int afterSeq) {
+        synchronized (broadcastLock) {
+            if (connection.isBinary()) {
+                if (afterSeq > 0 && afterSeq < lastSeq) {
+                    ByteBuffer missed = replayBuffer.covers(afterSeq) ? replayBuffer.framesAfter(afterSeq) : null;
+                    if (missed != null) {
+                        connection.enqueue(missed);
+                    } else if (messageLog != null) {
+                        try {
+                            connection.sendRegions(messageLog.regionsFrom(afterSeq + 1));
+                        } catch (IOException e) {
+                            System.out.println("Replay failed: " + e.getMessage());
+                        }
+                    }
+                }
+                connection.enqueue(FrameCodec.encodeControl(ChatFrame.REPLAY, lastSeq));
+            }
+            connection.subscribed = true;
+            connection.subscribedAfter = published;
+            EventLoop loop = connection.loop();
+            if (loop.addSubscriber(connection)) deliveryLoops.add(loop);
+            everyone.join(connection);
+        }
+        clusterChanged();
+    }
+
+    // Take up the sender's dedup window, handing back the one the connection had under another key
+    private void useSenderWindow(ChatConnection connection, String key) {
+        if (connection.dedupKey != null) senders.release(connection.dedupKey, connection.dedup);
+        connection.dedupKey = key;
+        connection.dedup = senders.windowFor(key);
+    }
+
+    // Register the connection under name and reply in its protocol: the accepted name and session token
+    // (then the roster of who is online) or why it was refused. Returns false when refused.
+    public boolean login(ChatConnection connection, String name) {
+        return login(connection, name, null);
+    }
+
+    boolean login(ChatConnection connection, String name, String token) {
+        String refused = users.login(connection, name, token);
+        if (connection.isBinary()) {
+            connection.enqueue(FrameCodec.encodeText(ChatFrame.LOGIN, refused == null ? 0 : ChatFrame.REJECTED, 0,
+                    refused == null ? name + "\n" + connection.sessionToken : refused));
+        } else {
+            connection.send(refused == null ? "Logged in as " + name : refused);
+        }
+        if (refused != null) return false;
+        useSenderWindow(connection, UserRegistry.key(name));
+        users.sendRoster(connection);
+        listener.onLogin(connection);
+        if (mailboxes != null) mailboxes.deliver(connection);
+        return true;
+    }
+
+    // The same client logged in again on a new connection before the old one was noticed closing: the new
+    // one joins the old one's rooms and the old one is closed. The message-id window follows the name.
+    void takeOver(ChatConnection previous, ChatConnection connection) {
+        for (String room : Set.copyOf(rooms.roomsOf(previous))) rooms.join(room, connection);
+        previous.close();
+    }
+
+    // Run task on the first event loop after delayMillis; safe from any thread. Before start() or
+    // after stop() it runs at once.
+    void schedule(Runnable task, long delayMillis) {
+        EventLoop[] current = loops;
+        if (!running || current == null) {
+            task.run();
+            return;
+        }
+        EventLoop loop = current[0];
+        loop.execute(() -> loop.schedule(task, delayMillis));
+    }
+
+    // The loop whose thread this is, or null off the loops (cluster links, the GUI, before start())
+    private EventLoop currentLoop() {
+        EventLoop[] current = loops;
+        if (current == null) return null;
+        Thread thread = Thread.currentThread();
+        for (EventLoop loop : current) {
+            if (loop.thread == thread) return loop;
+        }
+        return null;
+    }
+
+    public void closeAll() {
+        for (ChatConnection connection : everyone.members()) {
+            connection.close();
+        }
+    }
+
+    // Send every client the exit control and close each once its queue has drained
+    public void disconnectAll() {
+        for (ChatConnection connection : everyone.members()) {
+            connection.shutdown();
+        }
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                metrics.onAccept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, flushPolicy.noDelay());
+
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                ChatConnection connection = new ChatConnection(nextConnectionId.getAndIncrement(), channel, loop,
+                        new OutboundQueue(outboundCapacity, slowConsumerPolicy));
+                if (tlsContext != null) {
+                    try {
+                        connection.useTls(tlsContext);
+                    } catch (SSLException e) {
+                        connection.markClosed();
+                        throw e;
+                    }
+                }
+                loop.execute(() -> loop.register(connection));
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // A selector thread owning a subset of the connections; all channel I/O happens here
+    final class EventLoop implements Runnable {
+        // Heartbeat wheel size; with the default 100 ms tick one revolution covers 51 s
+        private static final int WHEEL_SLOTS = 512;
+
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        private final Thread thread;
+        private long timerSequence;
+        // Every binary connection's heartbeat, ticked by a single timer while any are pending
+        private final HeartbeatPolicy heartbeats = heartbeatPolicy;
+        private final TimingWheel<ChatConnection> wheel =
+                new TimingWheel<>(heartbeats.tickMs() * 1_000_000L, WHEEL_SLOTS, System.nanoTime());
+        private final Runnable tickWheel = this::tickWheel;
+        private boolean wheelTicking;
+        // Broadcasts for this loop's subscribers, and the subscribers; offered under broadcastLock,
+        // everything else on the loop thread. `selecting` is set while the loop may block in select,
+        // so a producer only pays for a wakeup then.
+        private final SpscQueue<Delivery> inbox = new SpscQueue<>();
+        private final ArrayList<ChatConnection> subscribers = new ArrayList<>();
+        private final ArrayList<ChatConnection> delivered = new ArrayList<>();
+        private volatile boolean selecting;
+        private boolean receivesBroadcasts;
+        // Room, direct and presence messages for this loop's connections, one inbox per loop sending
+        // them so each has a single producer. routedTo and routed are the sending side, on the loop
+        // thread: the loops this one has offered to since it last woke them.
+        private final List<SpscQueue<Routed>> routes = new ArrayList<>();
+        private final boolean[] routedTo = new boolean[loopCount];
+        private final ArrayList<EventLoop> routed = new ArrayList<>();
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            for (int i = 0; i < loopCount; i++) routes.add(new SpscQueue<>());
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "ServerEventLoop-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+                return;
+            }
+            submit(task);
+        }
+
+        // Always queue, even from the loop thread, so the task runs after the current event unwinds
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Run task on this loop after delayMillis; must be called on the loop thread
+        void schedule(Runnable task, long delayMillis) {
+            timers.add(new Timer(System.nanoTime() + delayMillis * 1_000_000L, timerSequence++, task));
+        }
+
+        // Hand a broadcast to this loop; called under broadcastLock. On the loop's own thread it goes
+        // straight out, after anything still in the inbox.
+        void deliver(Delivery delivery) {
+            if (Thread.currentThread() == thread) {
+                drainInbox();
+                fanOut(delivery);
+                flushDelivered();
+                return;
+            }
+            inbox.offer(delivery);
+            if (selecting) selector.wakeup();
+        }
+
+        // The loop of this engine running on the calling thread, or null
+        EventLoop current() {
+            return currentLoop();
+        }
+
+        // Queue bytes for a connection on any loop; on this loop's thread only. Nothing is written and
+        // no loop woken until endRouting, so a room fan-out costs one wakeup per loop it reaches.
+        void route(ChatConnection target, ByteBuffer bytes) {
+            EventLoop to = target.loop();
+            if (to == this) {
+                queueDelivery(target, bytes);
+                return;
+            }
+            to.routes.get(index).offer(new Routed(target, bytes));
+            if (!routedTo[to.index]) {
+                routedTo[to.index] = true;
+                routed.add(to);
+            }
+        }
+
+        void endRouting() {
+            flushDelivered();
+            for (int i = 0; i < routed.size(); i++) {
+                EventLoop to = routed.get(i);
+                routedTo[to.index] = false;
+                if (to.selecting) to.selector.wakeup();
+            }
+            routed.clear();
+        }
+
+        // Called on the loop thread under broadcastLock; true the first time, when the loop has to be
+        // added to the ones broadcasts go to
+        boolean addSubscriber(ChatConnection connection) {
+            connection.subscriberSlot = subscribers.size();
+            subscribers.add(connection);
+            if (receivesBroadcasts) return false;
+            receivesBroadcasts = true;
+            return true;
+        }
+
+        private void removeSubscriber(ChatConnection connection) {
+            int slot = connection.subscriberSlot;
+            if (slot < 0) return;
+            ChatConnection last = subscribers.remove(subscribers.size() - 1);
+            if (last != connection) {
+                subscribers.set(slot, last);
+                last.subscriberSlot = slot;
+            }
+            connection.subscriberSlot = -1;
+        }
+
+        private void drainInbox() {
+            Delivery delivery;
+            while ((delivery = inbox.poll()) != null) fanOut(delivery);
+        }
+
+        private void drainRoutes() {
+            for (int i = 0; i < routes.size(); i++) {
+                SpscQueue<Routed> route = routes.get(i);
+                Routed message;
+                while ((message = route.poll()) != null) queueDelivery(message.target(), message.bytes());
+            }
+        }
+
+        // Consumer side of every inbox
+        private boolean inboxesEmpty() {
+            if (!inbox.isEmpty()) return false;
+            for (int i = 0; i < routes.size(); i++) {
+                if (!routes.get(i).isEmpty()) return false;
+            }
+            return true;
+        }
+
+        // Queue the broadcast for every subscriber here; writes wait for flushDelivered so a batch of
+        // broadcasts drained together goes out in one write per connection
+        private void fanOut(Delivery delivery) {
+            for (int i = 0, n = subscribers.size(); i < n; i++) {
+                ChatConnection member = subscribers.get(i);
+                if (member == delivery.except() || member.subscribedAfter >= delivery.ordinal()) continue;
+                ByteBuffer bytes = member.isBinary() ? delivery.frame() : delivery.line();
+                queueDelivery(member, bytes.duplicate());
+            }
+        }
+
+        private void queueDelivery(ChatConnection member, ByteBuffer bytes) {
+            if (member.offer(bytes) && !member.deliveryPending) {
+                member.deliveryPending = true;
+                delivered.add(member);
+            }
+        }
+
+        private void flushDelivered() {
+            for (int i = 0; i < delivered.size(); i++) {
+                ChatConnection member = delivered.get(i);
+                member.deliveryPending = false;
+                member.scheduleFlush();
+            }
+            delivered.clear();
+        }
+
+        void register(ChatConnection connection) {
+            try {
+                SelectionKey key = connection.channel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+                awaitProtocol(connection);
+            } catch (IOException e) {
+                connection.markClosed();
+            }
+        }
+
+        void awaitProtocol(ChatConnection connection) {
+            awaitProtocol(connection, NEGOTIATION_TIMEOUT_MS);
+        }
+
+        void awaitProtocol(ChatConnection connection, long delayMillis) {
+            schedule(connection::negotiationTimedOut, delayMillis);
+        }
+
+        // Read again without waiting for the selector, e.g. once a TLS handshake task has finished
+        void resumeRead(ChatConnection connection) {
+            if (!connection.isOpen()) return;
+            try {
+                if (!connection.read(dispatcher)) closeConnection(connection);
+            } catch (IOException e) {
+                closeConnection(connection);
+            }
+        }
+
+        // The client's protocol is known. Text clients receive broadcasts from here on; binary clients
+        // subscribe with their first frame, normally a REPLAY naming the last seq they saw.
+        void connectionReady(ChatConnection connection) {
+            connection.ready = true;
+            readyConnections.incrementAndGet();
+            if (heartbeats.enabled()) {
+                if (connection.isBinary()) {
+                    watchHeartbeat(connection);
+                } else {
+                    connection.enableKeepAlive(heartbeats);
+                }
+            }
+            if (!connection.isBinary()) subscribe(connection, 0);
+            dispatcher.onConnect(connection);
+        }
+
+        void closeConnection(ChatConnection connection) {
+            long dropped = connection.droppedMessages();
+            if (!connection.markClosed()) return;
+            if (connection.heartbeat != null) wheel.cancel(connection.heartbeat);
+            metrics.onClose(dropped);
+            rooms.leaveAll(connection);
+            if (connection.dedupKey != null) senders.release(connection.dedupKey, connection.dedup);
+            users.logout(connection);
+            if (files != null) files.onClose(connection);
+            if (connection.ready) {
+                readyConnections.decrementAndGet();
+                removeSubscriber(connection);
+                everyone.leave(connection);
+                clusterChanged();
+                dispatcher.onDisconnect(connection);
+            }
+        }
+
+        private void watchHeartbeat(ChatConnection connection) {
+            connection.heartbeat = new TimingWheel.Timeout<>(connection);
+            wheel.schedule(connection.heartbeat, System.nanoTime(), heartbeats.intervalNanos());
+            if (!wheelTicking) {
+                wheelTicking = true;
+                schedule(tickWheel, heartbeats.tickMs());
+            }
+        }
+
+        // Expired heartbeats either ping, re-arm or reap; the wheel costs O(1) per expiry, not per connection
+        private void tickWheel() {
+            long now = System.nanoTime();
+            wheel.advance(now, connection -> {
+                long next = connection.heartbeatDue(now, heartbeats);
+                if (next >= 0) {
+                    wheel.schedule(connection.heartbeat, now, next);
+                } else {
+                    metrics.onReaped();
+                    closeConnection(connection);
+                }
+            });
+            wheelTicking = !wheel.isEmpty();
+            if (wheelTicking) schedule(tickWheel, heartbeats.tickMs());
+        }
+
+        ServerMetrics metrics() {
+            return metrics;
+        }
+
+        FlushPolicy flushPolicy() {
+            return flushPolicy;
+        }
+
+        RateLimitPolicy rateLimits() {
+            return rateLimitPolicy;
+        }
+
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof ChatConnection connection) {
+                        closeConnection(connection);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Ignore cleanup errors
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    long timeout = nextTimerDelayMillis();
+                    // Set before looking at the inboxes, so a message offered after the look sees it
+                    selecting = true;
+                    boolean idle = inboxesEmpty();
+                    if (timeout < 0 && idle) {
+                        selector.select();
+                    } else if (timeout == 0 || !idle) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(timeout);
+                    }
+                    selecting = false;
+                    runTasks();
+                    drainInbox();
+                    drainRoutes();
+                    flushDelivered();
+                    runTimers();
+                    if (!selector.isOpen()) break;
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ChatConnection connection = (ChatConnection) key.attachment();
+                        if (!key.isValid()) continue;
+
+                        try {
+                            if (key.isReadable() && !connection.read(dispatcher)) {
+                                closeConnection(connection);
+                                continue;
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException e) {
+                            closeConnection(connection);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // Selector closed during shutdown
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        // -1 when no timer is pending, otherwise milliseconds until the next one (0 if due)
+        private long nextTimerDelayMillis() {
+            Timer next = timers.peek();
+            if (next == null) return -1;
+            long nanos = next.deadline - System.nanoTime();
+            return nanos <= 0 ? 0 : Math.max(1, nanos / 1_000_000L);
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            Timer next;
+            while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+                timers.poll().task.run();
+            }
+        }
+    }
+
+    // One broadcast on its way to a loop: the frame for binary subscribers, the line for text ones,
+    // and the publish ordinal that tells the loop whether a subscriber joined before it
+    record Delivery(long ordinal, ByteBuffer frame, ByteBuffer line, ChatConnection except) {
+    }
+
+    // A room, direct or presence message on its way from one loop to a connection on another
+    record Routed(ChatConnection target, ByteBuffer bytes) {
+    }
+
+    private record Timer(long deadline, long sequence, Runnable task) implements Comparable<Timer> {
+        @Override
+        public int compareTo(Timer other) {
+            int byDeadline = Long.compare(deadline - other.deadline, 0);
+            return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -2,26 +2,30 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.*;
+import java.io.IOException;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class ChatServerGUI extends JFrame {
-    private JTextArea chatArea;
+    private static final int SEARCH_HITS = 20;
+
+    private TranscriptView chatView;
+    private ChatTranscript transcript;
     private JTextField messageField;
     private JTextField portField;
     private JButton startServerButton;
     private JButton sendButton;
     private JLabel statusLabel;
-
-    private ServerSocket serverSocket;
-    private Socket clientSocket;
-    private BufferedReader bufferedReader;
-    private PrintWriter printWriter;
-    private boolean isServerRunning = false;
+    private ServerStatsPanel statsPanel;
+
+    private ChatServerEngine engine;
+    private MessageLog messageLog;
+    private SearchIndex searchIndex;
+    private Mailboxes mailboxes;
+    private MetricsEndpoint metricsEndpoint;
+    private volatile boolean isServerRunning = false;
     private int currentPort;
 
     public ChatServerGUI() {
@@ -31,17 +35,17 @@ public class ChatServerGUI extends JFrame {
     private void initializeGUI() {
         setTitle("Chat Server");
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
-        setSize(650, 550);
+        setSize(850, 550);
         setLocationRelativeTo(null);
 
         // Create components
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setBackground(new Color(248, 249, 250));
-        chatArea.setFont(new Font("Segoe UI", Font.PLAIN, 13));
-        chatArea.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        chatView = new TranscriptView(new TranscriptModel());
+        chatView.setBackground(new Color(248, 249, 250));
+        chatView.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
-        JScrollPane scrollPane = new JScrollPane(chatArea);
+        transcript = new ChatTranscript(chatView);
+
+        JScrollPane scrollPane = new JScrollPane(chatView);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         scrollPane.setBorder(BorderFactory.createTitledBorder("Chat Messages"));
 
@@ -61,6 +65,8 @@ public class ChatServerGUI extends JFrame {
         statusLabel.setForeground(Color.RED);
         statusLabel.setFont(new Font("Segoe UI", Font.BOLD, 12));
 
+        statsPanel = new ServerStatsPanel();
+
         // Layout
         JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
         topPanel.setBorder(BorderFactory.createEtchedBorder());
@@ -80,6 +86,9 @@ public class ChatServerGUI extends JFrame {
         add(topPanel, BorderLayout.NORTH);
         add(scrollPane, BorderLayout.CENTER);
         add(bottomPanel, BorderLayout.SOUTH);
+        JPanel statsColumn = new JPanel(new BorderLayout());
+        statsColumn.add(statsPanel, BorderLayout.NORTH);
+        add(statsColumn, BorderLayout.EAST);
 
         // Event listeners
         startServerButton.addActionListener(e -> toggleServer());
@@ -118,18 +127,42 @@ public class ChatServerGUI extends JFrame {
                 return;
             }
 
-            // Create server socket with proper error handling
-            serverSocket = new ServerSocket(currentPort);
-            serverSocket.setReuseAddress(true);
+            // Bind the non-blocking engine; it accepts any number of clients
+            engine = new ChatServerEngine(currentPort, new EngineListener());
+            // -Dchat.tls.keystore turns on TLS for every client
+            if (TlsConfig.serverEnabled()) engine.setTls(TlsConfig.serverContext());
+            // -Dchat.cluster.port links this server with others; see ClusterConfig
+            if (ClusterConfig.enabled()) engine.setCluster(ClusterConfig.fromProperties());
+            messageLog = openMessageLog();
+            engine.setMessageLog(messageLog);
+            searchIndex = openSearchIndex();
+            engine.setSearchIndex(searchIndex);
+            openFileSpool();
+            mailboxes = openMailboxes();
+            engine.setMailboxes(mailboxes);
+            try {
+                engine.start();
+            } catch (IOException e) {
+                closeMailboxes();
+                closeSearchIndex();
+                closeMessageLog();
+                throw e;
+            }
             isServerRunning = true;
+            statsPanel.watch(engine.metrics());
+            openMetricsEndpoint();
 
             // Update UI
             updateServerUI(true);
-            appendToChat("Server started on port " + currentPort, "SYSTEM");
-            appendToChat("Waiting for client connection...", "SYSTEM");
-
-            // Start accepting connections in background
-            startAcceptingConnections();
+            appendToChat("Server started on port " + currentPort + (engine.isSecure() ? " (TLS)" : ""), "SYSTEM");
+            if (messageLog != null) {
+                appendToChat("Chat history: " + (messageLog.lastSeq() - messageLog.firstSeq() + 1)
+                        + " message(s) on disk", "SYSTEM");
+            }
+            if (engine.cluster() != null) {
+                appendToChat("Cluster node " + engine.cluster().nodeId() + " (peers from -Dchat.cluster.seeds)", "SYSTEM");
+            }
+            appendToChat("Listening for connections on port " + currentPort + "...", "SYSTEM");
 
         } catch (NumberFormatException e) {
             showError("Please enter a valid port number");
@@ -138,6 +171,84 @@ public class ChatServerGUI extends JFrame {
         }
     }
 
+    // History lives under chat-log/<port> unless -Dchat.log.dir says otherwise
+    private Path historyDirectory() {
+        return Path.of(System.getProperty("chat.log.dir", "chat-log"), String.valueOf(currentPort));
+    }
+
+    private MessageLog openMessageLog() {
+        try {
+            return MessageLog.open(historyDirectory());
+        } catch (IOException e) {
+            appendToChat("Chat history disabled: " + e.getMessage(), "ERROR");
+            return null;
+        }
+    }
+
+    // The search index sits beside the history it covers, and needs it for the text of each hit
+    private SearchIndex openSearchIndex() {
+        if (messageLog == null) return null;
+        try {
+            return SearchIndex.open(historyDirectory().resolve("index"), messageLog);
+        } catch (IOException e) {
+            appendToChat("Search disabled: " + e.getMessage(), "ERROR");
+            return null;
+        }
+    }
+
+    // Direct messages for offline users are kept under chat-mail/<port> unless -Dchat.mailbox.dir says otherwise
+    private Mailboxes openMailboxes() {
+        try {
+            return Mailboxes.open(engine, Path.of(System.getProperty("chat.mailbox.dir", "chat-mail"), String.valueOf(currentPort)));
+        } catch (IOException e) {
+            appendToChat("Offline messages disabled: " + e.getMessage(), "ERROR");
+            return null;
+        }
+    }
+
+    private void closeMailboxes() {
+        if (mailboxes == null) return;
+        mailboxes.close();
+        mailboxes = null;
+    }
+
+    // Shared files go under chat-files/<port> unless -Dchat.files.dir says otherwise
+    private void openFileSpool() {
+        try {
+            engine.setFileSpool(Path.of(System.getProperty("chat.files.dir", "chat-files"), String.valueOf(currentPort)));
+        } catch (IOException e) {
+            appendToChat("File transfer disabled: " + e.getMessage(), "ERROR");
+        }
+    }
+
+    // Prometheus-style text on 127.0.0.1:<chat.metrics.port>/metrics, when that property is set
+    private void openMetricsEndpoint() {
+        int port = Integer.getInteger("chat.metrics.port", 0);
+        if (port <= 0) return;
+        try {
+            metricsEndpoint = MetricsEndpoint.start(port, engine.metrics());
+            appendToChat("Metrics at http://127.0.0.1:" + port + "/metrics", "SYSTEM");
+        } catch (IOException e) {
+            appendToChat("Metrics endpoint disabled: " + e.getMessage(), "ERROR");
+        }
+    }
+
+    private void closeSearchIndex() {
+        if (searchIndex == null) return;
+        searchIndex.close();
+        searchIndex = null;
+    }
+
+    private void closeMessageLog() {
+        if (messageLog == null) return;
+        try {
+            messageLog.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+        messageLog = null;
+    }
+
     private void handleServerStartError(IOException e) {
         isServerRunning = false;
         String errorMsg = e.getMessage();
@@ -182,119 +293,217 @@ public class ChatServerGUI extends JFrame {
         return available.stream().mapToInt(Integer::intValue).toArray();
     }
 
-    private void startAcceptingConnections() {
-        new Thread(() -> {
-            try {
-                appendToChat("Listening for connections on port " + currentPort + "...", "SYSTEM");
-                clientSocket = serverSocket.accept();
+    // Engine callbacks arrive on event loop threads; UI work is posted to the EDT
+    private class EngineListener implements ChatServerEngine.Listener {
+        @Override
+        public void onConnect(ChatConnection connection) {
+            appendToChat("Client connected from: " + connection.getRemoteAddress(), "SYSTEM");
+            SwingUtilities.invokeLater(ChatServerGUI.this::updateClientStatus);
+        }
 
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Client Connected (Port: " + currentPort + ")");
-                    statusLabel.setForeground(new Color(34, 139, 34));
-                    messageField.setEnabled(true);
-                    sendButton.setEnabled(true);
-                    messageField.requestFocus();
-                });
+        @Override
+        public void onMessage(ChatConnection connection, ChatFrame frame) {
+            if (frame.type() == ChatFrame.EXIT) {
+                appendToChat("Client " + connection.getId() + " requested disconnection", "SYSTEM");
+                connection.close();
+                return;
+            }
+            if (frame.type() != ChatFrame.TEXT) return;
 
-                appendToChat("Client connected from: " + clientSocket.getInetAddress().getHostAddress(), "SYSTEM");
+            String message = frame.text();
+            if (handleUserCommand(connection, message) || handleRoomCommand(connection, message)) return;
+            appendToChat(message, nameOf(connection));
+            // Relay to the other clients; each has its own bounded queue so a slow one can't hold this up
+            engine.broadcast(nameOf(connection) + ": " + message, connection);
+        }
 
-                setupClientCommunication();
-                startMessageReading();
+        @Override
+        public void onLogin(ChatConnection connection) {
+            appendToChat("Client " + connection.getId() + " logged in as " + connection.getUsername(), "SYSTEM");
+        }
 
-            } catch (IOException e) {
-                if (isServerRunning && !e.getMessage().contains("socket closed")) {
-                    SwingUtilities.invokeLater(() -> {
-                        appendToChat("Error accepting client connection: " + e.getMessage(), "ERROR");
-                    });
-                }
-            }
-        }, "ServerAcceptThread").start();
+        @Override
+        public void onDisconnect(ChatConnection connection) {
+            if (!isServerRunning) return;
+            appendToChat("Client " + connection.getId() + " disconnected", "SYSTEM");
+            SwingUtilities.invokeLater(ChatServerGUI.this::updateClientStatus);
+        }
+
+        @Override
+        public void onFileShared(ChatConnection connection, String id, String name, long size) {
+            String notice = nameOf(connection) + " shared " + name + " (" + FileTransfers.describeSize(size) + "): /get " + id;
+            appendToChat(notice, "SYSTEM");
+            engine.broadcast(notice, connection);
+        }
     }
 
-    private void setupClientCommunication() throws IOException {
-        bufferedReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        printWriter = new PrintWriter(clientSocket.getOutputStream(), true);
+    // The username once logged in, CLIENT-<id> before
+    private static String nameOf(ChatConnection connection) {
+        String username = connection.getUsername();
+        return username != null ? username : "CLIENT-" + connection.getId();
     }
 
-    private void startMessageReading() {
-        new Thread(() -> {
-            try {
-                String message;
-                while (isServerRunning && (message = bufferedReader.readLine()) != null) {
-                    if (message.equalsIgnoreCase("exit")) {
-                        SwingUtilities.invokeLater(() -> {
-                            appendToChat("Client requested disconnection", "SYSTEM");
-                            disconnectClient();
-                        });
-                        break;
-                    }
-                    final String msg = message;
-                    SwingUtilities.invokeLater(() -> appendToChat(msg, "CLIENT"));
-                }
-            } catch (SocketException e) {
-                if (isServerRunning) {
-                    SwingUtilities.invokeLater(() -> {
-                        appendToChat("Client disconnected unexpectedly", "SYSTEM");
-                        disconnectClient();
-                    });
-                }
-            } catch (IOException e) {
-                if (isServerRunning) {
-                    SwingUtilities.invokeLater(() -> {
-                        appendToChat("Connection error: " + e.getMessage(), "ERROR");
-                        disconnectClient();
-                    });
-                }
+    // User commands: "/login <name>" (binary clients log in during the handshake instead),
+    // "/msg <user> <message>", "/away", "/back", "/who" and "/search <terms>". Returns false for anything else.
+    private boolean handleUserCommand(ChatConnection connection, String message) {
+        UserRegistry users = engine.users();
+        if (message.startsWith("/login ")) {
+            engine.login(connection, message.substring(7).trim());
+            return true;
+        }
+        if (message.startsWith("/msg ")) {
+            String rest = message.substring(5).trim();
+            int space = rest.indexOf(' ');
+            if (space < 0) {
+                connection.send("Usage: /msg <user> <message>");
+                return true;
+            }
+            String to = rest.substring(0, space);
+            String text = "[DM] " + nameOf(connection) + ": " + rest.substring(space + 1).trim();
+            if (!engine.sendDirect(to, text)) {
+                connection.send(engine.holdForLater(connection, to, text)
+                        ? to + " is offline and will get it when they next log in" : to + " is not online");
+            }
+            return true;
+        }
+        boolean away = message.equals("/away");
+        if (away || message.equals("/back")) {
+            if (connection.getUsername() == null) {
+                connection.send("Log in first: /login <name>");
+            } else if (users.setPresence(connection, away ? UserRegistry.Presence.AWAY : UserRegistry.Presence.ONLINE)) {
+                connection.send(away ? "You are away" : "You are back");
             }
-        }, "MessageReaderThread").start();
+            return true;
+        }
+        if (message.equals("/who")) {
+            users.sendRoster(connection);
+            return true;
+        }
+        if (message.startsWith("/search ")) {
+            search(message.substring(8), connection::send);
+            return true;
+        }
+        return false;
+    }
+
+    // Room commands work the same over either protocol: "/join <room>", "/leave <room>", "/rooms"
+    // and "#<room> <message>". Returns false for ordinary chat.
+    private boolean handleRoomCommand(ChatConnection connection, String message) {
+        String sender = nameOf(connection);
+        RoomIndex rooms = engine.rooms();
+        boolean join = message.startsWith("/join ");
+        if (join || message.startsWith("/leave ")) {
+            String room = message.substring(join ? 6 : 7).trim();
+            if (room.startsWith("#")) room = room.substring(1);
+            if (!RoomIndex.isValidName(room)) {
+                connection.send("Invalid room name: " + room);
+            } else if (join ? rooms.join(room, connection) : rooms.leave(room, connection)) {
+                engine.publishToRoom(room, "#" + room + " " + sender + (join ? " joined" : " left"), connection);
+                connection.send((join ? "Joined #" : "Left #") + room + " (" + rooms.memberCount(room) + " members)");
+                appendToChat(sender + (join ? " joined #" : " left #") + room, "SYSTEM");
+            } else {
+                connection.send((join ? "Already in #" : "Not in #") + room);
+            }
+            return true;
+        }
+        if (message.equals("/rooms")) {
+            Set<String> joined = rooms.roomsOf(connection);
+            connection.send(joined.isEmpty() ? "You are not in any room" : "Your rooms: #" + String.join(" #", joined));
+            return true;
+        }
+        String room = roomOf(message);
+        if (room == null) return false;
+        if (!rooms.isMember(room, connection)) {
+            connection.send("Join #" + room + " first: /join " + room);
+            return true;
+        }
+        appendToChat(message, sender);
+        engine.publishToRoom(room, "#" + room + " " + sender + ": " + message.substring(room.length() + 2), connection);
+        return true;
+    }
+
+    // The room a "#<room> <message>" line is addressed to, or null for ordinary chat
+    private static String roomOf(String message) {
+        if (!message.startsWith("#")) return null;
+        int space = message.indexOf(' ');
+        if (space < 0) return null;
+        String room = message.substring(1, space);
+        return RoomIndex.isValidName(room) ? room : null;
+    }
+
+    private void updateClientStatus() {
+        if (!isServerRunning) return;
+        int clients = engine.connectionCount();
+        boolean hasClients = clients > 0;
+
+        messageField.setEnabled(hasClients);
+        sendButton.setEnabled(hasClients);
+        if (hasClients) {
+            statusLabel.setText(clients + " Client(s) Connected (Port: " + currentPort + ")");
+            statusLabel.setForeground(new Color(34, 139, 34));
+            messageField.requestFocus();
+        } else {
+            statusLabel.setText("Server Running - No Client (Port: " + currentPort + ")");
+            statusLabel.setForeground(Color.ORANGE);
+        }
     }
 
     private void sendMessage() {
         String message = messageField.getText().trim();
-        if (message.isEmpty() || printWriter == null) return;
+        if (message.isEmpty() || engine == null || !isServerRunning) return;
 
-        printWriter.println(message);
-        appendToChat(message, "SERVER");
         messageField.setText("");
-
         if (message.equalsIgnoreCase("exit")) {
-            disconnectClient();
+            appendToChat("Disconnecting all clients", "SYSTEM");
+            engine.disconnectAll();
+            return;
         }
-    }
 
-    private void disconnectClient() {
-        try {
-            if (bufferedReader != null) bufferedReader.close();
-            if (printWriter != null) printWriter.close();
-            if (clientSocket != null) clientSocket.close();
-        } catch (IOException e) {
-            // Ignore cleanup errors
+        if (message.startsWith("/search ")) {
+            search(message.substring(8), line -> appendToChat(line, "SEARCH"));
+            return;
         }
 
-        messageField.setEnabled(false);
-        sendButton.setEnabled(false);
-        statusLabel.setText("Server Running - No Client (Port: " + currentPort + ")");
-        statusLabel.setForeground(Color.ORANGE);
-
-        appendToChat("Client disconnected. Waiting for new connection...", "SYSTEM");
+        String room = roomOf(message);
+        if (room != null) {
+            if (engine.publishToRoom(room, "#" + room + " SERVER: " + message.substring(room.length() + 2), null) < 0) {
+                appendToChat("No one is in #" + room, "SYSTEM");
+                return;
+            }
+        } else {
+            engine.broadcast(message);
+        }
+        appendToChat(message, "SERVER");
+    }
 
-        // Start accepting new connections
-        if (isServerRunning) {
-            startAcceptingConnections();
+    // Messages containing every term, best match first, as "#<seq> <message>" lines; the query runs
+    // off the event loop and the lines go to `reply` from the search thread
+    private void search(String query, Consumer<String> reply) {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            reply.accept("Search needs the chat history, which is disabled");
+            return;
         }
+        index.searchAsync(query, SEARCH_HITS, hits -> {
+            if (hits.isEmpty()) reply.accept("No messages match: " + query.trim());
+            for (SearchIndex.Hit hit : hits) {
+                reply.accept("#" + hit.seq() + " " + (hit.text() != null ? hit.text() : "(no longer on disk)"));
+            }
+        });
     }
 
     private void stopServer() {
         isServerRunning = false;
 
-        try {
-            if (printWriter != null) printWriter.close();
-            if (bufferedReader != null) bufferedReader.close();
-            if (clientSocket != null) clientSocket.close();
-            if (serverSocket != null) serverSocket.close();
-        } catch (IOException e) {
-            // Ignore cleanup errors
+        if (engine != null) engine.stop();
+        closeMailboxes();
+        closeSearchIndex();
+        closeMessageLog();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+            metricsEndpoint = null;
         }
+        statsPanel.watch(null);
 
         updateServerUI(false);
         appendToChat("Server stopped", "SYSTEM");
@@ -316,31 +525,9 @@ public class ChatServerGUI extends JFrame {
         }
     }
 
+    // Safe from any thread; the transcript batches lines onto the EDT
     private void appendToChat(String message, String type) {
-        SwingUtilities.invokeLater(() -> {
-            String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-            String prefix;
-
-            switch (type) {
-                case "CLIENT":
-                    prefix = "CLIENT";
-                    break;
-                case "SERVER":
-                    prefix = "SERVER";
-                    break;
-                case "SYSTEM":
-                    prefix = "SYSTEM";
-                    break;
-                case "ERROR":
-                    prefix = "ERROR";
-                    break;
-                default:
-                    prefix = type;
-            }
-
-            chatArea.append(String.format("[%s] %s: %s%n", timestamp, prefix, message));
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        transcript.append(message, type);
     }
 
     private void showError(String message) {
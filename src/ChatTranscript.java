@@ -0,0 +1,86 @@
+import javax.swing.*;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Buffers transcript rows from any thread and applies them to the transcript view in one model
+// update per tick, so a burst of messages costs the EDT one event instead of one per line.
+// Rows are formatted (timestamp included) by the caller, off the EDT.
+public class ChatTranscript {
+    public static final int FLUSH_INTERVAL_MS = 16;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final String CONTINUATION = "    ";
+
+    private final TranscriptView view;
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Timer flushTimer;
+    private volatile Stamp lastStamp = new Stamp(-1, "");
+
+    public ChatTranscript(TranscriptView view) {
+        this.view = view;
+        this.flushTimer = new Timer(FLUSH_INTERVAL_MS, e -> flush());
+        this.flushTimer.setRepeats(false);
+    }
+
+    // Safe to call from any thread
+    public void append(String message, String type) {
+        format(message, type, pending);
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushTimer.restart();
+        }
+    }
+
+    // The rows a message becomes, timestamp included; a message containing newlines becomes one row per line
+    void format(String message, String type, Collection<String> rows) {
+        String time = timestamp();
+        int start = 0;
+        int newline = message.indexOf('\n');
+        String first = newline < 0 ? message : message.substring(0, newline);
+        rows.add(new StringBuilder(time.length() + type.length() + first.length() + 5)
+                .append('[').append(time).append("] ")
+                .append(type).append(": ").append(first)
+                .toString());
+        while (newline >= 0) {
+            start = newline + 1;
+            newline = message.indexOf('\n', start);
+            rows.add(CONTINUATION + (newline < 0 ? message.substring(start) : message.substring(start, newline)));
+        }
+    }
+
+    // Runs on the EDT; everything queued since the last tick becomes one model update
+    private void flush() {
+        flushScheduled.set(false);
+        if (pending.isEmpty()) return;
+
+        List<String> batch = new ArrayList<>();
+        String row;
+        while ((row = pending.poll()) != null) {
+            batch.add(row);
+        }
+        // Follow new rows only if the user hasn't scrolled back into history
+        boolean follow = view.isScrolledToEnd();
+        view.getModel().appendAll(batch);
+        if (follow) view.scrollToEnd();
+    }
+
+    // The formatted time only changes once a second, so reuse it within the same second
+    private String timestamp() {
+        LocalTime now = LocalTime.now();
+        int second = now.toSecondOfDay();
+        Stamp stamp = lastStamp;
+        if (stamp.second != second) {
+            stamp = new Stamp(second, now.format(TIME_FORMAT));
+            lastStamp = stamp;
+        }
+        return stamp.text;
+    }
+
+    private record Stamp(int second, String text) {
+    }
+}
@@ -0,0 +1,37 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+// Cluster mode, read from system properties; off unless -Dchat.cluster.port is set:
+//   -Dchat.cluster.port      port this node accepts links from other nodes on
+//   -Dchat.cluster.host      address the other nodes reach this one at (default 127.0.0.1); host:port is the node id
+//   -Dchat.cluster.seeds     host:port,... of nodes to link to at start; the rest of the cluster is learned from them
+//   -Dchat.cluster.gossipMs  how long membership changes are batched before they are gossiped (default 100)
+//   -Dchat.cluster.redialMs  how often lost or newly learned nodes are dialled (default 2000)
+// Messages on the links are batched by the engine's FlushPolicy, like writes to clients.
+public record ClusterConfig(String host, int port, List<String> seeds, long gossipMs, long redialMs) {
+    public static boolean enabled() {
+        return Integer.getInteger("chat.cluster.port", 0) > 0;
+    }
+
+    public static ClusterConfig fromProperties() {
+        List<String> seeds = new ArrayList<>();
+        for (String seed : System.getProperty("chat.cluster.seeds", "").split(",")) {
+            if (!seed.isBlank()) seeds.add(seed.trim());
+        }
+        return new ClusterConfig(System.getProperty("chat.cluster.host", "127.0.0.1"),
+                Integer.getInteger("chat.cluster.port", 0), List.copyOf(seeds),
+                Long.getLong("chat.cluster.gossipMs", 100), Long.getLong("chat.cluster.redialMs", 2000));
+    }
+
+    public String nodeId() {
+        return host + ":" + port;
+    }
+
+    // A node id or seed ("host:port") as a socket address
+    static InetSocketAddress address(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Expected host:port, got " + hostPort);
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+}
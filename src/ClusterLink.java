@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+// One TCP link to another cluster node, opened by either end. Frames for the peer queue up and a
+// writer thread sends whatever has accumulated with one gathering write, so under load many messages
+// share a syscall; the FlushPolicy may hold the first one back to wait for company. A reader thread
+// runs the handshake and hands every frame from the peer to the ClusterNode. A link that goes quiet is
+// sent a PING, which the peer answers with a PONG, and is dropped if nothing at all comes back in time,
+// so a peer that vanished without closing the connection is redialled rather than waited on forever.
+final class ClusterLink {
+    // Sent by both ends before anything else, so a chat client dialling the cluster port fails at once
+    private static final byte[] PREAMBLE = {0x00, 'C', 'N', 0x01};
+    // Frames queued for a peer that has stopped reading; past this the link is dropped and redialled
+    private static final int MAX_QUEUED = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ClusterNode node;
+    private final SocketChannel channel;
+    private final FlushPolicy policy;
+    // The address this node dialled, or null for a link the peer opened
+    final String dialledAddress;
+    // Set from the peer's HELLO
+    volatile String peerId;
+
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    // Guarded by queue
+    private boolean closed;
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+    private volatile long lastReadAt = System.nanoTime();
+
+    // The peer's membership as it last gossiped it; only the reader thread touches the sets
+    final Set<String> rooms = new HashSet<>();
+    final Set<String> users = new HashSet<>();
+    volatile boolean hasClients;
+
+    ClusterLink(ClusterNode node, SocketChannel channel, FlushPolicy policy, String dialledAddress) {
+        this.node = node;
+        this.channel = channel;
+        this.policy = policy;
+        this.dialledAddress = dialledAddress;
+    }
+
+    void start() {
+        String name = dialledAddress != null ? dialledAddress : String.valueOf(channel.socket().getRemoteSocketAddress());
+        Thread reader = new Thread(this::readLoop, "ClusterLink-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Queue a frame, a view the caller may share between links; false once the link is closed
+    boolean send(ByteBuffer frame) {
+        synchronized (queue) {
+            if (closed) return false;
+            if (queue.size() >= MAX_QUEUED) {
+                System.out.println("Cluster link to " + peerId + " is not keeping up; dropping it");
+                close();
+                return false;
+            }
+            queue.add(frame);
+            if (queue.size() == 1 || queue.size() >= policy.maxBatch()) queue.notify();
+        }
+        return true;
+    }
+
+    void close() {
+        synchronized (queue) {
+            if (closed) return;
+            closed = true;
+            queue.clear();
+            queue.notify();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+    }
+
+    // Called by the node every so often with its HeartbeatPolicy: a PING once the peer has been silent
+    // for intervalMs, and the link dropped once timeoutMs more pass without a byte from it
+    void checkAlive(HeartbeatPolicy heartbeats) {
+        long silent = System.nanoTime() - lastReadAt;
+        if (silent > heartbeats.intervalNanos() + heartbeats.timeoutNanos()) {
+            System.out.println("Cluster link to " + peerId + " went silent; dropping it");
+            close();
+        } else if (silent > heartbeats.intervalNanos()) {
+            send(FrameCodec.encodeControl(ChatFrame.PING, 0));
+        }
+    }
+
+    private void readLoop() {
+        ChatFrame frame = new ChatFrame();
+        try {
+            ByteBuffer hello = FrameCodec.encodeText(ClusterNode.HELLO, (byte) 0, 0, node.nodeId());
+            ByteBuffer[] handshake = {ByteBuffer.wrap(PREAMBLE), hello};
+            while (hello.hasRemaining()) channel.write(handshake);
+
+            while (in.remaining() < PREAMBLE.length) {
+                if (!fill()) return;
+            }
+            for (byte b : PREAMBLE) {
+                if (in.get() != b) throw new ProtocolException("Not a cluster node");
+            }
+            if (!next(frame) || frame.type() != ClusterNode.HELLO) throw new ProtocolException("Expected HELLO");
+            peerId = frame.text();
+            if (!node.register(this)) return;
+
+            Thread writer = new Thread(this::writeLoop, Thread.currentThread().getName() + "-writer");
+            writer.setDaemon(true);
+            writer.start();
+            while (next(frame)) {
+                if (frame.type() == ChatFrame.PING) {
+                    send(FrameCodec.encodeControl(ChatFrame.PONG, frame.seq()));
+                } else if (frame.type() != ChatFrame.PONG) {
+                    node.onFrame(this, frame);
+                }
+            }
+        } catch (IOException e) {
+            // The peer went away or does not speak the cluster protocol; the node redials
+        } finally {
+            close();
+            node.unregister(this);
+        }
+    }
+
+    // Block until the next frame arrives; false at end of stream
+    private boolean next(ChatFrame frame) throws IOException {
+        while (!FrameCodec.decode(in, frame)) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        in.compact();
+        if (!in.hasRemaining()) {
+            int max = FrameCodec.HEADER_SIZE + FrameCodec.MAX_PAYLOAD;
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(max, in.capacity() * 2));
+            in.flip();
+            larger.put(in);
+            in = larger;
+        }
+        int n = channel.read(in);
+        if (n > 0) lastReadAt = System.nanoTime();
+        in.flip();
+        return n >= 0;
+    }
+
+    private void writeLoop() {
+        try {
+            ByteBuffer[] batch;
+            while ((batch = nextBatch()) != null) {
+                int first = 0;
+                while (first < batch.length) {
+                    channel.write(batch, first, batch.length - first);
+                    while (first < batch.length && !batch[first].hasRemaining()) first++;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The reader sees the channel close and unregisters the link
+        } finally {
+            close();
+        }
+    }
+
+    // Everything queued, once the FlushPolicy says to write; null when the link closes
+    private ByteBuffer[] nextBatch() throws InterruptedException {
+        synchronized (queue) {
+            while (queue.isEmpty() && !closed) queue.wait();
+            long deadline = System.nanoTime() + policy.maxLatencyMs() * 1_000_000L;
+            long waitNanos;
+            while (!closed && !policy.flushNow(queue.size()) && (waitNanos = deadline - System.nanoTime()) > 0) {
+                queue.wait(Math.max(1, waitNanos / 1_000_000L));
+            }
+            if (closed) return null;
+            ByteBuffer[] batch = queue.toArray(new ByteBuffer[0]);
+            queue.clear();
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// This server's place in a cluster of ChatServerEngines, each linked to every other over TCP
+// (ClusterLink). Nodes gossip their own membership to their peers: the rooms with members here, the
+// users logged in here, whether anyone here takes broadcasts, and the nodes this one is linked to,
+// which is how a node started with one seed finds the rest. Changes are batched for gossipMs and sent
+// as a delta; a new link starts with the full state. From what it hears each node keeps room -> links
+// and user -> link routes, so a message is forwarded only to nodes that have someone to deliver it to,
+// encoded once and shared by those links. Delivery is best effort: a message in flight when a link
+// drops is lost, and a username is unique across the cluster only as far as gossip has spread.
+public class ClusterNode {
+    // Frame types on a link
+    static final byte HELLO = 1;      // the sender's node id
+    static final byte STATE = 2;      // membership lines: "+r room", "-u user", "+p node", "+c" (has subscribers)
+    static final byte BROADCAST = 3;  // a message for every subscriber
+    static final byte ROOM = 4;       // "room\nmessage"
+    static final byte DIRECT = 5;     // "user\nmessage"
+    // ChatFrame.PING and PONG check on a quiet link; ClusterLink answers them itself
+    // Flag on the first STATE frame of a link: it replaces whatever the receiver knew
+    static final byte FULL = 1;
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    // Characters of membership lines per STATE frame, well inside FrameCodec.MAX_PAYLOAD
+    private static final int STATE_CHUNK = 128 * 1024;
+
+    private final ChatServerEngine engine;
+    private final ClusterConfig config;
+    private final String nodeId;
+    private final Map<String, ClusterLink> links = new ConcurrentHashMap<>();
+    private final Map<String, Set<ClusterLink>> roomRoutes = new ConcurrentHashMap<>();
+    private final Map<String, ClusterLink> userRoutes = new ConcurrentHashMap<>();
+    // Nodes heard of through gossip, and which node each dialled address turned out to be
+    private final Set<String> learned = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> aliases = new ConcurrentHashMap<>();
+    private final AtomicBoolean publishScheduled = new AtomicBoolean(false);
+
+    // Link registration and gossip happen under one lock, so a new link's full state and the deltas
+    // that follow it line up. The told* fields are what the peers were last told.
+    private final Object stateLock = new Object();
+    private Set<String> toldRooms = Set.of();
+    private Set<String> toldUsers = Set.of();
+    private Set<String> toldPeers = Set.of();
+    private boolean toldClients;
+
+    private ServerSocketChannel serverChannel;
+    private ScheduledExecutorService dialer;
+    private volatile boolean running;
+
+    ClusterNode(ChatServerEngine engine, ClusterConfig config) {
+        this.engine = engine;
+        this.config = config;
+        this.nodeId = config.nodeId();
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    // Nodes this one is linked to
+    public Set<String> peers() {
+        return Set.copyOf(links.keySet());
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        try {
+            serverChannel.bind(new InetSocketAddress(config.port()));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        running = true;
+        Thread acceptThread = new Thread(this::acceptLoop, "ClusterNode-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        dialer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ClusterNode-dialer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dialer.scheduleWithFixedDelay(this::redial, 0, config.redialMs(), TimeUnit.MILLISECONDS);
+        HeartbeatPolicy heartbeats = engine.heartbeatPolicy();
+        if (heartbeats.enabled()) {
+            long period = Math.max(1, Math.min(heartbeats.intervalMs(), heartbeats.timeoutMs()) / 2);
+            dialer.scheduleWithFixedDelay(() -> {
+                for (ClusterLink link : links.values()) link.checkAlive(heartbeats);
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stop() {
+        if (!running) return;
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+        dialer.shutdownNow();
+        for (ClusterLink link : links.values()) link.close();
+    }
+
+    // Send a broadcast to every node with subscribers
+    void forwardBroadcast(String message) {
+        ByteBuffer frame = null;
+        for (ClusterLink link : links.values()) {
+            if (!link.hasClients) continue;
+            if (frame == null) frame = FrameCodec.encodeText(BROADCAST, (byte) 0, 0, message).asReadOnlyBuffer();
+            link.send(frame.duplicate());
+        }
+    }
+
+    // Send a room message to every node where the room has members; returns how many nodes that is
+    int forwardRoom(String room, String message) {
+        Set<ClusterLink> routes = roomRoutes.get(room);
+        if (routes == null) return 0;
+        ByteBuffer frame = FrameCodec.encodeText(ROOM, (byte) 0, 0, room + '\n' + message).asReadOnlyBuffer();
+        int nodes = 0;
+        for (ClusterLink link : routes) {
+            if (link.send(frame.duplicate())) nodes++;
+        }
+        return nodes;
+    }
+
+    // Send a direct message to the node the user is logged in on; false if no node has them
+    boolean forwardDirect(String user, String message) {
+        String key = UserRegistry.key(user);
+        ClusterLink link = userRoutes.get(key);
+        return link != null && link.send(FrameCodec.encodeText(DIRECT, (byte) 0, 0, key + '\n' + message));
+    }
+
+    boolean hasUser(String name) {
+        return userRoutes.containsKey(UserRegistry.key(name));
+    }
+
+    // Something gossiped (rooms, users, subscribers, links) may have changed; the peers hear about it
+    // after gossipMs, together with whatever else changes meanwhile
+    void changed() {
+        if (running && publishScheduled.compareAndSet(false, true)) engine.schedule(this::publishState, config.gossipMs());
+    }
+
+    private void publishState() {
+        publishScheduled.set(false);
+        Set<String> rooms = Set.copyOf(engine.rooms().names());
+        Set<String> users = Set.copyOf(engine.users().names());
+        boolean clients = engine.hasSubscribers();
+        synchronized (stateLock) {
+            Set<String> peers = Set.copyOf(links.keySet());
+            StringBuilder delta = new StringBuilder();
+            diff(delta, 'r', toldRooms, rooms);
+            diff(delta, 'u', toldUsers, users);
+            diff(delta, 'p', toldPeers, peers);
+            if (clients != toldClients) delta.append(clients ? "+c\n" : "-c\n");
+            toldRooms = rooms;
+            toldUsers = users;
+            toldPeers = peers;
+            toldClients = clients;
+            if (delta.isEmpty()) return;
+            List<ByteBuffer> frames = stateFrames((byte) 0, delta);
+            for (ClusterLink link : links.values()) {
+                for (ByteBuffer frame : frames) link.send(frame.duplicate());
+            }
+        }
+    }
+
+    private static void diff(StringBuilder out, char kind, Set<String> before, Set<String> after) {
+        for (String name : after) {
+            if (!before.contains(name)) out.append('+').append(kind).append(' ').append(name).append('\n');
+        }
+        for (String name : before) {
+            if (!after.contains(name)) out.append('-').append(kind).append(' ').append(name).append('\n');
+        }
+    }
+
+    // Membership lines as STATE frames, split at line ends to stay within the frame size limit
+    private static List<ByteBuffer> stateFrames(byte flags, StringBuilder lines) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        int start = 0;
+        while (start < lines.length()) {
+            int end = Math.min(lines.length(), start + STATE_CHUNK);
+            if (end < lines.length()) end = lines.lastIndexOf("\n", end - 1) + 1;
+            frames.add(FrameCodec.encodeText(STATE, flags, 0, lines.subSequence(start, end)).asReadOnlyBuffer());
+            flags = 0;
+            start = end;
+        }
+        if (frames.isEmpty()) frames.add(FrameCodec.encodeText(STATE, flags, 0, "").asReadOnlyBuffer());
+        return frames;
+    }
+
+    // A link finished its handshake. When both ends dialled each other at once, both keep the link
+    // the node with the smaller id dialled. A second link dialled the same way as the one there is
+    // means that one's end has restarted or lost it without a FIN, so the new one replaces it. Returns
+    // false if the link should be dropped.
+    boolean register(ClusterLink link) {
+        String peer = link.peerId;
+        if (link.dialledAddress != null) aliases.put(link.dialledAddress, peer);
+        if (!running || peer.equals(nodeId)) return false;
+        synchronized (stateLock) {
+            ClusterLink existing = links.get(peer);
+            if (existing != null) {
+                String kept = dialer(existing);
+                if (!kept.equals(dialer(link)) && kept.compareTo(dialer(link)) < 0) return false;
+                existing.close();
+            }
+            links.put(peer, link);
+            StringBuilder state = new StringBuilder();
+            diff(state, 'r', Set.of(), toldRooms);
+            diff(state, 'u', Set.of(), toldUsers);
+            diff(state, 'p', Set.of(), toldPeers);
+            if (toldClients) state.append("+c\n");
+            for (ByteBuffer frame : stateFrames(FULL, state)) link.send(frame);
+        }
+        changed();
+        return true;
+    }
+
+    private String dialer(ClusterLink link) {
+        return link.dialledAddress != null ? nodeId : link.peerId;
+    }
+
+    // The link closed; called once from its reader thread
+    void unregister(ClusterLink link) {
+        String peer = link.peerId;
+        if (peer == null) return;
+        clearRoutes(link);
+        boolean removed;
+        synchronized (stateLock) {
+            removed = links.remove(peer, link);
+        }
+        if (removed) changed();
+    }
+
+    // A frame from a peer, on that link's reader thread
+    void onFrame(ClusterLink link, ChatFrame frame) {
+        switch (frame.type()) {
+            case STATE -> applyState(link, frame.flags() == FULL, frame.text());
+            case BROADCAST -> engine.deliverBroadcast(frame.text());
+            case ROOM -> {
+                String text = frame.text();
+                int newline = text.indexOf('\n');
+                if (newline > 0) engine.rooms().publish(text.substring(0, newline), text.substring(newline + 1), null);
+            }
+            case DIRECT -> {
+                String text = frame.text();
+                int newline = text.indexOf('\n');
+                ChatConnection target = newline > 0 ? engine.users().find(text.substring(0, newline)) : null;
+                if (target != null) target.send(text.substring(newline + 1));
+            }
+            default -> {
+                // A type from a newer node; ignore it
+            }
+        }
+    }
+
+    private void applyState(ClusterLink link, boolean full, String state) {
+        if (full) clearRoutes(link);
+        for (String line : state.split("\n")) {
+            if (line.length() < 2) continue;
+            boolean add = line.charAt(0) == '+';
+            String name = line.length() > 3 ? line.substring(3) : "";
+            switch (line.charAt(1)) {
+                case 'r' -> {
+                    if (add) addRoomRoute(link, name);
+                    else removeRoomRoute(link, name);
+                }
+                case 'u' -> {
+                    if (add && link.users.add(name)) {
+                        userRoutes.put(name, link);
+                    } else if (!add && link.users.remove(name)) {
+                        userRoutes.remove(name, link);
+                    }
+                }
+                case 'p' -> {
+                    if (add && running && !name.equals(nodeId) && !links.containsKey(name) && learned.add(name)) {
+                        dialer.execute(this::redial);
+                    }
+                }
+                case 'c' -> link.hasClients = add;
+                default -> {
+                }
+            }
+        }
+    }
+
+    private void addRoomRoute(ClusterLink link, String room) {
+        if (!link.rooms.add(room)) return;
+        roomRoutes.compute(room, (name, routes) -> {
+            if (routes == null) routes = ConcurrentHashMap.newKeySet();
+            routes.add(link);
+            return routes;
+        });
+    }
+
+    private void removeRoomRoute(ClusterLink link, String room) {
+        if (!link.rooms.remove(room)) return;
+        roomRoutes.computeIfPresent(room, (name, routes) -> {
+            routes.remove(link);
+            return routes.isEmpty() ? null : routes;
+        });
+    }
+
+    private void clearRoutes(ClusterLink link) {
+        for (String room : List.copyOf(link.rooms)) removeRoomRoute(link, room);
+        for (String user : link.users) userRoutes.remove(user, link);
+        link.users.clear();
+        link.hasClients = false;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                new ClusterLink(this, channel, engine.flushPolicy(), null).start();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) System.out.println("Cluster accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Dial every seed and learned node there is no link to. A learned node that cannot be reached is
+    // forgotten until gossip mentions it again; seeds are tried for as long as the node runs.
+    private void redial() {
+        Set<String> targets = new HashSet<>(config.seeds());
+        targets.addAll(learned);
+        for (String address : targets) {
+            String peer = aliases.getOrDefault(address, address);
+            if (!running || peer.equals(nodeId) || links.containsKey(peer)) continue;
+            if (!dial(address)) learned.remove(address);
+        }
+    }
+
+    private boolean dial(String address) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().connect(ClusterConfig.address(address), CONNECT_TIMEOUT_MS);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            new ClusterLink(this, channel, engine.flushPolicy(), address).start();
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            if (channel != null) closeQuietly(channel);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Line output for the blocking console endpoints, in place of an autoflush PrintWriter that costs a
+// socket write per line. Lines are queued, and everything queued goes out in one gathering write when
+// the FlushPolicy says so (a full batch, or maxLatencyMs after the first line) or on an explicit flush().
+// append() leaves the timing to the caller: a reader that echoes can flush once its input runs dry.
+// Like PrintWriter it never throws; checkError() reports a failed write. Any thread may write.
+public class CoalescingWriter implements Closeable {
+    private static ScheduledExecutorService timer;
+
+    private final SocketChannel channel;
+    private final FlushPolicy policy;
+    // Serializes socket writes, so batches reach the socket in the order they were taken
+    private final Object writeLock = new Object();
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private boolean timerSet;
+    private volatile boolean error;
+    private long socketWrites;
+    private long linesWritten;
+
+    // A blocking channel; TCP_NODELAY is set as the policy says
+    public CoalescingWriter(SocketChannel channel, FlushPolicy policy) throws IOException {
+        this.channel = channel;
+        this.policy = policy;
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, policy.noDelay());
+    }
+
+    // Queue a line and write per the policy
+    public void println(String line) {
+        synchronized (this) {
+            pending.add(ChatConnection.encodeLine(line));
+            if (!policy.flushNow(pending.size())) {
+                if (!timerSet) {
+                    timerSet = true;
+                    timer().schedule(this::flush, policy.maxLatencyMs(), TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    // Queue a line for the caller's next flush(); only a full batch writes on its own
+    public void append(String line) {
+        boolean full;
+        synchronized (this) {
+            pending.add(ChatConnection.encodeLine(line));
+            full = pending.size() >= policy.maxBatch();
+        }
+        if (full) flush();
+    }
+
+    // Write everything queued so far with one gathering write (more only if the socket takes it in parts)
+    public void flush() {
+        synchronized (writeLock) {
+            ByteBuffer[] batch;
+            synchronized (this) {
+                timerSet = false;
+                if (pending.isEmpty()) return;
+                batch = pending.toArray(new ByteBuffer[0]);
+                pending = new ArrayList<>();
+            }
+            try {
+                int first = 0;
+                while (first < batch.length) {
+                    channel.write(batch, first, batch.length - first);
+                    socketWrites++;
+                    while (first < batch.length && !batch[first].hasRemaining()) first++;
+                }
+                linesWritten += batch.length;
+            } catch (IOException e) {
+                error = true;
+            }
+        }
+    }
+
+    public boolean checkError() {
+        flush();
+        return error;
+    }
+
+    // Socket write calls made and lines they carried; linesWritten / socketWrites is the batching achieved
+    public long socketWrites() {
+        synchronized (writeLock) {
+            return socketWrites;
+        }
+    }
+
+    public long linesWritten() {
+        synchronized (writeLock) {
+            return linesWritten;
+        }
+    }
+
+    // Flush, then close the channel
+    @Override
+    public void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+    }
+
+    // One daemon thread runs every writer's latency timer; it only starts if a policy has a latency
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "CoalescingWriter-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Which of a sender's recent message ids have been seen, so a resent message is recognised and
+// dropped. Clients number their messages with consecutive ids from a random start, so the recent ones
+// fit a sliding bitmap (the anti-replay window of IPsec, RFC 4303): one bit per id for the SIZE ids up
+// to the highest seen, checked and set in O(1) in a fixed 128 bytes. An id further back than that can
+// only come from a restarted client that picked a new start, since a client never has more than
+// SIZE messages awaiting an ack, so the window restarts from it.
+final class DedupWindow {
+    static final int SIZE = 1024;
+    private static final long DEFAULT_TTL_MS = Long.getLong("chat.dedup.windowMs", 120_000);
+
+    private final long[] bits = new long[SIZE / 64];
+    private int highest;
+    private boolean empty = true;
+
+    // True the first time id is seen, false for a duplicate. Not thread-safe: a window is handed on
+    // through Senders from one connection of a sender to the next, and callers lock it in case the two
+    // overlap.
+    boolean firstTime(int id) {
+        int ahead = id - highest;
+        if (empty || ahead >= SIZE || ahead <= -SIZE) {
+            Arrays.fill(bits, 0);
+            empty = false;
+        } else if (ahead > 0) {
+            // Forget the ids the window slides past
+            for (int i = highest + 1; i != id; i++) clear(i);
+        } else {
+            if (isSet(id)) return false;
+            set(id);
+            return true;
+        }
+        highest = id;
+        set(id);
+        return true;
+    }
+
+    private boolean isSet(int id) {
+        int bit = id & (SIZE - 1);
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(int id) {
+        int bit = id & (SIZE - 1);
+        bits[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(int id) {
+        int bit = id & (SIZE - 1);
+        bits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    // Each sender's window, by user or client instance, kept for a while after they disconnect so the messages a
+    // reconnecting client resends are still recognised. Time-bucketed in two generations: windows not
+    // touched for a whole bucket move to the old generation and are gone after the next, so memory is
+    // bounded by the users active in the last two buckets and nothing sweeps per user.
+    static final class Senders {
+        private final long ttlNanos;
+        private Map<String, DedupWindow> current = new HashMap<>();
+        private Map<String, DedupWindow> previous = new HashMap<>();
+        private long rotatedAt = System.nanoTime();
+
+        Senders() {
+            this(DEFAULT_TTL_MS);
+        }
+
+        Senders(long ttlMillis) {
+            this.ttlNanos = ttlMillis * 1_000_000;
+        }
+
+        // The window for a sender connecting, the same one their previous connection used if recent
+        synchronized DedupWindow windowFor(String key) {
+            rotate();
+            DedupWindow window = current.get(key);
+            if (window == null) window = previous.remove(key);
+            if (window == null) window = new DedupWindow();
+            current.put(key, window);
+            return window;
+        }
+
+        // The sender's connection closed; their window lives on for at least one more bucket
+        synchronized void release(String key, DedupWindow window) {
+            rotate();
+            current.put(key, window);
+        }
+
+        synchronized int size() {
+            return current.size() + previous.size();
+        }
+
+        private void rotate() {
+            long now = System.nanoTime();
+            if (now - rotatedAt < ttlNanos) return;
+            // A gap of two buckets or more leaves nothing worth keeping
+            previous = now - rotatedAt < 2 * ttlNanos ? current : new HashMap<>();
+            current = new HashMap<>();
+            rotatedAt = now;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The client side of FileTransfers. Transfers run over whichever FrameChannel is current and carry on
+// from where they stopped when attach() hands over a new one after a reconnect: an upload asks the
+// server how much of it arrived, a download asks for the rest from its own offset. An upload keeps at
+// most WINDOW_CHUNKS chunks unacknowledged, so chat typed meanwhile never waits behind more than that.
+// Downloads are written to "<id>.part" in the download directory and renamed to the file's name once
+// complete, so an interrupted one resumes even after a restart.
+public class FileTransferClient {
+    static final int WINDOW_CHUNKS = 4;
+
+    public interface Listener {
+        // Any thread, once per chunk
+        void onProgress(Transfer transfer);
+
+        // error is null on success
+        void onFinished(Transfer transfer, String error);
+    }
+
+    public static final class Transfer {
+        private final boolean upload;
+        private final Path local;
+        private final String key;
+        private volatile String name;
+        private volatile long size;
+        private volatile long done;
+        // Upload: the file's id once shared; download: where it was saved
+        private volatile String result;
+        // The rest is guarded by the client
+        private int number;
+        private FileChannel file;
+        private boolean ready;
+        private long sent;
+        private long acked;
+        private boolean finished;
+
+        private Transfer(boolean upload, Path local, String key, String name, long size) {
+            this.upload = upload;
+            this.local = local;
+            this.key = key;
+            this.name = name;
+            this.size = size;
+        }
+
+        public boolean isUpload() {
+            return upload;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        // -1 until a download learns it
+        public long size() {
+            return size;
+        }
+
+        public long done() {
+            return done;
+        }
+
+        public String result() {
+            return result;
+        }
+    }
+
+    private final Path downloads;
+    private final Listener listener;
+    private final List<Transfer> active = new ArrayList<>();
+    // Open transfers on the current connection by number
+    private final Map<Integer, Transfer> open = new HashMap<>();
+    private FrameChannel channel;
+    private int nextNumber = 1;
+
+    public FileTransferClient(Path downloads, Listener listener) {
+        this.downloads = downloads;
+        this.listener = listener;
+    }
+
+    // Share a file with everyone; it goes up in the background and resumes across reconnects
+    public Transfer upload(Path path) throws IOException {
+        long size = Files.size(path);
+        // Stable for the same file, so a retried or resumed upload finds its part file on the server
+        String key = Integer.toHexString(path.toAbsolutePath().hashCode()) + "-" + Long.toHexString(size)
+                + "-" + Long.toHexString(Files.getLastModifiedTime(path).toMillis());
+        Transfer transfer = new Transfer(true, path, key, path.getFileName().toString(), size);
+        transfer.file = FileChannel.open(path, StandardOpenOption.READ);
+        synchronized (this) {
+            active.add(transfer);
+            start(transfer);
+        }
+        Thread sender = new Thread(() -> sendChunks(transfer), "FileUpload");
+        sender.setDaemon(true);
+        sender.start();
+        return transfer;
+    }
+
+    // Fetch a shared file by id into the download directory
+    public Transfer download(String id) throws IOException {
+        Files.createDirectories(downloads);
+        Path part = downloads.resolve(FileTransfers.safeName(id) + ".part");
+        Transfer transfer = new Transfer(false, part, id, id, -1);
+        synchronized (this) {
+            transfer.sent = Files.exists(part) ? Files.size(part) : 0;
+            active.add(transfer);
+            start(transfer);
+        }
+        return transfer;
+    }
+
+    public synchronized List<Transfer> active() {
+        return List.copyOf(active);
+    }
+
+    // Carry every unfinished transfer over to a new connection
+    public synchronized void attach(FrameChannel channel) {
+        this.channel = channel;
+        open.clear();
+        nextNumber = 1;
+        for (Transfer transfer : active) start(transfer);
+    }
+
+    // The user disconnected on purpose
+    public synchronized void cancelAll(String reason) {
+        channel = null;
+        for (Transfer transfer : List.copyOf(active)) finish(transfer, reason);
+    }
+
+    // Ask the server to open the transfer on the current connection
+    private void start(Transfer transfer) {
+        transfer.ready = false;
+        if (channel == null) return;
+        transfer.number = nextNumber++;
+        open.put(transfer.number, transfer);
+        String request = transfer.upload
+                ? "put\n" + transfer.key + "\n" + transfer.size + "\n" + transfer.name
+                : "get\n" + transfer.key + "\n" + transfer.sent;
+        try {
+            channel.send(ChatFrame.FILE, transfer.number, request);
+        } catch (IOException e) {
+            // The connection is going; attach() starts it again on the next one
+        }
+        notifyAll();
+    }
+
+    // Called by the reader with every frame; false for frames that are not about files
+    public boolean onFrame(ChatFrame frame) {
+        if (frame.type() != ChatFrame.FILE && frame.type() != ChatFrame.CHUNK) return false;
+        synchronized (this) {
+            Transfer transfer = open.get(frame.seq());
+            if (transfer == null || transfer.finished) return true;
+            if (frame.flags() == ChatFrame.REJECTED) {
+                finish(transfer, frame.text());
+                return true;
+            }
+            try {
+                if (frame.type() == ChatFrame.CHUNK) {
+                    receive(transfer, frame.payload());
+                } else {
+                    onReply(transfer, frame.text().split("\n", -1));
+                }
+            } catch (IOException | RuntimeException e) {
+                finish(transfer, "Transfer failed: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void onReply(Transfer transfer, String[] fields) throws IOException {
+        switch (fields[0]) {
+            case "put", "ack" -> {
+                long offset = Long.parseLong(fields[1]);
+                transfer.acked = offset;
+                transfer.done = offset;
+                if (fields[0].equals("put")) {
+                    transfer.sent = offset;
+                    transfer.ready = true;
+                }
+                notifyAll();
+                listener.onProgress(transfer);
+            }
+            case "done" -> {
+                transfer.result = fields[1];
+                finish(transfer, null);
+            }
+            case "get" -> {
+                transfer.size = Long.parseLong(fields[1]);
+                transfer.name = fields[2];
+                long offset = Long.parseLong(fields[3]);
+                if (transfer.file == null) {
+                    transfer.file = FileChannel.open(transfer.local, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                }
+                transfer.file.truncate(offset);
+                transfer.sent = offset;
+                transfer.done = offset;
+                listener.onProgress(transfer);
+                if (offset == transfer.size) saveDownload(transfer);
+            }
+            default -> throw new IOException("Unexpected reply " + fields[0]);
+        }
+    }
+
+    private void receive(Transfer transfer, ByteBuffer payload) throws IOException {
+        if (transfer.upload || transfer.file == null || payload.remaining() > transfer.size - transfer.sent) {
+            throw new IOException("Unexpected data");
+        }
+        while (payload.hasRemaining()) transfer.sent += transfer.file.write(payload, transfer.sent);
+        transfer.done = transfer.sent;
+        listener.onProgress(transfer);
+        if (transfer.sent == transfer.size) saveDownload(transfer);
+    }
+
+    // Rename the part file to the file's own name, without replacing anything already there
+    private void saveDownload(Transfer transfer) throws IOException {
+        transfer.file.close();
+        String name = FileTransfers.safeName(transfer.name);
+        if (name == null) name = transfer.key;
+        Path target = downloads.resolve(name);
+        int dot = name.lastIndexOf('.');
+        for (int copy = 1; Files.exists(target); copy++) {
+            target = downloads.resolve(dot > 0
+                    ? name.substring(0, dot) + " (" + copy + ")" + name.substring(dot)
+                    : name + " (" + copy + ")");
+        }
+        Files.move(transfer.local, target, StandardCopyOption.ATOMIC_MOVE);
+        transfer.result = target.toString();
+        finish(transfer, null);
+    }
+
+    private void finish(Transfer transfer, String error) {
+        if (transfer.finished) return;
+        transfer.finished = true;
+        open.remove(transfer.number, transfer);
+        active.remove(transfer);
+        if (transfer.file != null) {
+            try {
+                transfer.file.close();
+            } catch (IOException e) {
+                // Ignore cleanup errors
+            }
+        }
+        notifyAll();
+        listener.onFinished(transfer, error);
+    }
+
+    // An upload's sender thread: reads the next chunk whenever the window has room and sends it on
+    // the connection the transfer is open on
+    private void sendChunks(Transfer transfer) {
+        ByteBuffer chunk = ByteBuffer.allocate(FileTransfers.CHUNK_SIZE);
+        long window = (long) WINDOW_CHUNKS * FileTransfers.CHUNK_SIZE;
+        while (true) {
+            FrameChannel target;
+            int number;
+            long offset;
+            synchronized (this) {
+                try {
+                    while (!transfer.finished && !(transfer.ready && transfer.sent < transfer.size
+                            && transfer.sent - transfer.acked < window)) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (transfer.finished) return;
+                target = channel;
+                number = transfer.number;
+                offset = transfer.sent;
+            }
+            try {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), transfer.size - offset));
+                while (chunk.hasRemaining()) {
+                    if (transfer.file.read(chunk, offset + chunk.position()) < 0) {
+                        synchronized (this) {
+                            finish(transfer, transfer.name + " changed while uploading");
+                        }
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    finish(transfer, "Cannot read " + transfer.name + ": " + e.getMessage());
+                }
+                return;
+            }
+            try {
+                target.send(ChatFrame.CHUNK, number, chunk.flip());
+                synchronized (this) {
+                    if (transfer.number == number) transfer.sent = offset + chunk.limit();
+                }
+            } catch (IOException e) {
+                // Lost with the connection; wait for attach() to reopen the transfer
+                synchronized (this) {
+                    if (transfer.number == number) transfer.ready = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// The server side of file transfer, over FILE and CHUNK frames from binary clients. The client numbers
+// each transfer on its connection (the frame seq) and the server answers under the same number:
+//   put <key> <size> <name>   ->  put <offset>, then CHUNKs from the client, "ack <offset>" for each
+//                                 and "done <id>" once the file is whole
+//   get <id> <offset>         ->  get <size> <name> <offset>, then CHUNKs from the server to the end
+// Uploads go into a part file in the spool directory, named for the uploader (their username, or the
+// client instance id they subscribed with) and the client's key, so a client that reconnects asks for
+// the same key and is told how far it got while no one else can add to it; the finished file is
+// renamed to "<id>-<name>" and found by id through an index kept in memory. Part files nobody has
+// touched for PART_MAX_AGE_MS are deleted, and uploads that would take the spool past MAX_SPOOL_BYTES
+// are refused.
+//
+// The event loops only parse requests and copy chunks out of the read buffer; opening, writing,
+// renaming and sweeping happen in order on one spool thread, which acknowledges each chunk once it is
+// written, so a slow disk slows transfers down but never the chat on a loop. Downloads start at any
+// offset and are streamed by the connection with transferTo, a chunk at a time when nothing else is
+// queued, so chat keeps moving. Uploads are paced by the client, which keeps a few chunks
+// unacknowledged at most.
+public class FileTransfers {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final long DEFAULT_MAX_BYTES = Long.getLong("chat.files.maxBytes", 100L << 20);
+    public static final long MAX_SPOOL_BYTES = Long.getLong("chat.files.maxSpoolBytes", 10L << 30);
+    public static final long PART_MAX_AGE_MS = Long.getLong("chat.files.partMaxAgeMs", 24 * 60 * 60 * 1000L);
+    // Chunks of one upload waiting for the spool thread; a client with more is not waiting for acks
+    private static final int MAX_QUEUED_CHUNKS = 4 * FileTransferClient.WINDOW_CHUNKS;
+    private static final Pattern KEY = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{12}");
+    private static final String PART_SUFFIX = ".part";
+
+    private final ChatServerEngine engine;
+    private final Path spool;
+    private final long maxBytes;
+    private final BufferPool pool = BufferPool.shared();
+    private final ExecutorService disk;
+    // Spool thread only: uploads in progress by part file name, so two connections never write one part
+    // file; finished files by id; and the bytes in the spool, counting the rest of every open upload
+    // as already there
+    private final Map<String, Upload> uploading = new HashMap<>();
+    private Map<String, String> shared = new HashMap<>();
+    private long spoolBytes;
+    private long sweptAt = System.nanoTime();
+
+    static final class Upload {
+        final ChatConnection owner;
+        // The owner's open uploads, which this leaves when it is closed
+        final Map<Integer, Upload> uploads;
+        final int transfer;
+        final String part;
+        final String name;
+        final long size;
+        // Chunks copied for the spool thread and not yet written
+        final AtomicInteger queued = new AtomicInteger();
+        // The rest is spool thread only
+        FileChannel file;
+        long position;
+        boolean closed;
+
+        Upload(ChatConnection owner, Map<Integer, Upload> uploads, int transfer, String part, String name, long size) {
+            this.owner = owner;
+            this.uploads = uploads;
+            this.transfer = transfer;
+            this.part = part;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    FileTransfers(ChatServerEngine engine, Path spool, long maxBytes) throws IOException {
+        this.engine = engine;
+        this.spool = Files.createDirectories(spool);
+        this.maxBytes = maxBytes;
+        sweep();
+        this.disk = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "FileSpool");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Called on the connection's loop thread
+    void onFrame(ChatConnection connection, ChatFrame frame) {
+        if (frame.type() == ChatFrame.CHUNK) {
+            onChunk(connection, frame.seq(), frame.payload());
+            return;
+        }
+        String[] fields = frame.text().split("\n", -1);
+        int transfer = frame.seq();
+        if (fields[0].equals("put") && fields.length == 4) {
+            put(connection, transfer, fields[1], fields[2], fields[3]);
+        } else if (fields[0].equals("get") && fields.length == 3) {
+            disk.execute(() -> get(connection, transfer, fields[1], fields[2]));
+        } else {
+            reject(connection, transfer, "Unknown file request");
+        }
+    }
+
+    private void put(ChatConnection connection, int transfer, String key, String sizeText, String name) {
+        long size = parse(sizeText);
+        String safeName = safeName(name);
+        if (!KEY.matcher(key).matches() || size < 0 || safeName == null) {
+            reject(connection, transfer, "Bad upload request");
+            return;
+        }
+        if (size > maxBytes) {
+            reject(connection, transfer, "Files are limited to " + describeSize(maxBytes));
+            return;
+        }
+        Map<Integer, Upload> uploads = connection.uploads != null ? connection.uploads : new ConcurrentHashMap<>();
+        if (uploads.containsKey(transfer)) {
+            reject(connection, transfer, "Transfer " + transfer + " is already open");
+            return;
+        }
+        Upload upload = new Upload(connection, uploads, transfer, partName(connection, key), safeName, size);
+        uploads.put(transfer, upload);
+        connection.uploads = uploads;
+        // Its chunks queue up behind this, so they find the part file open
+        disk.execute(() -> open(upload));
+    }
+
+    // On the spool thread
+    private void open(Upload upload) {
+        sweepIfDue();
+        // Until the server notices that a resuming client's old connection is gone, that one still
+        // holds the part file and the client has to try again
+        if (uploading.containsKey(upload.part)) {
+            fail(upload, "That file is already being uploaded");
+            return;
+        }
+        try {
+            upload.file = FileChannel.open(spool.resolve(upload.part), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            // A part file longer than the file it is meant to hold belongs to some other upload
+            if (upload.file.size() > upload.size) {
+                spoolBytes -= upload.file.size();
+                upload.file.truncate(0);
+            }
+            upload.position = upload.file.size();
+        } catch (IOException e) {
+            fail(upload, "Upload failed: " + e.getMessage());
+            return;
+        }
+        long rest = upload.size - upload.position;
+        if (spoolBytes + rest > MAX_SPOOL_BYTES) {
+            fail(upload, "The server has no room for more uploads");
+            return;
+        }
+        spoolBytes += rest;
+        uploading.put(upload.part, upload);
+        try {
+            reply(upload.owner, upload.transfer, "put\n" + upload.position);
+            if (upload.position == upload.size) finish(upload);
+        } catch (IOException e) {
+            fail(upload, "Upload failed: " + e.getMessage());
+        }
+    }
+
+    // Part files are named for the uploader and the client's key, hashed so neither can be guessed
+    // from the other or escape the spool
+    private static String partName(ChatConnection connection, String key) {
+        String uploader = connection.dedupKey != null ? connection.dedupKey : "connection " + connection.getId();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest((uploader + "\n" + key).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16) + PART_SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void onChunk(ChatConnection connection, int transfer, ByteBuffer payload) {
+        Upload upload = connection.uploads != null ? connection.uploads.get(transfer) : null;
+        if (upload == null) {
+            reject(connection, transfer, "No upload " + transfer);
+            return;
+        }
+        if (upload.queued.incrementAndGet() > MAX_QUEUED_CHUNKS) {
+            // What is written so far stays for the client to resume from
+            upload.uploads.remove(transfer, upload);
+            disk.execute(() -> close(upload));
+            reject(connection, transfer, "Sending faster than the server can store");
+            return;
+        }
+        // The read buffer is reused as soon as this returns
+        ByteBuffer data = pool.acquire(payload.remaining());
+        data.clear();
+        data.put(payload.duplicate()).flip();
+        disk.execute(() -> write(upload, data));
+    }
+
+    // On the spool thread
+    private void write(Upload upload, ByteBuffer data) {
+        upload.queued.decrementAndGet();
+        try {
+            if (upload.closed) return;
+            if (data.remaining() > upload.size - upload.position) {
+                fail(upload, "More data than the file size");
+                return;
+            }
+            while (data.hasRemaining()) upload.position += upload.file.write(data, upload.position);
+            reply(upload.owner, upload.transfer, "ack\n" + upload.position);
+            if (upload.position == upload.size) finish(upload);
+        } catch (IOException e) {
+            fail(upload, "Upload failed: " + e.getMessage());
+        } finally {
+            pool.release(data);
+        }
+    }
+
+    // The part file becomes "<id>-<name>" and everyone hears about it
+    private void finish(Upload upload) throws IOException {
+        close(upload);
+        String id = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE).substring(4);
+        String file = id + "-" + upload.name;
+        Files.move(spool.resolve(upload.part), spool.resolve(file), StandardCopyOption.ATOMIC_MOVE);
+        shared.put(id, file);
+        reply(upload.owner, upload.transfer, "done\n" + id);
+        engine.onFileShared(upload.owner, id, upload.name, upload.size);
+    }
+
+    // On the spool thread
+    private void get(ChatConnection connection, int transfer, String id, String offsetText) {
+        long offset = parse(offsetText);
+        String stored = ID.matcher(id).matches() ? shared.get(id) : null;
+        if (stored == null || offset < 0) {
+            reject(connection, transfer, "No such file: " + id);
+            return;
+        }
+        try {
+            FileChannel file = FileChannel.open(spool.resolve(stored), StandardOpenOption.READ);
+            long size = file.size();
+            offset = Math.min(offset, size);
+            String name = stored.substring(id.length() + 1);
+            reply(connection, transfer, "get\n" + size + "\n" + name + "\n" + offset);
+            connection.sendFile(transfer, file, offset, size);
+        } catch (IOException e) {
+            reject(connection, transfer, "Download failed: " + e.getMessage());
+        }
+    }
+
+    // The connection is gone; its uploads stay as part files for the client to resume. Called on its loop.
+    void onClose(ChatConnection connection) {
+        Map<Integer, Upload> uploads = connection.uploads;
+        if (uploads == null) return;
+        connection.uploads = null;
+        List<Upload> open = List.copyOf(uploads.values());
+        disk.execute(() -> {
+            for (Upload upload : open) close(upload);
+        });
+    }
+
+    // On the spool thread
+    private void fail(Upload upload, String reason) {
+        close(upload);
+        reject(upload.owner, upload.transfer, reason);
+    }
+
+    // Finished or failed. What was reserved for the rest of the upload goes back; the part file keeps
+    // what it has.
+    private void close(Upload upload) {
+        if (upload.closed) return;
+        upload.closed = true;
+        upload.uploads.remove(upload.transfer, upload);
+        if (uploading.remove(upload.part, upload)) spoolBytes -= upload.size - upload.position;
+        if (upload.file != null) closeQuietly(upload.file);
+    }
+
+    private void sweepIfDue() {
+        long now = System.nanoTime();
+        if (now - sweptAt > PART_MAX_AGE_MS / 4 * 1_000_000) {
+            sweptAt = now;
+            sweep();
+        }
+    }
+
+    // Delete part files no upload has touched for PART_MAX_AGE_MS, recount the spool and index the
+    // finished files by id. On the spool thread, or before it starts.
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - PART_MAX_AGE_MS;
+        long total = 0;
+        Map<String, String> found = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool)) {
+            for (Path file : files) {
+                try {
+                    long size = Files.size(file);
+                    String name = file.getFileName().toString();
+                    if (!name.endsWith(PART_SUFFIX)) {
+                        int dash = name.indexOf('-');
+                        if (dash > 0 && ID.matcher(name.substring(0, dash)).matches()) {
+                            found.put(name.substring(0, dash), name);
+                        }
+                        total += size;
+                    } else if (!uploading.containsKey(name) && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                        Files.delete(file);
+                    } else {
+                        total += size;
+                    }
+                } catch (IOException e) {
+                    // Gone already, or left for the next sweep
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Spool sweep failed: " + e.getMessage());
+            return;
+        }
+        // Open uploads count the rest of their file as well
+        for (Upload upload : uploading.values()) total += upload.size - upload.position;
+        spoolBytes = total;
+        shared = found;
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+    }
+
+    private static void reply(ChatConnection connection, int transfer, String text) {
+        connection.enqueue(FrameCodec.encodeText(ChatFrame.FILE, (byte) 0, transfer, text));
+    }
+
+    private static void reject(ChatConnection connection, int transfer, String reason) {
+        connection.enqueue(FrameCodec.encodeText(ChatFrame.FILE, ChatFrame.REJECTED, transfer, reason));
+    }
+
+    private static long parse(String number) {
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The last path element, with anything unusual replaced; null if nothing usable is left
+    static String safeName(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        String safe = base.replaceAll("[^A-Za-z0-9._ ()+-]", "_");
+        if (safe.length() > 100) safe = safe.substring(safe.length() - 100);
+        return safe.isBlank() || safe.startsWith(".") ? null : safe;
+    }
+
+    static String describeSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,17 @@
+// When queued outbound messages are written, and whether the kernel may hold small writes back:
+//   -Dchat.flush.maxLatencyMs  how long the first queued message may wait for others to share its write
+//                              (default 0: write as soon as something is queued)
+//   -Dchat.flush.maxBatch      queued messages that trigger a write without waiting out the latency (default 64)
+//   -Dchat.tcpNoDelay          false leaves TCP_NODELAY off, so Nagle's algorithm merges small segments (default true)
+public record FlushPolicy(long maxLatencyMs, int maxBatch, boolean noDelay) {
+    public static FlushPolicy fromProperties() {
+        return new FlushPolicy(Long.getLong("chat.flush.maxLatencyMs", 0),
+                Integer.getInteger("chat.flush.maxBatch", 64),
+                Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true")));
+    }
+
+    // With `queued` messages waiting, write now rather than after maxLatencyMs
+    public boolean flushNow(int queued) {
+        return maxLatencyMs <= 0 || queued >= maxBatch;
+    }
+}
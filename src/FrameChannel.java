@@ -0,0 +1,274 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+// Blocking client side of the binary protocol: one thread reads frames, any thread may write.
+// Both buffers are leased from the shared BufferPool; the reader gives its buffer back when
+// read() reaches end of stream or fails, and close() gives back the write buffer.
+public class FrameChannel implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final ChatFrame frame = new ChatFrame();
+    private final BufferPool pool = BufferPool.shared();
+    private ByteBuffer readBuffer = pool.acquire(BUFFER_SIZE).flip();
+    private ByteBuffer writeBuffer = pool.acquire(BUFFER_SIZE);
+    // Set during connect when the server accepts compression
+    private FrameCompression compression;
+    // Set during connect when it logs in
+    private String sessionToken;
+    // Null for a plaintext connection
+    private final TlsTransport tls;
+
+    private FrameChannel(SocketChannel channel, TlsTransport tls) {
+        this.channel = channel;
+        this.tls = tls;
+    }
+
+    public static FrameChannel connect(String host, int port) throws IOException {
+        return connect(host, port, 0);
+    }
+
+    // Connect, negotiate the binary protocol (the server must echo the preamble) and subscribe to
+    // broadcasts. With resumeAfterSeq > 0 the server first replays everything after that seq; either
+    // way a REPLAY frame marks where the live stream starts.
+    public static FrameChannel connect(String host, int port, int resumeAfterSeq) throws IOException {
+        return connect(host, port, resumeAfterSeq, null);
+    }
+
+    // The same, logging in as username first unless it is null. A refused login fails the connect with
+    // the server's reason; on success the roster of who is online is the first frame read() returns.
+    public static FrameChannel connect(String host, int port, int resumeAfterSeq, String username)
+            throws IOException {
+        return connect(host, port, resumeAfterSeq, username, false);
+    }
+
+    // With compress, also ask for per-connection compression; a server that has it turned off says so
+    // and the connection simply stays uncompressed (see isCompressed)
+    public static FrameChannel connect(String host, int port, int resumeAfterSeq, String username,
+                                       boolean compress) throws IOException {
+        return connect(host, port, resumeAfterSeq, username, compress, null);
+    }
+
+    // With a TLS context, run the TLS handshake first and speak the protocol inside it. Reusing one
+    // context (TlsConfig.clientContext) lets a reconnect resume the session.
+    public static FrameChannel connect(String host, int port, int resumeAfterSeq, String username,
+                                       boolean compress, SSLContext tlsContext) throws IOException {
+        return connect(host, port, resumeAfterSeq, username, compress, tlsContext, null);
+    }
+
+    // With clientId, the same on every connection of this client, the server recognises a message
+    // resent after a reconnect even when the client is not logged in
+    public static FrameChannel connect(String host, int port, int resumeAfterSeq, String username,
+                                       boolean compress, SSLContext tlsContext, String clientId) throws IOException {
+        return connect(host, port, resumeAfterSeq, username, compress, tlsContext, clientId, null);
+    }
+
+    // With the sessionToken of the previous login under username, the login takes the name over even if
+    // the server still has the old connection (see sessionToken())
+    public static FrameChannel connect(String host, int port, int resumeAfterSeq, String username,
+                                       boolean compress, SSLContext tlsContext, String clientId,
+                                       String sessionToken) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.connect(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            TlsTransport tls = null;
+            if (tlsContext != null) {
+                tls = TlsTransport.client(channel, tlsContext, host, port);
+                tls.handshake();
+            }
+            FrameChannel frames = new FrameChannel(channel, tls);
+            try {
+                frames.handshake();
+                if (compress) frames.negotiateCompression();
+                if (username != null) frames.login(username, sessionToken);
+                if (clientId != null) {
+                    frames.send(ChatFrame.REPLAY, resumeAfterSeq, clientId);
+                } else {
+                    frames.sendControl(ChatFrame.REPLAY, resumeAfterSeq);
+                }
+            } catch (IOException e) {
+                frames.releaseReadBuffer();
+                frames.close();
+                throw e;
+            }
+            return frames;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void handshake() throws IOException {
+        writeFully(FrameCodec.preamble());
+
+        if (!fill(FrameCodec.PREAMBLE.length)) throw new ProtocolException("Server closed during handshake");
+        for (byte b : FrameCodec.PREAMBLE) {
+            if (readBuffer.get() != b) {
+                throw new ProtocolException("Server does not speak the binary chat protocol");
+            }
+        }
+    }
+
+    private void negotiateCompression() throws IOException {
+        sendControl(ChatFrame.COMPRESS);
+        ChatFrame reply;
+        while ((reply = read()) != null) {
+            if (reply.type() != ChatFrame.COMPRESS) continue;
+            if (reply.flags() != ChatFrame.REJECTED) compression = new FrameCompression();
+            return;
+        }
+        throw new ProtocolException("Server closed during handshake");
+    }
+
+    public boolean isCompressed() {
+        return compression != null;
+    }
+
+    // The token the server issued for the login made by connect(), to pass to the next connect; null
+    // when not logged in
+    public String sessionToken() {
+        return sessionToken;
+    }
+
+    // The session token in the payload of an accepted LOGIN reply, null if there is none
+    public static String sessionToken(String reply) {
+        int newline = reply.indexOf('\n');
+        return newline < 0 ? null : reply.substring(newline + 1);
+    }
+
+    private void login(String username, String token) throws IOException {
+        send(ChatFrame.LOGIN, token != null ? username + "\n" + token : username);
+        ChatFrame reply;
+        while ((reply = read()) != null) {
+            if (reply.type() != ChatFrame.LOGIN) continue;
+            if (reply.flags() == ChatFrame.REJECTED) throw new IOException(reply.text());
+            sessionToken = sessionToken(reply.text());
+            return;
+        }
+        throw new ProtocolException("Server closed during login");
+    }
+
+    // Block until the next frame arrives; null at end of stream. The frame is reused by the next call.
+    // Server PINGs are answered here and never returned.
+    public ChatFrame read() throws IOException {
+        try {
+            while (true) {
+                while (!FrameCodec.decode(readBuffer, frame)) {
+                    if (!fill(readBuffer.remaining() + 1)) {
+                        releaseReadBuffer();
+                        return null;
+                    }
+                }
+                if (frame.type() != ChatFrame.PING) break;
+                sendControl(ChatFrame.PONG, frame.seq());
+            }
+            if ((frame.flags() & ChatFrame.COMPRESSED) != 0) {
+                if (compression == null) throw new ProtocolException("Compressed frame without negotiation");
+                frame.inflate(compression);
+            }
+            return frame;
+        } catch (IOException e) {
+            releaseReadBuffer();
+            throw e;
+        }
+    }
+
+    private void releaseReadBuffer() {
+        pool.release(readBuffer);
+        readBuffer = null;
+        if (compression != null) compression.endInflating();
+    }
+
+    // Read until at least `needed` bytes are buffered; false at end of stream
+    private boolean fill(int needed) throws IOException {
+        if (needed > readBuffer.capacity()) {
+            int max = FrameCodec.HEADER_SIZE + FrameCodec.MAX_PAYLOAD;
+            ByteBuffer larger = pool.acquire(Math.min(max, Math.max(needed, readBuffer.capacity() * 2)));
+            larger.put(readBuffer).flip();
+            pool.release(readBuffer);
+            readBuffer = larger;
+        }
+        readBuffer.compact();
+        try {
+            while (readBuffer.position() < needed) {
+                if ((tls != null ? tls.read(readBuffer) : channel.read(readBuffer)) < 0) return false;
+            }
+        } finally {
+            readBuffer.flip();
+        }
+        return true;
+    }
+
+    public void sendText(String text) throws IOException {
+        send(ChatFrame.TEXT, text);
+    }
+
+    public void send(byte type, String text) throws IOException {
+        send(type, 0, text);
+    }
+
+    public synchronized void send(byte type, int seq, String text) throws IOException {
+        if (writeBuffer == null) throw new ClosedChannelException();
+        int size = FrameCodec.HEADER_SIZE + FrameCodec.utf8Length(text);
+        ByteBuffer out = size <= writeBuffer.capacity() ? writeBuffer.clear() : ByteBuffer.allocate(size);
+        FrameCodec.writeText(out, type, (byte) 0, seq, text);
+        out.flip();
+        writeFully(compression != null ? compression.compress(out) : out);
+    }
+
+    // A frame with a binary payload, sent as is (file chunks gain little from compression)
+    public synchronized void send(byte type, int seq, ByteBuffer payload) throws IOException {
+        if (writeBuffer == null) throw new ClosedChannelException();
+        writeFully(writeBuffer.clear().put(type).put((byte) 0).putInt(seq).putInt(payload.remaining()).flip());
+        writeFully(payload);
+    }
+
+    public void sendControl(byte type) throws IOException {
+        sendControl(type, 0);
+    }
+
+    // A payload-less frame; seq carries the argument for controls like REPLAY
+    public synchronized void sendControl(byte type, int seq) throws IOException {
+        if (writeBuffer == null) throw new ClosedChannelException();
+        writeFully(writeBuffer.clear().put(type).put((byte) 0).putInt(seq).putInt(0).flip());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (tls != null) {
+                tls.write(buffer);
+            } else {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    public boolean isSecure() {
+        return tls != null;
+    }
+
+    // The TLS session, e.g. to see whether it was resumed; null for plaintext
+    public SSLSession tlsSession() {
+        return tls == null ? null : tls.session();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (tls != null) tls.close();
+        channel.close();
+        synchronized (this) {
+            pool.release(writeBuffer);
+            writeBuffer = null;
+            if (compression != null) compression.endCompressing();
+        }
+    }
+}
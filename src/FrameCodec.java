@@ -0,0 +1,94 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed binary framing:
+//   type (1) | flags (1) | seq (4) | length (4) | UTF-8 payload (length)
+// A binary client opens with PREAMBLE and the server echoes it back; anything else is a legacy text client.
+public final class FrameCodec {
+    public static final int HEADER_SIZE = 10;
+    public static final int LENGTH_OFFSET = 6;
+    public static final int MAX_PAYLOAD = 1 << 20;
+    // Leading NUL can never start a line from a text client
+    static final byte[] PREAMBLE = {0x00, 'C', 'B', 0x01};
+
+    // Lone surrogates become U+FFFD, which keeps utf8Length() exact
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .replaceWith(new byte[]{(byte) 0xEF, (byte) 0xBF, (byte) 0xBD}));
+
+    private FrameCodec() {
+    }
+
+    // Decode the next complete frame at in's position into frame and advance past it.
+    // Returns false, leaving in untouched, when the frame has not fully arrived yet.
+    public static boolean decode(ByteBuffer in, ChatFrame frame) throws ProtocolException {
+        if (in.remaining() < HEADER_SIZE) return false;
+
+        int p = in.position();
+        int length = in.getInt(p + 6);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Frame length " + length + " out of range");
+        }
+        if (in.remaining() < HEADER_SIZE + length) return false;
+
+        frame.set(in.get(p), in.get(p + 1), in.getInt(p + 2), in.slice(p + HEADER_SIZE, length));
+        in.position(p + HEADER_SIZE + length);
+        return true;
+    }
+
+    // Write a frame whose payload is already UTF-8 bytes
+    public static void write(ByteBuffer out, byte type, byte flags, int seq, ByteBuffer payload) {
+        out.put(type).put(flags).putInt(seq).putInt(payload.remaining()).put(payload.duplicate());
+    }
+
+    // Write a frame, encoding text straight into out; throws BufferOverflowException if it doesn't fit
+    public static void writeText(ByteBuffer out, byte type, byte flags, int seq, CharSequence text) {
+        out.put(type).put(flags).putInt(seq).putInt(utf8Length(text));
+        CharsetEncoder encoder = ENCODER.get().reset();
+        encoder.encode(CharBuffer.wrap(text), out, true);
+        encoder.flush(out);
+    }
+
+    // Allocate an exactly sized, flipped frame
+    public static ByteBuffer encodeText(byte type, byte flags, int seq, CharSequence text) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + utf8Length(text));
+        writeText(out, type, flags, seq, text);
+        return out.flip();
+    }
+
+    public static ByteBuffer encodeControl(byte type) {
+        return encodeControl(type, 0);
+    }
+
+    public static ByteBuffer encodeControl(byte type, int seq) {
+        return ByteBuffer.allocate(HEADER_SIZE).put(type).put((byte) 0).putInt(seq).putInt(0).flip();
+    }
+
+    public static ByteBuffer preamble() {
+        return ByteBuffer.wrap(PREAMBLE).asReadOnlyBuffer();
+    }
+
+    public static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
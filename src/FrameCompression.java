@@ -0,0 +1,132 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-connection compression of binary frames, in the style of WebSocket permessage-deflate: one raw
+// deflate stream per direction that lives as long as the connection, so repeated text (bot messages,
+// a replayed history) compresses against everything sent before it. Each compressed payload ends
+// with a sync flush, minus the fixed 00 00 FF FF tail, and is decodable on arrival. Payloads below
+// THRESHOLD are sent as they are and never enter the stream.
+// The compressing and inflating halves may be used by different threads, but each by one at a time.
+// The native zlib state (about 300 KB per connection) is only freed by end() or the halves' end methods.
+public class FrameCompression {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+    public static final int THRESHOLD = Integer.getInteger("chat.compression.threshold", 128);
+    public static final int LEVEL = Integer.getInteger("chat.compression.level", Deflater.BEST_SPEED);
+
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final int LENGTH_OFFSET = FrameCodec.LENGTH_OFFSET;
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+    private final Inflater inflater = new Inflater(true);
+    private ByteBuffer deflated = ByteBuffer.allocate(4096);
+    private ByteBuffer inflated = ByteBuffer.allocate(4096);
+    private long rawBytes;
+    private long wireBytes;
+
+    // Whole frames back to back, as queued for a binary connection. Returns frames itself when none
+    // reaches the threshold, otherwise a new buffer with those payloads compressed and flagged.
+    public ByteBuffer compress(ByteBuffer frames) {
+        if (!hasLargePayload(frames)) return frames;
+        ByteBuffer out = deflated.clear();
+        int p = frames.position();
+        while (p < frames.limit()) {
+            int length = frames.getInt(p + LENGTH_OFFSET);
+            int end = p + FrameCodec.HEADER_SIZE + length;
+            out = ensureRoom(out, FrameCodec.HEADER_SIZE + length + length / 8 + 64);
+            if (length < THRESHOLD) {
+                out.put(frames.slice(p, end - p));
+            } else {
+                int header = out.position();
+                out.put(frames.get(p)).put((byte) (frames.get(p + 1) | ChatFrame.COMPRESSED))
+                        .putInt(frames.getInt(p + 2)).putInt(0);
+                out = deflate(frames.slice(p + FrameCodec.HEADER_SIZE, length), out);
+                // Drop the sync flush tail; the reader puts it back
+                out.position(out.position() - SYNC_TAIL.length);
+                int compressed = out.position() - header - FrameCodec.HEADER_SIZE;
+                out.putInt(header + LENGTH_OFFSET, compressed);
+                rawBytes += length;
+                wireBytes += compressed;
+            }
+            p = end;
+        }
+        deflated = out;
+        ByteBuffer result = ByteBuffer.allocate(out.flip().remaining());
+        return result.put(out).flip();
+    }
+
+    private static boolean hasLargePayload(ByteBuffer frames) {
+        for (int p = frames.position(); p + FrameCodec.HEADER_SIZE <= frames.limit(); ) {
+            int length = frames.getInt(p + LENGTH_OFFSET);
+            if (length >= THRESHOLD) return true;
+            p += FrameCodec.HEADER_SIZE + length;
+        }
+        return false;
+    }
+
+    private ByteBuffer deflate(ByteBuffer payload, ByteBuffer out) {
+        deflater.setInput(payload);
+        while (true) {
+            deflater.deflate(out, Deflater.SYNC_FLUSH);
+            // A full buffer may mean more output is waiting
+            if (out.hasRemaining()) return out;
+            out = ensureRoom(out, out.capacity());
+        }
+    }
+
+    // The payload of a frame flagged COMPRESSED, inflated into a buffer that is reused by the next call
+    public ByteBuffer inflate(ByteBuffer payload) throws ProtocolException {
+        ByteBuffer out = inflated.clear();
+        try {
+            for (ByteBuffer input : new ByteBuffer[]{payload, ByteBuffer.wrap(SYNC_TAIL)}) {
+                inflater.setInput(input);
+                while (true) {
+                    if (!out.hasRemaining()) {
+                        if (out.position() > FrameCodec.MAX_PAYLOAD) {
+                            throw new ProtocolException("Message exceeds " + FrameCodec.MAX_PAYLOAD + " bytes");
+                        }
+                        out = ensureRoom(out, out.capacity());
+                    }
+                    inflater.inflate(out);
+                    if (inflater.finished()) throw new ProtocolException("Compressed stream ended");
+                    if (inflater.needsInput() && out.hasRemaining()) break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed frame: " + e.getMessage());
+        }
+        inflated = out;
+        return out.flip();
+    }
+
+    private static ByteBuffer ensureRoom(ByteBuffer out, int needed) {
+        if (out.remaining() >= needed) return out;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+        return larger.put(out.flip());
+    }
+
+    // Payload bytes that went through compress() and what they became; for bytes-saved reporting
+    public long rawBytes() {
+        return rawBytes;
+    }
+
+    public long wireBytes() {
+        return wireBytes;
+    }
+
+    public void end() {
+        endCompressing();
+        endInflating();
+    }
+
+    // Each half can be released by the thread that uses it
+    public void endCompressing() {
+        deflater.end();
+    }
+
+    public void endInflating() {
+        inflater.end();
+    }
+}
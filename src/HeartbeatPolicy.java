@@ -0,0 +1,24 @@
+// Application-level liveness checks for binary clients, read from system properties:
+//   -Dchat.heartbeat.intervalMs  silence after which the server sends a PING (default 30000, 0 turns heartbeats off)
+//   -Dchat.heartbeat.timeoutMs   how long a PING may go unanswered before the connection is reaped (default 10000)
+//   -Dchat.heartbeat.tickMs      timing wheel granularity; deadlines are rounded up to it (default 100)
+// Text clients cannot answer a PING, so they get TCP keepalive probes on the same schedule instead.
+public record HeartbeatPolicy(long intervalMs, long timeoutMs, long tickMs) {
+    public static HeartbeatPolicy fromProperties() {
+        return new HeartbeatPolicy(Long.getLong("chat.heartbeat.intervalMs", 30_000),
+                Long.getLong("chat.heartbeat.timeoutMs", 10_000),
+                Math.max(1, Long.getLong("chat.heartbeat.tickMs", 100)));
+    }
+
+    public boolean enabled() {
+        return intervalMs > 0;
+    }
+
+    long intervalNanos() {
+        return intervalMs * 1_000_000L;
+    }
+
+    long timeoutNanos() {
+        return timeoutMs * 1_000_000L;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free log-linear histogram in the style of HdrHistogram: values below 256 are counted exactly,
+// larger ones in 128 linear sub-buckets per power of two, so any recorded value is reported within
+// 0.8% of its true size. Covers the full positive long range in a fixed 58 KB of counters; any
+// number of threads may record while another takes snapshots.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int SIZE = (Long.SIZE - SUB_BUCKET_BITS + 1) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    // A consistent-enough copy for reporting; records racing with it land in this one or the next
+    public Snapshot snapshot() {
+        long[] copy = new long[SIZE];
+        for (int i = 0; i < SIZE; i++) copy[i] = counts.get(i);
+        return new Snapshot(copy, max.get());
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    // Largest value that lands in the same bucket as those at index
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / HALF - 1;
+        long sub = index % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long max;
+        private final long count;
+
+        private Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            this.max = max;
+            long total = 0;
+            for (long c : counts) total += c;
+            this.count = total;
+        }
+
+        // What was recorded between earlier and this snapshot of the same histogram. The maximum is
+        // only known to bucket precision here.
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[counts.length];
+            long deltaMax = 0;
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+                if (delta[i] > 0) deltaMax = Math.min(highestValueAt(i), max);
+            }
+            return new Snapshot(delta, deltaMax);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            if (count == 0) return 0;
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) sum += (double) counts[i] * highestValueAt(i);
+            }
+            return sum / count;
+        }
+
+        // Smallest recorded value (bucket upper bound) at or above the given percentile, 0-100
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) return Math.min(highestValueAt(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator: opens N client connections (one virtual thread reading each), sends chat
+// messages at a fixed total rate with a configurable size distribution, and measures send-to-receive
+// latency of every delivery. Without chat.load.port it starts a relaying ChatServerEngine in this
+// JVM; with it, it targets a server in another process (ChatServerGUI, or serverSite with echo on).
+//
+// Run: java -Dchat.load.connections=200 -Dchat.load.rate=2000 -Dchat.load.size=uniform:16-1024 LoadGenerator
+//   chat.load.host / chat.load.port  target server (default: embedded server on a free loopback port)
+//   chat.load.connections            client connections (default 100)
+//   chat.load.protocol               binary or text (default binary)
+//   chat.load.rate                   messages per second across all connections (default 1000)
+//   chat.load.seconds                measured run length (default 10), after chat.load.warmup seconds (default 2)
+//   chat.load.size                   fixed:N, uniform:MIN-MAX or exponential:MEAN bytes (default fixed:64)
+//   chat.load.compress               negotiate per-connection compression, binary only (default false);
+//                                    the embedded server then reports bytes saved and time per message
+public class LoadGenerator {
+    // Every message starts with the marker and its intended send time, so any receiver can time it
+    private static final String MARKER = "LG";
+    private static final long DRAIN_TIMEOUT_MS = 5_000;
+
+    private final String host;
+    private final int connections;
+    private final boolean binary;
+    private final int rate;
+    private final int seconds;
+    private final int warmupSeconds;
+    private final SizeDistribution sizes;
+    private boolean compress;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder connectErrors = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder receiveErrors = new LongAdder();
+    private final List<Client> clients = new ArrayList<>();
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile boolean stopping;
+
+    public LoadGenerator(String host, int connections, boolean binary, int rate, int seconds, int warmupSeconds,
+                         SizeDistribution sizes) {
+        this.host = host;
+        this.connections = connections;
+        this.binary = binary;
+        this.rate = rate;
+        this.seconds = seconds;
+        this.warmupSeconds = warmupSeconds;
+        this.sizes = sizes;
+    }
+
+    // Ask the server to compress each binary connection; set before run()
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("chat.load.host", "localhost");
+        int port = Integer.getInteger("chat.load.port", 0);
+        LoadGenerator generator = new LoadGenerator(host,
+                Integer.getInteger("chat.load.connections", 100),
+                !System.getProperty("chat.load.protocol", "binary").equalsIgnoreCase("text"),
+                Integer.getInteger("chat.load.rate", 1000),
+                Integer.getInteger("chat.load.seconds", 10),
+                Integer.getInteger("chat.load.warmup", 2),
+                SizeDistribution.parse(System.getProperty("chat.load.size", "fixed:64")));
+        generator.setCompress(Boolean.getBoolean("chat.load.compress"));
+
+        ChatServerEngine embedded = null;
+        if (port == 0) {
+            port = freePort();
+            embedded = relayServer(port);
+            embedded.start();
+        }
+        try {
+            generator.run(port);
+            if (embedded != null) reportCompression(embedded.metrics());
+        } finally {
+            if (embedded != null) embedded.stop();
+        }
+        System.exit(0);
+    }
+
+    // Same relay rule as ChatServerGUI: every message goes to every other client
+    static ChatServerEngine relayServer(int port) {
+        Relay relay = new Relay();
+        relay.engine = new ChatServerEngine(port, relay);
+        return relay.engine;
+    }
+
+    public void run(int port) throws Exception {
+        System.out.printf("Load: %d %s connections to %s:%d, %d msg/s, size %s, %d s (+%d s warm-up)%n",
+                connections, binary ? (compress ? "compressed binary" : "binary") : "text", host, port, rate, sizes,
+                seconds, warmupSeconds);
+        connectAll(port);
+        System.out.printf("Connected %d/%d%n", clients.size(), connections);
+        if (clients.isEmpty()) {
+            report(0);
+            return;
+        }
+        // Text clients are subscribed once the server gives up waiting for a binary preamble
+        Thread.sleep(binary ? 100 : 500);
+
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        Thread progress = startProgress();
+        long sentBeforeMeasure = pace(start, end);
+        progress.interrupt();
+
+        // Let in-flight deliveries land before closing
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        long last = -1;
+        while (System.currentTimeMillis() < deadline && received.sum() != last) {
+            last = received.sum();
+            Thread.sleep(200);
+        }
+        stopping = true;
+        for (Client client : clients) client.close();
+        report(sentBeforeMeasure);
+    }
+
+    private void connectAll(int port) throws InterruptedException {
+        try (ExecutorService connectors = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Client>> pending = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                pending.add(connectors.submit(() -> binary ? new BinaryClient(port) : new TextClient(port)));
+            }
+            for (Future<Client> future : pending) {
+                try {
+                    Client client = future.get();
+                    clients.add(client);
+                    Thread.ofVirtual().name("LoadReader-" + clients.size()).start(client::readLoop);
+                } catch (Exception e) {
+                    connectErrors.increment();
+                }
+            }
+        }
+    }
+
+    // Send on random connections at the target rate until end. Each message carries the time it was
+    // due rather than when it went out, so a stalled send shows up as latency instead of hiding it.
+    // Returns how many messages were sent during warm-up.
+    private long pace(long start, long end) {
+        long interval = 1_000_000_000L / Math.max(1, rate);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long sentBeforeMeasure = 0;
+        StringBuilder message = new StringBuilder();
+        for (long i = 0; ; i++) {
+            long due = start + i * interval;
+            if (due - end >= 0) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            if (due - measureFrom < 0) sentBeforeMeasure++;
+
+            message.setLength(0);
+            message.append(MARKER).append(due).append(':');
+            int size = sizes.next(random);
+            while (message.length() < size) message.append((char) ('a' + message.length() % 26));
+            Client client = clients.get(random.nextInt(clients.size()));
+            try {
+                client.send(message.toString());
+                sent.increment();
+            } catch (IOException e) {
+                sendErrors.increment();
+            }
+        }
+        return sentBeforeMeasure;
+    }
+
+    private void onReceive(String text, long now) {
+        received.increment();
+        receivedBytes.add(text.length());
+        int at = text.indexOf(MARKER);
+        if (at < 0) return;
+        int end = text.indexOf(':', at);
+        if (end < 0) return;
+        try {
+            long due = Long.parseLong(text, at + MARKER.length(), end, 10);
+            if (due - measureFrom >= 0) latency.record(now - due);
+        } catch (NumberFormatException e) {
+            // Not one of ours
+        }
+    }
+
+    private Thread startProgress() {
+        Thread thread = new Thread(() -> {
+            long lastSent = 0;
+            long lastReceived = 0;
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    long s = sent.sum();
+                    long r = received.sum();
+                    System.out.printf("  sent %8d/s  received %9d/s%n", s - lastSent, r - lastReceived);
+                    lastSent = s;
+                    lastReceived = r;
+                }
+            } catch (InterruptedException e) {
+                // Run finished
+            }
+        }, "LoadProgress");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void report(long sentBeforeMeasure) {
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        long measuredSent = sent.sum() - sentBeforeMeasure;
+        System.out.println();
+        System.out.printf("sent       %10d msgs  %10.1f msg/s%n", measuredSent, measuredSent / (double) seconds);
+        // With a relaying server each message is delivered to every other connection
+        System.out.printf("delivered  %10d msgs  %10.1f msg/s%n", snapshot.count(), snapshot.count() / (double) seconds);
+        System.out.printf("bytes in   %10.1f MB%n", receivedBytes.sum() / 1e6);
+        System.out.printf("latency    p50 %s  p99 %s  p999 %s  max %s  mean %s%n",
+                millis(snapshot.percentile(50)), millis(snapshot.percentile(99)),
+                millis(snapshot.percentile(99.9)), millis(snapshot.max()), millis((long) snapshot.mean()));
+        System.out.printf("errors     connect %d  send %d  receive %d%n",
+                connectErrors.sum(), sendErrors.sum(), receiveErrors.sum());
+    }
+
+    private static void reportCompression(ServerMetrics metrics) {
+        long count = metrics.getCompressedMessages();
+        if (count == 0) return;
+        long saved = metrics.getCompressionBytesSaved();
+        System.out.printf("compressed %10d msgs  saved %.1f MB (%.0f%% of payload)  %.2f us/msg%n",
+                count, saved / 1e6, 100 * (1 - metrics.getCompressionRatio()), metrics.getCompressionMicrosPerMessage());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class Relay implements ChatServerEngine.Listener {
+        ChatServerEngine engine;
+
+        @Override
+        public void onConnect(ChatConnection connection) {
+        }
+
+        @Override
+        public void onMessage(ChatConnection connection, ChatFrame frame) {
+            if (frame.type() == ChatFrame.TEXT) engine.broadcast(frame.text(), connection);
+        }
+
+        @Override
+        public void onDisconnect(ChatConnection connection) {
+        }
+    }
+
+    private abstract class Client {
+        abstract void send(String message) throws IOException;
+
+        abstract String receive() throws IOException;
+
+        abstract void close();
+
+        void readLoop() {
+            try {
+                String text;
+                while ((text = receive()) != null) {
+                    onReceive(text, System.nanoTime());
+                }
+                if (!stopping) receiveErrors.increment();
+            } catch (IOException e) {
+                if (!stopping) receiveErrors.increment();
+            }
+        }
+    }
+
+    // The binary protocol through FrameChannel
+    private final class BinaryClient extends Client {
+        private final FrameChannel channel;
+
+        BinaryClient(int port) throws IOException {
+            this.channel = FrameChannel.connect(host, port, 0, null, compress);
+        }
+
+        @Override
+        void send(String message) throws IOException {
+            channel.sendText(message);
+        }
+
+        @Override
+        String receive() throws IOException {
+            ChatFrame frame;
+            while ((frame = channel.read()) != null) {
+                if (frame.type() == ChatFrame.TEXT) return frame.text();
+                if (frame.type() == ChatFrame.EXIT) return null;
+            }
+            return null;
+        }
+
+        @Override
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore cleanup errors
+            }
+        }
+    }
+
+    // The legacy line protocol, as clientSite speaks it
+    private final class TextClient extends Client {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final OutputStream out;
+
+        TextClient(int port) throws IOException {
+            this.socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        synchronized void send(String message) throws IOException {
+            out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        String receive() throws IOException {
+            String line = reader.readLine();
+            return line == null || line.equalsIgnoreCase("exit") ? null : line;
+        }
+
+        @Override
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore cleanup errors
+            }
+        }
+    }
+
+    // Message sizes in bytes (ASCII), never below what the timing header needs
+    public record SizeDistribution(String kind, int a, int b) {
+        private static final int MIN_SIZE = 24;
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            String kind = parts[0].toLowerCase();
+            String arg = parts.length > 1 ? parts[1] : "64";
+            switch (kind) {
+                case "fixed", "exponential" -> {
+                    return new SizeDistribution(kind, Integer.parseInt(arg), 0);
+                }
+                case "uniform" -> {
+                    String[] range = arg.split("-", 2);
+                    return new SizeDistribution(kind, Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+                }
+                default -> throw new IllegalArgumentException("Unknown size distribution: " + spec);
+            }
+        }
+
+        int next(ThreadLocalRandom random) {
+            int size = switch (kind) {
+                case "uniform" -> a + random.nextInt(Math.max(1, b - a + 1));
+                case "exponential" -> (int) Math.min(FrameCodec.MAX_PAYLOAD, -a * Math.log(1 - random.nextDouble()));
+                default -> a;
+            };
+            return Math.max(MIN_SIZE, size);
+        }
+
+        @Override
+        public String toString() {
+            return kind.equals("uniform") ? kind + ":" + a + "-" + b : kind + ":" + a;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Durable mailboxes for direct messages to users who are not logged in anywhere, delivered when they
+// next log in. Nothing is kept in memory per user, so memory stays flat however many users have
+// mail: names hash into a fixed set of shard files, and each shard is an append-only run of records
+//   [int length of the rest][byte name length][lower-cased name, UTF-8][long sent millis][text, UTF-8]
+// A login reads its user's shard and packs that user's messages into a few large writes; only once the
+// connection reports all of them written to its socket is the shard rewritten without them, so a client
+// that goes away first gets them again on its next login. Holding a message is a plain append. A user keeps the newest maxMessages; older
+// ones are dropped when their shard fills up or when they are delivered.
+//
+// All file work happens in order on one mailbox thread. It takes queued operations in batches and
+// forces each shard written by a batch once, after the whole batch (group commit).
+public class Mailboxes implements Closeable {
+    public static final int DEFAULT_MAX_MESSAGES = Integer.getInteger("chat.mailbox.maxMessages", 100);
+    public static final long DEFAULT_MAX_SHARD_BYTES = Long.getLong("chat.mailbox.maxShardBytes", 4L << 20);
+    private static final int SHARDS = 4096;
+    // Operations waiting for the mailbox thread; beyond this a message is refused rather than held
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_OPEN_SHARDS = 64;
+    // Delivered messages are packed into writes of about this size
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8;
+    private static final String SHARD_SUFFIX = ".box";
+    private static final Runnable STOP = () -> {
+    };
+    // Wakes the mailbox thread for the settlements; never refused for long, since a full queue means
+    // the thread is busy and looks at them after the batch anyway
+    private static final Runnable WAKE = () -> {
+    };
+    private static final DateTimeFormatter SENT = DateTimeFormatter.ofPattern("MMM d HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    private final ChatServerEngine engine;
+    private final Path directory;
+    private final int maxMessages;
+    private final long maxShardBytes;
+    private final BlockingQueue<Runnable> tasks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread worker;
+    private volatile boolean closed;
+    // Mailbox thread only: shards written since the last commit, kept open until then, and which
+    // shards have been checked for a torn last record since opening
+    private final Map<Integer, FileChannel> openShards = new HashMap<>();
+    private final BitSet checked = new BitSet(SHARDS);
+    private final Records records = new Records();
+    // Users with a delivery on its way to their connection; mail for them waits until it settles.
+    // Mailbox thread only.
+    private final Set<String> delivering = new HashSet<>();
+    // Outcomes of deliveries, reported by the connections' loops for the mailbox thread
+    private final Queue<Runnable> settlements = new ConcurrentLinkedQueue<>();
+
+    private Mailboxes(ChatServerEngine engine, Path directory, int maxMessages, long maxShardBytes) {
+        this.engine = engine;
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxShardBytes = maxShardBytes;
+        this.worker = new Thread(this::run, "Mailboxes");
+        this.worker.setDaemon(true);
+    }
+
+    public static Mailboxes open(ChatServerEngine engine, Path directory) throws IOException {
+        return open(engine, directory, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_SHARD_BYTES);
+    }
+
+    public static Mailboxes open(ChatServerEngine engine, Path directory, int maxMessages, long maxShardBytes)
+            throws IOException {
+        Files.createDirectories(directory);
+        try (var leftovers = Files.newDirectoryStream(directory, "*.tmp")) {
+            // Rewrites a crash interrupted; the shards they were replacing are still whole
+            for (Path leftover : leftovers) Files.deleteIfExists(leftover);
+        }
+        Mailboxes mailboxes = new Mailboxes(engine, directory, maxMessages, maxShardBytes);
+        mailboxes.worker.start();
+        return mailboxes;
+    }
+
+    // Hold text for `to`, who is not logged in anywhere; `from` hears about it if the mailbox is full.
+    // False if the name is invalid or the mailbox thread is too far behind to take it.
+    public boolean hold(ChatConnection from, String to, String text) {
+        if (closed || !UserRegistry.isValidName(to)) return false;
+        long sent = System.currentTimeMillis();
+        return tasks.offer(() -> append(from, to, sent, text));
+    }
+
+    // Send a connection that just logged in whatever was held for its user
+    public void deliver(ChatConnection connection) {
+        String key = UserRegistry.key(connection.getUsername());
+        if (closed || !tasks.offer(() -> drain(key, connection))) {
+            System.out.println("Mailboxes busy; " + key + " gets their messages on their next login");
+        }
+    }
+
+    private void append(ChatConnection from, String to, long sent, String text) {
+        String key = UserRegistry.key(to);
+        byte[] name = key.getBytes(StandardCharsets.UTF_8);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + name.length + body.length);
+        record.putInt(record.capacity() - 4).put((byte) name.length).put(name).putLong(sent).put(body).flip();
+        int shard = shardOf(key);
+        try {
+            FileChannel file = open(shard);
+            if (file.size() + record.remaining() > maxShardBytes) file = compact(shard, file);
+            if (file.size() + record.remaining() > maxShardBytes) {
+                from.send("Mailboxes are full; " + to + " will not get that message");
+                return;
+            }
+            long end = file.size();
+            while (record.hasRemaining()) end += file.write(record, end);
+        } catch (IOException e) {
+            System.out.println("Mailbox error: " + e.getMessage());
+            from.send("Could not keep that message for " + to);
+            return;
+        }
+        // They may have logged in after the sender looked for them
+        ChatConnection online = engine.users().find(key);
+        if (online != null) drain(key, online);
+    }
+
+    private void drain(String key, ChatConnection connection) {
+        // The delivery on its way looks again once it settles
+        if (delivering.contains(key)) return;
+        int shard = shardOf(key);
+        if (!openShards.containsKey(shard) && !Files.exists(shardPath(shard))) return;
+        byte[] name = key.getBytes(StandardCharsets.UTF_8);
+        try {
+            FileChannel file = open(shard);
+            int count = 0;
+            records.start(file);
+            while (records.next()) {
+                if (records.isFor(name)) count++;
+            }
+            if (count == 0) return;
+            int skip = Math.max(0, count - maxMessages);
+            Batch batch = new Batch(connection);
+            batch.add((count == 1 ? "1 message" : count + " messages") + " arrived while you were away"
+                    + (skip > 0 ? "; the oldest " + skip + " did not fit in your mailbox" : ""));
+            // Every record read, skipped or not, leaves the shard once the batch is out
+            Map<ByteBuffer, Integer> taken = new HashMap<>();
+            records.start(file);
+            while (records.next()) {
+                if (!records.isFor(name)) continue;
+                taken.merge(records.copy(), 1, Integer::sum);
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    batch.add("[" + SENT.format(Instant.ofEpochMilli(records.sent())) + "] " + records.text());
+                }
+            }
+            delivering.add(key);
+            connection.sendConfirmed(batch.messages(), written -> {
+                settlements.add(() -> settle(key, connection, taken, written));
+                tasks.offer(WAKE);
+            });
+        } catch (IOException e) {
+            System.out.println("Mailbox error: " + e.getMessage());
+        }
+    }
+
+    // A delivery finished. Once written, its records are cut from the shard wherever appends and
+    // compaction have moved them since; a crash before that delivers them again rather than losing them.
+    // Otherwise they stay for the next login.
+    private void settle(String key, ChatConnection connection, Map<ByteBuffer, Integer> taken, boolean written) {
+        delivering.remove(key);
+        if (written) forget(key, taken);
+        // Mail that arrived meanwhile, or a newer connection that logged in while this one was failing
+        ChatConnection online = engine.users().find(key);
+        if (online != null && (written || online != connection)) drain(key, online);
+    }
+
+    private void forget(String key, Map<ByteBuffer, Integer> taken) {
+        int shard = shardOf(key);
+        byte[] name = key.getBytes(StandardCharsets.UTF_8);
+        Path temporary = temporaryPath(shard);
+        try {
+            FileChannel file = open(shard);
+            boolean removed = false;
+            try (FileChannel rest = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // Everyone else's records, and this user's newer ones, are copied across in runs
+                long runStart = 0;
+                records.start(file);
+                while (records.next()) {
+                    if (!records.isFor(name) || !take(taken, records.view())) continue;
+                    copy(file, runStart, records.position - runStart, rest);
+                    runStart = records.end();
+                    removed = true;
+                }
+                copy(file, runStart, records.end() - runStart, rest);
+                rest.force(false);
+            }
+            if (removed) {
+                replace(shard, file, temporary);
+            } else {
+                Files.delete(temporary);
+            }
+        } catch (IOException e) {
+            System.out.println("Mailbox error: " + e.getMessage());
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException cleanup) {
+                // Ignore cleanup errors
+            }
+        }
+    }
+
+    // Count one delivered copy of record off; false if none is left to take
+    private static boolean take(Map<ByteBuffer, Integer> taken, ByteBuffer record) {
+        Integer left = taken.get(record);
+        if (left == null) return false;
+        if (left == 1) {
+            taken.remove(record);
+        } else {
+            taken.put(record, left - 1);
+        }
+        return true;
+    }
+
+    // The shard is over its size limit: keep only each user's newest maxMessages. It only shrinks if
+    // someone was over that. Returns the channel to append to.
+    private FileChannel compact(int shard, FileChannel file) throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        records.start(file);
+        while (records.next()) counts.merge(records.name(), 1, Integer::sum);
+        if (counts.values().stream().allMatch(count -> count <= maxMessages)) return file;
+        Path temporary = temporaryPath(shard);
+        try (FileChannel rest = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            records.start(file);
+            while (records.next()) {
+                // Kept when fewer than maxMessages of the same user's come after it
+                if (counts.merge(records.name(), -1, Integer::sum) < maxMessages) {
+                    copy(file, records.position, records.end() - records.position, rest);
+                }
+            }
+            rest.force(false);
+        }
+        replace(shard, file, temporary);
+        return open(shard);
+    }
+
+    private void replace(int shard, FileChannel file, Path temporary) throws IOException {
+        // The open channel would keep writing to the file being replaced
+        openShards.remove(shard);
+        file.close();
+        Files.move(temporary, shardPath(shard), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private FileChannel open(int shard) throws IOException {
+        FileChannel file = openShards.get(shard);
+        if (file != null) return file;
+        if (openShards.size() >= MAX_OPEN_SHARDS) commit();
+        file = FileChannel.open(shardPath(shard), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        openShards.put(shard, file);
+        if (!checked.get(shard)) {
+            // A crash mid-append leaves a torn last record; cut it off before appending after it
+            records.start(file);
+            while (records.next()) {
+                // Skip to the end of the whole records
+            }
+            if (records.end() < file.size()) file.truncate(records.end());
+            checked.set(shard);
+        }
+        return file;
+    }
+
+    // One fsync per shard written since the last commit covers every append to it
+    private void commit() {
+        for (FileChannel file : openShards.values()) {
+            try {
+                file.force(false);
+                file.close();
+            } catch (IOException e) {
+                System.out.println("Mailbox error: " + e.getMessage());
+            }
+        }
+        openShards.clear();
+    }
+
+    private void run() {
+        List<Runnable> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(tasks.take());
+            } catch (InterruptedException e) {
+                commit();
+                return;
+            }
+            tasks.drainTo(batch);
+            boolean stop = false;
+            for (Runnable task : batch) {
+                if (task == STOP) {
+                    stop = true;
+                } else {
+                    task.run();
+                }
+            }
+            batch.clear();
+            Runnable settlement;
+            while ((settlement = settlements.poll()) != null) settlement.run();
+            commit();
+            if (stop) return;
+        }
+    }
+
+    // Wait until everything queued so far is on disk
+    void awaitIdle() throws InterruptedException {
+        Object done = new Object();
+        boolean[] finished = {false};
+        tasks.put(() -> {
+            commit();
+            synchronized (done) {
+                finished[0] = true;
+                done.notifyAll();
+            }
+        });
+        synchronized (done) {
+            while (!finished[0]) done.wait();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            tasks.put(STOP);
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Path shardPath(int shard) {
+        return directory.resolve(String.format("%03x", shard) + SHARD_SUFFIX);
+    }
+
+    private Path temporaryPath(int shard) {
+        return directory.resolve(String.format("%03x", shard) + SHARD_SUFFIX + ".tmp");
+    }
+
+    private static int shardOf(String key) {
+        return Math.floorMod(key.hashCode(), SHARDS);
+    }
+
+    private static void copy(FileChannel from, long position, long count, FileChannel to) throws IOException {
+        while (count > 0) {
+            long copied = from.transferTo(position, count, to);
+            position += copied;
+            count -= copied;
+        }
+    }
+
+    // Reads a shard's whole records front to back through one reusable buffer
+    private static final class Records {
+        private ByteBuffer buffer = ByteBuffer.allocate(BATCH_BYTES);
+        private FileChannel file;
+        private long size;
+        // File position of the buffer's first byte
+        private long bufferStart;
+        // The current record: where it starts in the file and the buffer, and its whole length
+        long position;
+        private int offset;
+        private int length;
+        private int nameLength;
+
+        void start(FileChannel file) throws IOException {
+            this.file = file;
+            this.size = file.size();
+            this.bufferStart = 0;
+            this.buffer.clear().limit(0);
+            this.position = 0;
+            this.length = 0;
+        }
+
+        // Move to the next record; false at the end, or at a record torn by a crash
+        boolean next() throws IOException {
+            position += length;
+            length = 0;
+            if (!load(position, 4)) return false;
+            int rest = buffer.getInt(offset);
+            if (rest < RECORD_OVERHEAD - 4 || rest > size - position - 4 || !load(position, 4 + rest)) return false;
+            int names = buffer.get(offset + 4) & 0xff;
+            if (RECORD_OVERHEAD - 4 + names > rest) return false;
+            nameLength = names;
+            length = 4 + rest;
+            return true;
+        }
+
+        // Where the records read so far end
+        long end() {
+            return position + length;
+        }
+
+        boolean isFor(byte[] name) {
+            int from = offset + 5;
+            return nameLength == name.length
+                    && Arrays.equals(buffer.array(), from, from + nameLength, name, 0, name.length);
+        }
+
+        String name() {
+            return new String(buffer.array(), offset + 5, nameLength, StandardCharsets.UTF_8);
+        }
+
+        // The whole current record, as a key that compares by content: view() only until the next read
+        ByteBuffer view() {
+            return ByteBuffer.wrap(buffer.array(), offset, length).slice();
+        }
+
+        ByteBuffer copy() {
+            return ByteBuffer.wrap(Arrays.copyOfRange(buffer.array(), offset, offset + length));
+        }
+
+        long sent() {
+            return buffer.getLong(offset + 5 + nameLength);
+        }
+
+        String text() {
+            int from = offset + 5 + nameLength + 8;
+            return new String(buffer.array(), from, offset + length - from, StandardCharsets.UTF_8);
+        }
+
+        private boolean load(long at, int count) throws IOException {
+            if (at + count > size) return false;
+            if (at >= bufferStart && at + count <= bufferStart + buffer.limit()) {
+                offset = (int) (at - bufferStart);
+                return true;
+            }
+            // Grows for a record longer than the buffer, which only a very long message makes
+            if (buffer.capacity() < count) buffer = ByteBuffer.allocate(count);
+            buffer.clear();
+            bufferStart = at;
+            while (buffer.hasRemaining() && file.read(buffer, at + buffer.position()) >= 0) {
+                // Fill as much of the buffer as the file has
+            }
+            buffer.flip();
+            offset = 0;
+            return buffer.limit() >= count;
+        }
+    }
+
+    // Messages for one connection packed into a few large buffers, sent together
+    private static final class Batch {
+        private final ChatConnection connection;
+        private final List<ByteBuffer> messages = new ArrayList<>();
+        private ByteBuffer buffer;
+
+        Batch(ChatConnection connection) {
+            this.connection = connection;
+        }
+
+        void add(String text) {
+            ByteBuffer message = connection.isBinary()
+                    ? FrameCodec.encodeText(ChatFrame.TEXT, (byte) 0, 0, text)
+                    : ChatConnection.encodeLine(text);
+            if (buffer != null && buffer.remaining() < message.remaining()) seal();
+            if (buffer == null) buffer = ByteBuffer.allocate(Math.max(BATCH_BYTES, message.remaining()));
+            buffer.put(message);
+        }
+
+        List<ByteBuffer> messages() {
+            if (buffer != null) seal();
+            return messages;
+        }
+
+        private void seal() {
+            messages.add(buffer.flip());
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+// Persistent, append-only chat history. Records are stored exactly as binary protocol frames
+// (FrameCodec layout, seq in the header), so replaying to a binary client is a straight
+// FileChannel.transferTo from the segment into the socket.
+//
+// The log is a directory of fixed-size segments named after their first sequence number.
+// The active segment is written through a MappedByteBuffer; a flusher thread forces it to disk
+// every flush interval, so one fsync covers every append since the last (group commit). Each
+// segment has a sparse .idx file with one (seq, position) entry per INDEX_INTERVAL bytes.
+public class MessageLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = Integer.getInteger("chat.log.segmentBytes", 64 * 1024 * 1024);
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = Long.getLong("chat.log.flushMs", 10);
+    private static final int INDEX_INTERVAL = 4096;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Thread flusher;
+    private final Object flushLock = new Object();
+    private Segment active;
+    private volatile int lastSeq;
+    private volatile int flushedSeq;
+    private volatile boolean closed;
+
+    private MessageLog(Path directory, int segmentSize, long flushIntervalMs) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flusher = new Thread(() -> flushLoop(flushIntervalMs), "MessageLogFlusher");
+        this.flusher.setDaemon(true);
+    }
+
+    public static MessageLog open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public static MessageLog open(Path directory, int segmentSize, long flushIntervalMs) throws IOException {
+        if (segmentSize < FrameCodec.HEADER_SIZE + FrameCodec.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Segment size must hold the largest frame");
+        }
+        Files.createDirectories(directory);
+        MessageLog log = new MessageLog(directory, segmentSize, flushIntervalMs);
+        log.recover();
+        log.flusher.start();
+        return log;
+    }
+
+    public int lastSeq() {
+        return lastSeq;
+    }
+
+    public int firstSeq() {
+        return segments.isEmpty() ? 1 : segments.get(0).baseSeq;
+    }
+
+    // Append a text record and return its sequence number. Durable after the next group commit.
+    public synchronized int append(byte type, CharSequence text) throws IOException {
+        if (closed) throw new IOException("Message log is closed");
+        int size = FrameCodec.HEADER_SIZE + FrameCodec.utf8Length(text);
+        if (active.mapped.remaining() < size) roll();
+
+        int seq = lastSeq + 1;
+        active.append(seq, size, out -> FrameCodec.writeText(out, type, (byte) 0, seq, text));
+        lastSeq = seq;
+        return seq;
+    }
+
+    // Block until every record up to seq has been forced to disk
+    public void awaitFlushed(int seq) throws InterruptedException {
+        synchronized (flushLock) {
+            while (flushedSeq < seq && !closed) {
+                flushLock.wait();
+            }
+        }
+    }
+
+    // File regions holding every record with sequence >= fromSeq, in order, ready for transferTo.
+    // Records appended after this call are not included.
+    public List<Region> regionsFrom(int fromSeq) throws IOException {
+        List<Region> regions = new ArrayList<>();
+        int from = Math.max(fromSeq, firstSeq());
+        for (Segment segment : segments) {
+            long end = segment.writePosition;
+            if (segment.lastSeq < from || end == 0) continue;
+            long start = segment.positionOf(from);
+            if (start < end) regions.add(new Region(segment.channel, start, end - start));
+        }
+        return regions;
+    }
+
+    // The text of record seq, or null if the log does not hold it
+    public String read(int seq) throws IOException {
+        if (seq < firstSeq() || seq > lastSeq) return null;
+        for (Segment segment : segments) {
+            if (seq < segment.baseSeq || seq > segment.lastSeq) continue;
+            long position = segment.positionOf(seq);
+            ByteBuffer header = readFully(segment.channel, ByteBuffer.allocate(FrameCodec.HEADER_SIZE), position);
+            ByteBuffer payload = readFully(segment.channel, ByteBuffer.allocate(header.getInt(6)),
+                    position + FrameCodec.HEADER_SIZE);
+            return StandardCharsets.UTF_8.decode(payload).toString();
+        }
+        return null;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Message log truncated");
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        flusher.interrupt();
+        forceActive();
+        for (Segment segment : segments) segment.close();
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(LOG_SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            int baseSeq = Integer.parseInt(name.substring(0, name.length() - LOG_SUFFIX.length()));
+            segments.add(Segment.open(directory, baseSeq, segmentSize));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.open(directory, 1, segmentSize));
+        }
+        active = segments.get(segments.size() - 1);
+        lastSeq = active.lastSeq;
+        flushedSeq = lastSeq;
+    }
+
+    // Seal the active segment and start a new one at the next sequence number
+    private void roll() throws IOException {
+        active.mapped.force();
+        active.flushIndex();
+        active = Segment.open(directory, lastSeq + 1, segmentSize);
+        segments.add(active);
+    }
+
+    private void flushLoop(long intervalMs) {
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (flushedSeq == lastSeq) continue;
+            try {
+                forceActive();
+            } catch (IOException e) {
+                System.out.println("Message log flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void forceActive() throws IOException {
+        Segment segment;
+        int seq;
+        synchronized (this) {
+            segment = active;
+            seq = lastSeq;
+        }
+        // Earlier segments were forced when they were sealed
+        segment.mapped.force();
+        segment.flushIndex();
+        synchronized (flushLock) {
+            flushedSeq = Math.max(flushedSeq, seq);
+            flushLock.notifyAll();
+        }
+    }
+
+    public record Region(FileChannel channel, long position, long count) {
+    }
+
+    private interface RecordWriter {
+        void write(ByteBuffer out);
+    }
+
+    private static final class Segment {
+        final int baseSeq;
+        final Path indexFile;
+        final FileChannel channel;
+        final MappedByteBuffer mapped;
+        final ByteBuffer pendingIndex = ByteBuffer.allocate(8 * 64);
+        FileChannel indexChannel;
+        int[] indexSeqs = new int[16];
+        int[] indexPositions = new int[16];
+        int indexSize;
+        long nextIndexAt;
+        volatile long writePosition;
+        volatile int lastSeq;
+
+        private Segment(int baseSeq, Path indexFile, FileChannel channel, MappedByteBuffer mapped) {
+            this.baseSeq = baseSeq;
+            this.indexFile = indexFile;
+            this.channel = channel;
+            this.mapped = mapped;
+            this.lastSeq = baseSeq - 1;
+        }
+
+        static Segment open(Path directory, int baseSeq, int size) throws IOException {
+            String name = String.format("%020d", baseSeq);
+            Path logFile = directory.resolve(name + LOG_SUFFIX);
+            Path indexFile = directory.resolve(name + INDEX_SUFFIX);
+            FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long mapSize = Math.max(size, channel.size());
+            Segment segment = new Segment(baseSeq, indexFile, channel,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize));
+            segment.recover();
+            return segment;
+        }
+
+        // Find the end of valid data, starting from the last indexed record when the index agrees
+        private void recover() throws IOException {
+            loadIndex();
+            int position = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+            int seq = indexSize > 0 ? indexSeqs[indexSize - 1] : baseSeq;
+            if (indexSize > 0 && !isRecordAt(position, seq)) {
+                indexSize = 0;
+                position = 0;
+                seq = baseSeq;
+            }
+            while (isRecordAt(position, seq)) {
+                if (position >= nextIndexAt) addIndexEntry(seq, position);
+                position += FrameCodec.HEADER_SIZE + mapped.getInt(position + 6);
+                seq++;
+            }
+            mapped.position(position);
+            writePosition = position;
+            lastSeq = seq - 1;
+            rewriteIndex();
+        }
+
+        private boolean isRecordAt(int position, int seq) {
+            if (position + FrameCodec.HEADER_SIZE > mapped.capacity()) return false;
+            if (mapped.get(position) == 0 || mapped.getInt(position + 2) != seq) return false;
+            int length = mapped.getInt(position + 6);
+            return length >= 0 && length <= FrameCodec.MAX_PAYLOAD
+                    && position + FrameCodec.HEADER_SIZE + length <= mapped.capacity();
+        }
+
+        void append(int seq, int size, RecordWriter writer) {
+            int position = mapped.position();
+            writer.write(mapped);
+            if (position >= nextIndexAt) addIndexEntry(seq, position);
+            lastSeq = seq;
+            writePosition = position + size;
+        }
+
+        // Entries are also queued for the .idx file once recovery has opened it
+        private synchronized void addIndexEntry(int seq, int position) {
+            if (indexSize == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexSeqs[indexSize] = seq;
+            indexPositions[indexSize] = position;
+            indexSize++;
+            nextIndexAt = position + INDEX_INTERVAL;
+            if (indexChannel == null) return;
+
+            if (!pendingIndex.hasRemaining()) {
+                try {
+                    flushIndex();
+                } catch (IOException e) {
+                    // The index is rebuilt from the log on recovery
+                    pendingIndex.clear();
+                }
+            }
+            pendingIndex.putInt(seq).putInt(position);
+        }
+
+        // Byte offset of the first record with sequence >= seq
+        synchronized long positionOf(int seq) throws IOException {
+            if (seq > lastSeq) return writePosition;
+            int lo = 0;
+            int hi = indexSize - 1;
+            int position = 0;
+            int current = baseSeq;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexSeqs[mid] <= seq) {
+                    position = indexPositions[mid];
+                    current = indexSeqs[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (current < seq) {
+                channel.read(length.clear(), position + 6);
+                position += FrameCodec.HEADER_SIZE + length.getInt(0);
+                current++;
+            }
+            return position;
+        }
+
+        private void loadIndex() throws IOException {
+            if (!Files.exists(indexFile)) return;
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            while (bytes.remaining() >= 8) {
+                int seq = bytes.getInt();
+                int position = bytes.getInt();
+                if (indexSize == indexSeqs.length) {
+                    indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                }
+                indexSeqs[indexSize] = seq;
+                indexPositions[indexSize] = position;
+                indexSize++;
+            }
+            if (indexSize > 0) nextIndexAt = indexPositions[indexSize - 1] + INDEX_INTERVAL;
+        }
+
+        // Recovery may have dropped or added entries, so start the index file over from memory
+        private void rewriteIndex() throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(indexSize * 8);
+            for (int i = 0; i < indexSize; i++) bytes.putInt(indexSeqs[i]).putInt(indexPositions[i]);
+            indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            bytes.flip();
+            while (bytes.hasRemaining()) indexChannel.write(bytes);
+            pendingIndex.clear();
+        }
+
+        synchronized void flushIndex() throws IOException {
+            pendingIndex.flip();
+            while (pendingIndex.hasRemaining()) indexChannel.write(pendingIndex);
+            pendingIndex.clear();
+        }
+
+        void close() throws IOException {
+            flushIndex();
+            indexChannel.close();
+            channel.close();
+        }
+    }
+}
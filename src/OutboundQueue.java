@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded multi-producer queue of encoded messages for one recipient. Producers never block;
+// when the queue is full the SlowConsumerPolicy decides what gives. Only the owning event loop polls.
+public class OutboundQueue {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+
+    private final Queue<ByteBuffer> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    // Returns false only when the policy is DISCONNECT and the recipient is over capacity
+    public boolean offer(ByteBuffer message) {
+        if (size.incrementAndGet() <= capacity) {
+            messages.add(message);
+            return true;
+        }
+
+        switch (policy) {
+            case DROP_OLDEST:
+                if (messages.poll() != null) {
+                    size.decrementAndGet();
+                    dropped.increment();
+                }
+                messages.add(message);
+                return true;
+            case DROP_NEWEST:
+                size.decrementAndGet();
+                dropped.increment();
+                return true;
+            default:
+                size.decrementAndGet();
+                return false;
+        }
+    }
+
+    public ByteBuffer poll() {
+        ByteBuffer message = messages.poll();
+        if (message != null) size.decrementAndGet();
+        return message;
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public void clear() {
+        while (poll() != null) {
+            // Drain
+        }
+    }
+}
@@ -0,0 +1,43 @@
+// Inbound message budgets, read from system properties; a rate of 0 (the default) means no limit:
+//   -Dchat.rate.connection       messages per second per connection
+//   -Dchat.rate.connectionBurst  messages a connection may send at once after being quiet (default 2x the rate)
+//   -Dchat.rate.user             messages per second per logged-in user, kept across reconnects
+//   -Dchat.rate.userBurst        (default 2x the user rate)
+//   -Dchat.rate.action           throttle|drop|disconnect (default throttle)
+public record RateLimitPolicy(double connectionRate, int connectionBurst, double userRate, int userBurst,
+                              Action action) {
+    // What happens to a message over budget
+    public enum Action {
+        THROTTLE,   // stop reading from the client until a token is due; TCP backpressure does the rest
+        DROP,       // discard the message
+        DISCONNECT; // close the connection
+
+        public static Action fromProperty() {
+            return valueOf(System.getProperty("chat.rate.action", "throttle").trim().toUpperCase());
+        }
+    }
+
+    public static RateLimitPolicy fromProperties() {
+        double connectionRate = rate("chat.rate.connection");
+        double userRate = rate("chat.rate.user");
+        return new RateLimitPolicy(connectionRate, Integer.getInteger("chat.rate.connectionBurst", burst(connectionRate)),
+                userRate, Integer.getInteger("chat.rate.userBurst", burst(userRate)), Action.fromProperty());
+    }
+
+    private static double rate(String property) {
+        return Double.parseDouble(System.getProperty(property, "0"));
+    }
+
+    private static int burst(double rate) {
+        return (int) Math.max(1, Math.ceil(rate * 2));
+    }
+
+    // A fresh bucket for one connection, or null when connections are not limited
+    TokenBucket connectionBucket() {
+        return connectionRate > 0 ? new TokenBucket(connectionRate, connectionBurst) : null;
+    }
+
+    TokenBucket userBucket() {
+        return userRate > 0 ? new TokenBucket(userRate, userBurst) : null;
+    }
+}
@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Ring of the most recently broadcast binary frames, indexed by sequence number, so a client that
+// reconnects after a short outage is caught up from memory instead of the message log. Bounded both
+// by frame count and by total bytes, so a run of large messages cannot pin unbounded memory; the
+// oldest frames are dropped first and a client that missed them is caught up from the log.
+// Not thread-safe: the engine appends and reads under its broadcast lock.
+public class ReplayBuffer {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.replay.capacity", 4096);
+    public static final long DEFAULT_MAX_BYTES = Long.getLong("chat.replay.maxBytes", 4 * 1024 * 1024);
+
+    private final ByteBuffer[] frames;
+    private final long maxBytes;
+    private int newestSeq;
+    private int count;
+    private long bytes;
+
+    public ReplayBuffer(int capacity) {
+        this(capacity, DEFAULT_MAX_BYTES);
+    }
+
+    public ReplayBuffer(int capacity, long maxBytes) {
+        this.frames = new ByteBuffer[Math.max(1, capacity)];
+        this.maxBytes = maxBytes;
+    }
+
+    // seq must be exactly one past the previous append; a gap (e.g. the log was reopened) starts over
+    public void add(int seq, ByteBuffer frame) {
+        if (seq != newestSeq + 1) {
+            Arrays.fill(frames, null);
+            count = 0;
+            bytes = 0;
+        }
+        if (count == frames.length) evictOldest();
+        frames[Math.floorMod(seq, frames.length)] = frame;
+        newestSeq = seq;
+        count++;
+        bytes += frame.remaining();
+        while (bytes > maxBytes && count > 0) evictOldest();
+    }
+
+    private void evictOldest() {
+        int oldest = Math.floorMod(newestSeq - count + 1, frames.length);
+        bytes -= frames[oldest].remaining();
+        frames[oldest] = null;
+        count--;
+    }
+
+    public int newestSeq() {
+        return newestSeq;
+    }
+
+    // True when every frame after afterSeq is still held
+    public boolean covers(int afterSeq) {
+        return afterSeq >= newestSeq - count && afterSeq <= newestSeq;
+    }
+
+    // Every frame after afterSeq copied back to back into one buffer, so the whole catch-up takes a
+    // single outbound queue slot. Only valid when covers(afterSeq); null when the frames are too
+    // large for one buffer, in which case the caller replays from the log.
+    public ByteBuffer framesAfter(int afterSeq) {
+        long size = 0;
+        for (int seq = afterSeq + 1; seq <= newestSeq; seq++) {
+            size += frames[Math.floorMod(seq, frames.length)].remaining();
+        }
+        if (size > Integer.MAX_VALUE - 8) return null;
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        for (int seq = afterSeq + 1; seq <= newestSeq; seq++) {
+            out.put(frames[Math.floorMod(seq, frames.length)].duplicate());
+        }
+        return out.flip();
+    }
+}
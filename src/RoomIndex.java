@@ -0,0 +1,99 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Named rooms: room -> member set and member -> room names. Each room is a Broadcaster, so publishing
+// is a lock-free lookup plus an O(members) walk over a concurrent set. Joins and leaves lock only the
+// room's own hash bin (compute), so churn never blocks publishers or touches other rooms. A room
+// exists while it has members.
+public class RoomIndex {
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, Broadcaster> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ChatConnection, Set<String>> memberships = new ConcurrentHashMap<>();
+    private volatile Runnable roomsChanged = () -> { };
+
+    // Letters, digits, '-' and '_'
+    public static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME_LENGTH) return false;
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    // Run after every join and leave, e.g. to gossip which rooms have members here
+    public void onRoomsChanged(Runnable listener) {
+        this.roomsChanged = listener;
+    }
+
+    // Returns false if the connection was already a member
+    public boolean join(String room, ChatConnection connection) {
+        if (!memberships.computeIfAbsent(connection, c -> ConcurrentHashMap.newKeySet()).add(room)) return false;
+        rooms.compute(room, (name, members) -> {
+            if (members == null) members = new Broadcaster();
+            members.join(connection);
+            return members;
+        });
+        // Lost a race with the connection closing: leaveAll may already have run
+        if (!connection.isOpen()) leaveAll(connection);
+        roomsChanged.run();
+        return true;
+    }
+
+    // Returns false if the connection was not a member
+    public boolean leave(String room, ChatConnection connection) {
+        Set<String> joined = memberships.get(connection);
+        if (joined == null || !joined.remove(room)) return false;
+        removeMember(room, connection);
+        roomsChanged.run();
+        return true;
+    }
+
+    public void leaveAll(ChatConnection connection) {
+        Set<String> joined = memberships.remove(connection);
+        if (joined == null) return;
+        for (String room : joined) removeMember(room, connection);
+        roomsChanged.run();
+    }
+
+    private void removeMember(String room, ChatConnection connection) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.leave(connection);
+            return members.size() == 0 ? null : members;
+        });
+    }
+
+    // Deliver to every member except the sender; returns how many members the room has, or -1 if it doesn't exist
+    public int publish(String room, String message, ChatConnection except) {
+        Broadcaster members = rooms.get(room);
+        if (members == null) return -1;
+        members.publish(0, message, except);
+        return members.size();
+    }
+
+    public boolean isMember(String room, ChatConnection connection) {
+        Set<String> joined = memberships.get(connection);
+        return joined != null && joined.contains(room);
+    }
+
+    public Set<String> roomsOf(ChatConnection connection) {
+        Set<String> joined = memberships.get(connection);
+        return joined == null ? Set.of() : Collections.unmodifiableSet(joined);
+    }
+
+    // Rooms that have members
+    public Set<String> names() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+
+    public int memberCount(String room) {
+        Broadcaster members = rooms.get(room);
+        return members == null ? 0 : members.size();
+    }
+
+    public int roomCount() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,895 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Full-text search over the message log: an inverted index from each term to the sequence numbers
+// of the messages containing it. add() only queues the message, so the broadcast path never waits on
+// the index; an indexer thread tokenizes it into an in-memory segment, and every flushDocs messages
+// that segment is written out as an immutable, memory-mapped segment file. Postings are (seq gap,
+// term frequency) varint pairs in blocks of 128 whose last seqs form a skip table, so an AND query
+// leaps through a long list rather than decoding all of it. A merger thread combines runs of four
+// adjacent segments of the same size tier in the background, which keeps the segment count
+// logarithmic in the history. Queries read a snapshot of the segments and never hold up indexing.
+// Hits are ranked by BM25 without length normalisation (messages are short), newest first on ties.
+//
+// Segment files are named after the seq range they cover. On open, anything the log holds past the
+// last segment (the in-memory segment at shutdown, or after a crash) is re-indexed from the log. The
+// same catch-up covers messages add() had no room to queue: once the indexer falls QUEUE_CAPACITY
+// messages behind, new ones are left in the log until it has worked through the queue.
+public class SearchIndex implements Closeable {
+    public static final int DEFAULT_FLUSH_DOCS = Integer.getInteger("chat.search.flushDocs", 65_536);
+    private static final int BLOCK_SIZE = 128;
+    private static final int MERGE_FACTOR = 4;
+    // Segments are mapped whole, so merges stop well short of the 2 GB mapping limit
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int MAGIC = 0x43534958;
+    private static final int FOOTER_SIZE = 24;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // BM25 term frequency saturation
+    private static final double K1 = 1.2;
+    private static final Runnable STOP = () -> { };
+    // Messages waiting for the indexer; past this they are read back from the log instead
+    private static final int QUEUE_CAPACITY = 65_536;
+    // Longest pause between retries of a merge that keeps failing
+    private static final long MAX_MERGE_BACKOFF_MS = 60_000;
+
+    public record Hit(int seq, double score, String text) {
+    }
+
+    private final Path directory;
+    private final MessageLog log;
+    private final int flushDocs;
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    // Set when add() found the queue full; until the indexer has caught up from the log, add() leaves
+    // every message there so they are indexed in order
+    private volatile boolean behind;
+    private final Thread indexer;
+    private final Thread merger;
+    private final ExecutorService queries;
+    // Segment files in seq order, then frozen in-memory segments still being written out. Replaced
+    // together with `active` under viewLock, so a query sees every indexed message exactly once.
+    private final Object viewLock = new Object();
+    private List<Source> sealed;
+    private MemorySegment active = new MemorySegment();
+    private final Object mergeSignal = new Object();
+    private boolean mergeRequested;
+    private volatile boolean merging;
+    private volatile boolean closed;
+    // Indexer thread only
+    private int lastIndexed;
+    private final Map<String, int[]> termCounts = new HashMap<>();
+
+    private SearchIndex(Path directory, MessageLog log, int flushDocs, List<SegmentFile> segments) {
+        this.directory = directory;
+        this.log = log;
+        this.flushDocs = flushDocs;
+        this.sealed = List.copyOf(segments);
+        this.lastIndexed = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).maxSeq;
+        this.indexer = new Thread(this::indexLoop, "SearchIndexer");
+        this.indexer.setDaemon(true);
+        this.merger = new Thread(this::mergeLoop, "SearchIndexMerger");
+        this.merger.setDaemon(true);
+        this.queries = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "SearchIndexQuery");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static SearchIndex open(Path directory, MessageLog log) throws IOException {
+        return open(directory, log, DEFAULT_FLUSH_DOCS);
+    }
+
+    public static SearchIndex open(Path directory, MessageLog log, int flushDocs) throws IOException {
+        Files.createDirectories(directory);
+        List<SegmentFile> segments = recover(directory);
+        // An index ahead of its log belongs to a log that has since been replaced
+        if (!segments.isEmpty() && segments.get(segments.size() - 1).maxSeq > log.lastSeq()) {
+            for (SegmentFile segment : segments) Files.deleteIfExists(segment.file);
+            segments = List.of();
+        }
+        SearchIndex index = new SearchIndex(directory, log, flushDocs, segments);
+        index.tasks.add(index::catchUp);
+        index.indexer.start();
+        index.merger.start();
+        index.requestMerge();
+        return index;
+    }
+
+    // Queue a message for indexing; cheap enough for the broadcast path, and never blocks. Seqs must
+    // arrive in order, and each must already be in the log.
+    public void add(int seq, String text) {
+        if (closed || behind) return;
+        if (!tasks.offer(() -> index(seq, text))) behind = true;
+    }
+
+    // Up to `limit` messages containing every term of the query, best first
+    public List<Hit> search(String query, int limit) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(query, terms::add);
+        if (terms.isEmpty() || limit <= 0) return List.of();
+
+        List<Source> sources;
+        synchronized (viewLock) {
+            sources = new ArrayList<>(sealed);
+            sources.add(active);
+        }
+        long docs = 0;
+        for (Source source : sources) docs += source.docCount();
+        String[] queryTerms = terms.toArray(new String[0]);
+        double[] idf = new double[queryTerms.length];
+        for (int t = 0; t < queryTerms.length; t++) {
+            long df = 0;
+            for (Source source : sources) df += source.docFreq(queryTerms[t]);
+            if (df == 0) return List.of();
+            idf[t] = Math.log(1 + (docs - df + 0.5) / (df + 0.5));
+        }
+
+        // Min-heap of the best `limit` so far: lowest score, then oldest, on top
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1, RANKING);
+        for (Source source : sources) collect(source, queryTerms, idf, top, limit);
+
+        List<Hit> hits = new ArrayList<>(top.size());
+        for (Hit hit : top) hits.add(new Hit(hit.seq(), hit.score(), text(hit.seq())));
+        hits.sort(RANKING.reversed());
+        return hits;
+    }
+
+    // search() on a background thread, handing the hits to `results` there
+    public void searchAsync(String query, int limit, Consumer<List<Hit>> results) {
+        queries.execute(() -> results.accept(search(query, limit)));
+    }
+
+    private static final Comparator<Hit> RANKING =
+            Comparator.comparingDouble(Hit::score).thenComparingInt(Hit::seq);
+
+    // Leapfrog intersection of the query's posting lists, rarest first, scoring each common message
+    private static void collect(Source source, String[] terms, double[] idf, PriorityQueue<Hit> top, int limit) {
+        int n = terms.length;
+        Cursor[] cursors = new Cursor[n];
+        double[] weights = new double[n];
+        for (int t = 0; t < n; t++) {
+            Cursor cursor = source.cursor(terms[t]);
+            if (cursor == null) return;
+            // Insertion sort by document frequency
+            int i = t;
+            while (i > 0 && cursors[i - 1].docFreq > cursor.docFreq) {
+                cursors[i] = cursors[i - 1];
+                weights[i] = weights[i - 1];
+                i--;
+            }
+            cursors[i] = cursor;
+            weights[i] = idf[t];
+        }
+
+        Cursor lead = cursors[0];
+        if (!lead.next()) return;
+        int doc = lead.seq;
+        candidates:
+        while (true) {
+            for (int t = 1; t < n; t++) {
+                if (!cursors[t].advance(doc)) return;
+                if (cursors[t].seq > doc) {
+                    if (!lead.advance(cursors[t].seq)) return;
+                    doc = lead.seq;
+                    continue candidates;
+                }
+            }
+            double score = 0;
+            for (int t = 0; t < n; t++) {
+                int tf = cursors[t].tf;
+                score += weights[t] * tf * (K1 + 1) / (tf + K1);
+            }
+            if (top.size() < limit) {
+                top.add(new Hit(doc, score, null));
+            } else {
+                Hit worst = top.peek();
+                if (score > worst.score() || (score == worst.score() && doc > worst.seq())) {
+                    top.poll();
+                    top.add(new Hit(doc, score, null));
+                }
+            }
+            if (!lead.next()) return;
+            doc = lead.seq;
+        }
+    }
+
+    private String text(int seq) {
+        try {
+            return log.read(seq);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Messages indexed so far, including those not yet written to a segment
+    public long docCount() {
+        List<Source> sources;
+        synchronized (viewLock) {
+            sources = new ArrayList<>(sealed);
+            sources.add(active);
+        }
+        long docs = 0;
+        for (Source source : sources) docs += source.docCount();
+        return docs;
+    }
+
+    public int segmentCount() {
+        synchronized (viewLock) {
+            return sealed.size();
+        }
+    }
+
+    // Write out the in-memory segment and wait until no merge is due; for tests and benchmarks
+    void awaitIdle() throws InterruptedException {
+        Object done = new Object();
+        boolean[] flushed = {false};
+        tasks.put(() -> {
+            flushActive();
+            synchronized (done) {
+                flushed[0] = true;
+                done.notifyAll();
+            }
+        });
+        synchronized (done) {
+            while (!flushed[0]) done.wait();
+        }
+        while (merging || nextMerge() != null) Thread.sleep(10);
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        merger.interrupt();
+        queries.shutdownNow();
+        try {
+            tasks.put(STOP);
+            indexer.join();
+            merger.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Lower-cased runs of letters and digits; runs longer than MAX_TERM_LENGTH are cut short
+    static void tokenize(CharSequence text, Consumer<String> terms) {
+        StringBuilder term = new StringBuilder(MAX_TERM_LENGTH);
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            char c = i < n ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) term.append(Character.toLowerCase(c));
+            } else if (!term.isEmpty()) {
+                terms.accept(term.toString());
+                term.setLength(0);
+            }
+        }
+    }
+
+    private void indexLoop() {
+        while (true) {
+            Runnable task = tasks.poll();
+            if (task == null && behind) {
+                // Cleared first: whatever add() skips from here on is in the log by the time it is read
+                behind = false;
+                catchUp();
+                continue;
+            }
+            try {
+                if (task == null) task = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP) {
+                flushActive();
+                return;
+            }
+            task.run();
+        }
+    }
+
+    private void index(int seq, String text) {
+        if (seq <= lastIndexed) return;
+        lastIndexed = seq;
+        termCounts.clear();
+        tokenize(text, term -> termCounts.computeIfAbsent(term, t -> new int[1])[0]++);
+        active.add(seq, termCounts);
+        if (active.docCount() >= flushDocs) flushActive();
+    }
+
+    // Index whatever the log holds past the newest segment, reading it region by region
+    private void catchUp() {
+        if (lastIndexed >= log.lastSeq()) return;
+        try {
+            ChatFrame frame = new ChatFrame();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (MessageLog.Region region : log.regionsFrom(lastIndexed + 1)) {
+                long position = region.position();
+                long end = position + region.count();
+                buffer.clear();
+                while (position < end) {
+                    int want = (int) Math.min(buffer.remaining(), end - position);
+                    int n = region.channel().read(buffer.limit(buffer.position() + want), position);
+                    if (n <= 0) break;
+                    position += n;
+                    buffer.flip();
+                    while (FrameCodec.decode(buffer, frame)) index(frame.seq(), frame.text());
+                    buffer.compact();
+                    if (!buffer.hasRemaining()) {
+                        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                        larger.put(buffer.flip());
+                        buffer = larger;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Search index catch-up failed: " + e.getMessage());
+        }
+    }
+
+    // Freeze the in-memory segment and write it out, along with any an earlier flush failed to write;
+    // queries see them in memory until their files are ready
+    private void flushActive() {
+        MemorySegment frozen = active;
+        List<Source> sources;
+        synchronized (viewLock) {
+            if (frozen.docCount() > 0) {
+                active = new MemorySegment();
+                sealed = with(sealed, List.of(), frozen);
+            }
+            sources = sealed;
+        }
+        boolean written = false;
+        for (Source source : sources) {
+            if (!(source instanceof MemorySegment pending)) continue;
+            try {
+                SegmentFile file = write(pending);
+                synchronized (viewLock) {
+                    sealed = with(sealed, List.of(pending), file);
+                }
+                written = true;
+            } catch (IOException e) {
+                // It stays searchable in memory until the next flush tries again, and is re-indexed
+                // from the log on the next open
+                System.out.println("Search index flush failed: " + e.getMessage());
+                break;
+            }
+        }
+        if (written) requestMerge();
+    }
+
+    // `sources` with `replaced` taken out and `added` in their place (or at the end)
+    private static List<Source> with(List<Source> sources, List<? extends Source> replaced, Source added) {
+        List<Source> result = new ArrayList<>(sources.size() + 1);
+        boolean placed = false;
+        for (Source source : sources) {
+            if (replaced.contains(source)) {
+                if (!placed) result.add(added);
+                placed = true;
+            } else {
+                result.add(source);
+            }
+        }
+        if (!placed) result.add(added);
+        return List.copyOf(result);
+    }
+
+    private void requestMerge() {
+        synchronized (mergeSignal) {
+            mergeRequested = true;
+            mergeSignal.notifyAll();
+        }
+    }
+
+    private void mergeLoop() {
+        long backoff = 0;
+        try {
+            while (!closed) {
+                List<SegmentFile> run = nextMerge();
+                if (run == null) {
+                    synchronized (mergeSignal) {
+                        while (!mergeRequested) mergeSignal.wait();
+                        mergeRequested = false;
+                    }
+                    continue;
+                }
+                merging = true;
+                try {
+                    SegmentFile merged = merge(run);
+                    synchronized (viewLock) {
+                        sealed = with(sealed, run, merged);
+                    }
+                    for (SegmentFile segment : run) Files.deleteIfExists(segment.file);
+                    backoff = 0;
+                } catch (IOException e) {
+                    if (closed) return;
+                    // The run stays as it was; try again after a pause that doubles while it keeps failing
+                    backoff = Math.min(MAX_MERGE_BACKOFF_MS, Math.max(1000, backoff * 2));
+                    System.out.println("Search index merge failed, retrying in " + backoff + " ms: " + e.getMessage());
+                } finally {
+                    merging = false;
+                }
+                if (backoff > 0) Thread.sleep(backoff);
+            }
+        } catch (InterruptedException e) {
+            // Closing
+        }
+    }
+
+    // The first run of MERGE_FACTOR adjacent segment files in the same size tier, or null. A segment
+    // still in memory splits runs rather than ending the search.
+    private List<SegmentFile> nextMerge() {
+        List<Source> sources;
+        synchronized (viewLock) {
+            sources = sealed;
+        }
+        int runStart = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            if (!(sources.get(i) instanceof SegmentFile segment)) {
+                runStart = i + 1;
+                continue;
+            }
+            if (i > runStart && tier(segment) != tier((SegmentFile) sources.get(runStart))) runStart = i;
+            if (i - runStart + 1 == MERGE_FACTOR) {
+                List<SegmentFile> run = new ArrayList<>(MERGE_FACTOR);
+                long bytes = 0;
+                for (int j = runStart; j <= i; j++) {
+                    run.add((SegmentFile) sources.get(j));
+                    bytes += run.get(run.size() - 1).bytes;
+                }
+                if (bytes <= MAX_SEGMENT_BYTES) return run;
+                runStart++;
+            }
+        }
+        return null;
+    }
+
+    private int tier(SegmentFile segment) {
+        int tier = 0;
+        for (long size = flushDocs; segment.docCount >= size * MERGE_FACTOR; size *= MERGE_FACTOR) tier++;
+        return tier;
+    }
+
+    private SegmentFile write(MemorySegment segment) throws IOException {
+        List<String> terms = new ArrayList<>(segment.terms.keySet());
+        Collections.sort(terms);
+        try (SegmentWriter writer = new SegmentWriter(directory, segment.minSeq, segment.maxSeq)) {
+            for (String term : terms) writer.add(term, segment.terms.get(term));
+            return writer.finish(segment.docCount);
+        }
+    }
+
+    // K-way merge of the runs' dictionaries; a term's postings are concatenated in seq order and
+    // re-blocked
+    private SegmentFile merge(List<SegmentFile> run) throws IOException {
+        int k = run.size();
+        int docs = 0;
+        int[] next = new int[k];
+        String[] heads = new String[k];
+        for (int i = 0; i < k; i++) {
+            docs += run.get(i).docCount;
+            heads[i] = run.get(i).termCount > 0 ? run.get(i).term(0) : null;
+        }
+        try (SegmentWriter writer = new SegmentWriter(directory, run.get(0).minSeq, run.get(k - 1).maxSeq)) {
+            while (!closed) {
+                String term = null;
+                for (String head : heads) {
+                    if (head != null && (term == null || head.compareTo(term) < 0)) term = head;
+                }
+                if (term == null) return writer.finish(docs);
+                Postings postings = new Postings();
+                for (int i = 0; i < k; i++) {
+                    if (!term.equals(heads[i])) continue;
+                    SegmentFile segment = run.get(i);
+                    Cursor cursor = segment.cursorAt(next[i]);
+                    while (cursor.next()) postings.add(cursor.seq, cursor.tf);
+                    next[i]++;
+                    heads[i] = next[i] < segment.termCount ? segment.term(next[i]) : null;
+                }
+                writer.add(term, postings);
+            }
+            throw new IOException("Search index closed");
+        }
+    }
+
+    // Segment files left by the last run; a merge interrupted after its rename leaves the merged file
+    // and its inputs, whose ranges it covers
+    private static List<SegmentFile> recover(Path directory) throws IOException {
+        List<SegmentFile> found = new ArrayList<>();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                Files.deleteIfExists(file);
+            } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    found.add(SegmentFile.open(file));
+                } catch (IOException e) {
+                    System.out.println("Dropping search segment " + name + ": " + e.getMessage());
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        found.sort(Comparator.comparingInt((SegmentFile s) -> s.minSeq).thenComparingInt(s -> -s.maxSeq));
+        List<SegmentFile> segments = new ArrayList<>();
+        for (SegmentFile segment : found) {
+            if (!segments.isEmpty() && segment.minSeq <= segments.get(segments.size() - 1).maxSeq) {
+                Files.deleteIfExists(segment.file);
+            } else {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    // A searchable set of messages: a segment file or an in-memory segment
+    private interface Source {
+        int docCount();
+
+        int docFreq(String term);
+
+        // Null when the term does not occur
+        Cursor cursor(String term);
+    }
+
+    // The segment being filled by the indexer; frozen once it is handed to write()
+    private static final class MemorySegment implements Source {
+        final Map<String, Postings> terms = new HashMap<>();
+        int docCount;
+        int minSeq;
+        int maxSeq;
+
+        synchronized void add(int seq, Map<String, int[]> counts) {
+            for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                terms.computeIfAbsent(entry.getKey(), t -> new Postings()).add(seq, entry.getValue()[0]);
+            }
+            if (docCount++ == 0) minSeq = seq;
+            maxSeq = seq;
+        }
+
+        @Override
+        public synchronized int docCount() {
+            return docCount;
+        }
+
+        @Override
+        public synchronized int docFreq(String term) {
+            Postings postings = terms.get(term);
+            return postings == null ? 0 : postings.docFreq;
+        }
+
+        // A copy in the segment file layout, so the query reads it without holding the lock
+        @Override
+        public synchronized Cursor cursor(String term) {
+            Postings postings = terms.get(term);
+            if (postings == null) return null;
+            ByteBuffer copy = ByteBuffer.allocate(postings.encodedSize());
+            postings.writeTo(copy);
+            return new Cursor(copy, 0, postings.docFreq);
+        }
+    }
+
+    // One term's postings being built: varint (seq gap, tf) pairs, a new block every BLOCK_SIZE
+    private static final class Postings {
+        byte[] bytes = new byte[16];
+        int length;
+        int[] blockLast = new int[1];
+        int[] blockStart = new int[1];
+        int blocks;
+        int docFreq;
+        int lastSeq;
+
+        void add(int seq, int tf) {
+            if (docFreq % BLOCK_SIZE == 0) {
+                if (blocks == blockLast.length) {
+                    blockLast = Arrays.copyOf(blockLast, blocks * 2);
+                    blockStart = Arrays.copyOf(blockStart, blocks * 2);
+                }
+                blockStart[blocks++] = length;
+            }
+            if (bytes.length - length < 10) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            length = putVarint(bytes, length, seq - lastSeq);
+            length = putVarint(bytes, length, tf);
+            lastSeq = seq;
+            blockLast[blocks - 1] = seq;
+            docFreq++;
+        }
+
+        // Layout: int block count, (int last seq, int byte offset) per block, then the pairs
+        int encodedSize() {
+            return 4 + blocks * 8 + length;
+        }
+
+        void writeTo(ByteBuffer out) {
+            out.putInt(blocks);
+            for (int i = 0; i < blocks; i++) out.putInt(blockLast[i]).putInt(blockStart[i]);
+            out.put(bytes, 0, length).flip();
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(blocks);
+            for (int i = 0; i < blocks; i++) {
+                out.writeInt(blockLast[i]);
+                out.writeInt(blockStart[i]);
+            }
+            out.write(bytes, 0, length);
+        }
+
+        private static int putVarint(byte[] out, int position, int value) {
+            while ((value & ~0x7F) != 0) {
+                out[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[position++] = (byte) value;
+            return position;
+        }
+    }
+
+    // Reads one term's postings in Postings layout with absolute gets, so cursors share a mapping
+    static final class Cursor {
+        private final ByteBuffer buffer;
+        private final int table;
+        private final int data;
+        private final int blocks;
+        final int docFreq;
+        private int block = -1;
+        private int position;
+        private int left;
+        private boolean positioned;
+        int seq;
+        int tf;
+
+        Cursor(ByteBuffer buffer, int offset, int docFreq) {
+            this.buffer = buffer;
+            this.docFreq = docFreq;
+            this.blocks = buffer.getInt(offset);
+            this.table = offset + 4;
+            this.data = table + blocks * 8;
+        }
+
+        // Step to the next posting; false past the last
+        boolean next() {
+            if (left == 0) {
+                if (block + 1 >= blocks) return false;
+                enter(block + 1);
+            }
+            seq += readVarint();
+            tf = readVarint();
+            left--;
+            positioned = true;
+            return true;
+        }
+
+        // Move to the first posting at or after target, staying put if already there; false if none.
+        // Whole blocks are skipped by binary search over their last seqs.
+        boolean advance(int target) {
+            if (positioned && seq >= target) return true;
+            if (block < 0 || blockLast(block) < target) {
+                int lo = block + 1;
+                int hi = blocks - 1;
+                if (lo > hi || blockLast(hi) < target) return false;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (blockLast(mid) < target) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                enter(lo);
+            }
+            while (next()) {
+                if (seq >= target) return true;
+            }
+            return false;
+        }
+
+        private int blockLast(int b) {
+            return buffer.getInt(table + b * 8);
+        }
+
+        private void enter(int b) {
+            block = b;
+            position = data + buffer.getInt(table + b * 8 + 4);
+            seq = b == 0 ? 0 : blockLast(b - 1);
+            left = b == blocks - 1 ? docFreq - b * BLOCK_SIZE : BLOCK_SIZE;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    // An immutable segment file: every term's postings, then the dictionary (u8 term length, UTF-8
+    // term, int doc frequency, int postings offset per entry, sorted by term), an int offset per
+    // entry for binary search, and a footer (term count, doc count, min seq, max seq, table offset, magic)
+    private static final class SegmentFile implements Source {
+        final Path file;
+        final long bytes;
+        private final MappedByteBuffer map;
+        final int termCount;
+        final int docCount;
+        final int minSeq;
+        final int maxSeq;
+        private final int table;
+
+        private SegmentFile(Path file, MappedByteBuffer map, long bytes) {
+            this.file = file;
+            this.map = map;
+            this.bytes = bytes;
+            int footer = (int) bytes - FOOTER_SIZE;
+            this.termCount = map.getInt(footer);
+            this.docCount = map.getInt(footer + 4);
+            this.minSeq = map.getInt(footer + 8);
+            this.maxSeq = map.getInt(footer + 12);
+            this.table = map.getInt(footer + 16);
+        }
+
+        static SegmentFile open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) throw new IOException("Bad size " + size);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (map.getInt((int) size - 4) != MAGIC) throw new IOException("Not a search segment");
+                return new SegmentFile(file, map, size);
+            }
+        }
+
+        private int entry(int i) {
+            return map.getInt(table + i * 4);
+        }
+
+        String term(int i) {
+            int entry = entry(i);
+            byte[] term = new byte[map.get(entry) & 0xFF];
+            map.get(entry + 1, term);
+            return new String(term, StandardCharsets.UTF_8);
+        }
+
+        private int find(String term) {
+            int lo = 0;
+            int hi = termCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int order = term(mid).compareTo(term);
+                if (order < 0) {
+                    lo = mid + 1;
+                } else if (order > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int docCount() {
+            return docCount;
+        }
+
+        @Override
+        public int docFreq(String term) {
+            int i = find(term);
+            if (i < 0) return 0;
+            int entry = entry(i);
+            return map.getInt(entry + 1 + (map.get(entry) & 0xFF));
+        }
+
+        @Override
+        public Cursor cursor(String term) {
+            int i = find(term);
+            return i < 0 ? null : cursorAt(i);
+        }
+
+        Cursor cursorAt(int i) {
+            int entry = entry(i);
+            int length = map.get(entry) & 0xFF;
+            return new Cursor(map, map.getInt(entry + 5 + length), map.getInt(entry + 1 + length));
+        }
+    }
+
+    // Streams postings to a temporary file, then appends the dictionary and footer, forces it to disk
+    // and renames it into place
+    private static final class SegmentWriter implements Closeable {
+        private final Path temp;
+        private final Path target;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+        private final int minSeq;
+        private final int maxSeq;
+        private int[] entries = new int[1024];
+        private int termCount;
+        private long position;
+        private boolean finished;
+
+        SegmentWriter(Path directory, int minSeq, int maxSeq) throws IOException {
+            String name = String.format("%010d-%010d", minSeq, maxSeq);
+            this.target = directory.resolve(name + SEGMENT_SUFFIX);
+            this.temp = directory.resolve(name + TEMP_SUFFIX);
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024));
+            this.minSeq = minSeq;
+            this.maxSeq = maxSeq;
+        }
+
+        // Terms must come in sorted order
+        void add(String term, Postings postings) throws IOException {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            if (termCount == entries.length) entries = Arrays.copyOf(entries, termCount * 2);
+            entries[termCount++] = dictionary.size();
+            dictionary.writeByte(bytes.length);
+            dictionary.write(bytes);
+            dictionary.writeInt(postings.docFreq);
+            dictionary.writeInt((int) position);
+            postings.writeTo(out);
+            position += postings.encodedSize();
+            if (position > MAX_SEGMENT_BYTES * 2) throw new IOException("Search segment too large");
+        }
+
+        SegmentFile finish(int docCount) throws IOException {
+            long dictionaryStart = position;
+            dictionaryBytes.writeTo(out);
+            long table = dictionaryStart + dictionary.size();
+            for (int i = 0; i < termCount; i++) out.writeInt((int) (dictionaryStart + entries[i]));
+            out.writeInt(termCount);
+            out.writeInt(docCount);
+            out.writeInt(minSeq);
+            out.writeInt(maxSeq);
+            out.writeInt((int) table);
+            out.writeInt(MAGIC);
+            out.close();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            return SegmentFile.open(target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) return;
+            out.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+}
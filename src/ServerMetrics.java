@@ -0,0 +1,353 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for one ChatServerEngine, fed from the accept, read, dispatch and
+// write paths. Recording is a striped LongAdder increment or a lock-free histogram update, so event
+// loops never contend on it; JMX, the scrape endpoint and the GUI read snapshots.
+public class ServerMetrics implements ServerMetricsMBean {
+    private final ChatServerEngine engine;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    // Closed for leaving a heartbeat PING unanswered
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    // Socket write calls (plain, gathering or transferTo); messagesOut / socketWrites is the batching achieved
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    // Outbound payloads that went through per-connection compression, their size before and after,
+    // and the CPU time spent deflating them
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder compressionRawBytes = new LongAdder();
+    private final LongAdder compressionWireBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    // Inbound messages over a rate limit: held back, dropped or answered with a disconnect
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    // Drops of connections that have since closed; live ones are summed on demand
+    private final LongAdder droppedByClosed = new LongAdder();
+
+    // Listener time per inbound message
+    private final LatencyHistogram dispatch = new LatencyHistogram();
+    // Enqueue until the writer picks the message up, sampled one message per connection at a time
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    // Sequencing plus fan-out of one broadcast to every recipient's queue
+    private final LatencyHistogram broadcast = new LatencyHistogram();
+    // PING to PONG, per heartbeat answered
+    private final LatencyHistogram heartbeatRtt = new LatencyHistogram();
+
+    ServerMetrics(ChatServerEngine engine) {
+        this.engine = engine;
+    }
+
+    void onAccept() {
+        accepted.increment();
+    }
+
+    void onClose(long dropped) {
+        closed.increment();
+        droppedByClosed.add(dropped);
+    }
+
+    void onReaped() {
+        reaped.increment();
+    }
+
+    void onRateLimited() {
+        rateLimited.increment();
+    }
+
+    void onDuplicate() {
+        duplicates.increment();
+    }
+
+    void onHeartbeatRtt(long nanos) {
+        heartbeatRtt.record(nanos);
+    }
+
+    void onRead(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void onDispatch(long nanos) {
+        messagesIn.increment();
+        dispatch.record(nanos);
+    }
+
+    void onWrite(long bytes) {
+        socketWrites.increment();
+        bytesOut.add(bytes);
+    }
+
+    void onMessageWritten() {
+        messagesOut.increment();
+    }
+
+    void onQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    void onCompress(long rawBytes, long wireBytes, long nanos) {
+        compressed.increment();
+        compressionRawBytes.add(rawBytes);
+        compressionWireBytes.add(wireBytes);
+        compressionNanos.add(nanos);
+    }
+
+    void onBroadcast(long nanos) {
+        broadcasts.increment();
+        broadcast.record(nanos);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(System.nanoTime(), getActiveConnections(), accepted.sum(), closed.sum(), reaped.sum(),
+                bytesIn.sum(), messagesIn.sum(), bytesOut.sum(), messagesOut.sum(), socketWrites.sum(),
+                broadcasts.sum(), getMessagesDropped(), rateLimited.sum(), duplicates.sum(), getQueuedMessages(), compressed.sum(),
+                compressionRawBytes.sum(), compressionWireBytes.sum(), compressionNanos.sum(), dispatch.snapshot(),
+                queueWait.snapshot(), broadcast.snapshot(), heartbeatRtt.snapshot(), BufferPool.shared().stats());
+    }
+
+    // Prometheus text exposition format
+    public String toText() {
+        Snapshot s = snapshot();
+        StringBuilder sb = new StringBuilder(2048);
+        gauge(sb, "chat_connections_active", "Connected clients", s.activeConnections);
+        counter(sb, "chat_connections_accepted_total", "Accepted connections", s.accepted);
+        counter(sb, "chat_connections_closed_total", "Closed connections", s.closed);
+        counter(sb, "chat_connections_reaped_total", "Connections closed for missing a heartbeat", s.reaped);
+        counter(sb, "chat_messages_in_total", "Messages received from clients", s.messagesIn);
+        counter(sb, "chat_messages_out_total", "Messages written to clients", s.messagesOut);
+        counter(sb, "chat_bytes_in_total", "Bytes read from clients", s.bytesIn);
+        counter(sb, "chat_bytes_out_total", "Bytes written to clients", s.bytesOut);
+        counter(sb, "chat_socket_writes_total", "Socket write calls", s.socketWrites);
+        counter(sb, "chat_broadcasts_total", "Broadcasts", s.broadcasts);
+        counter(sb, "chat_messages_dropped_total", "Messages dropped by the slow-consumer policy", s.dropped);
+        counter(sb, "chat_messages_rate_limited_total", "Inbound messages over a rate limit", s.rateLimited);
+        counter(sb, "chat_messages_duplicate_total", "Resent client messages dropped as duplicates", s.duplicates);
+        gauge(sb, "chat_messages_queued", "Messages waiting in outbound queues", s.queued);
+        counter(sb, "chat_compressed_messages_total", "Outbound messages compressed", s.compressed);
+        counter(sb, "chat_compression_raw_bytes_total", "Payload bytes before compression", s.compressionRawBytes);
+        counter(sb, "chat_compression_wire_bytes_total", "Payload bytes after compression", s.compressionWireBytes);
+        counter(sb, "chat_compression_seconds_total", "Time spent compressing", s.compressionNanos / 1e9);
+        summary(sb, "chat_dispatch_seconds", "Listener time per inbound message", s.dispatch);
+        summary(sb, "chat_queue_wait_seconds", "Time from enqueue until the writer takes a message (sampled)",
+                s.queueWait);
+        summary(sb, "chat_broadcast_seconds", "Time to sequence and fan out one broadcast", s.broadcast);
+        summary(sb, "chat_heartbeat_rtt_seconds", "Heartbeat PING to PONG round trip", s.heartbeatRtt);
+        sizeClasses(sb, "chat_buffer_pool_leased", "Pooled buffers leased, per size class", s.buffers, true);
+        sizeClasses(sb, "chat_buffer_pool_free", "Pooled buffers on the free list, per size class", s.buffers, false);
+        counter(sb, "chat_buffer_pool_unpooled_allocations_total", "Buffers too large to pool, allocated directly",
+                s.buffers.unpooledAllocations());
+        return sb.toString();
+    }
+
+    private static void sizeClasses(StringBuilder sb, String name, String help, BufferPool.Stats stats, boolean leased) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        for (BufferPool.ClassStats c : stats.classes()) {
+            sb.append(name).append("{size=\"").append(c.size()).append("\"} ")
+                    .append(leased ? c.leased() : c.free()).append('\n');
+        }
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram.Snapshot h) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (String q : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(h.percentile(Double.parseDouble(q) * 100) / 1e9).append('\n');
+        }
+        sb.append(name).append("_count ").append(h.count()).append('\n');
+        sb.append(name).append("_sum ").append(h.mean() * h.count() / 1e9).append('\n');
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return engine.connectionCount();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return closed.sum();
+    }
+
+    @Override
+    public long getConnectionsReaped() {
+        return reaped.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public double getMessagesPerWrite() {
+        long writes = socketWrites.sum();
+        return writes == 0 ? 0 : (double) messagesOut.sum() / writes;
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        long total = droppedByClosed.sum();
+        for (ChatConnection connection : engine.getConnections()) total += connection.droppedMessages();
+        return total;
+    }
+
+    @Override
+    public long getMessagesRateLimited() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getDuplicateMessages() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        long total = 0;
+        for (ChatConnection connection : engine.getConnections()) total += connection.queuedMessages();
+        return total;
+    }
+
+    @Override
+    public long getCompressedMessages() {
+        return compressed.sum();
+    }
+
+    @Override
+    public long getCompressionBytesSaved() {
+        return compressionRawBytes.sum() - compressionWireBytes.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long raw = compressionRawBytes.sum();
+        return raw == 0 ? 1 : (double) compressionWireBytes.sum() / raw;
+    }
+
+    @Override
+    public double getCompressionMicrosPerMessage() {
+        long count = compressed.sum();
+        return count == 0 ? 0 : compressionNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public double getDispatchP50Micros() {
+        return dispatch.snapshot().percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getDispatchP99Micros() {
+        return dispatch.snapshot().percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getQueueWaitP50Micros() {
+        return queueWait.snapshot().percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getQueueWaitP99Micros() {
+        return queueWait.snapshot().percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastP99Micros() {
+        return broadcast.snapshot().percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getHeartbeatRttP50Micros() {
+        return heartbeatRtt.snapshot().percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getHeartbeatRttP99Micros() {
+        return heartbeatRtt.snapshot().percentile(99) / 1e3;
+    }
+
+    @Override
+    public long getBufferPoolLeasedBytes() {
+        return BufferPool.shared().stats().leasedBytes();
+    }
+
+    @Override
+    public long getBufferPoolPooledBytes() {
+        return BufferPool.shared().stats().pooledBytes();
+    }
+
+    @Override
+    public long getBufferPoolUnpooledAllocations() {
+        return BufferPool.shared().stats().unpooledAllocations();
+    }
+
+    @Override
+    public String getBufferPoolClasses() {
+        return BufferPool.shared().stats().toString();
+    }
+
+    // Everything at one instant; two snapshots give per-second rates and windowed percentiles
+    public record Snapshot(long nanoTime, int activeConnections, long accepted, long closed, long reaped,
+                           long bytesIn, long messagesIn, long bytesOut, long messagesOut, long socketWrites,
+                           long broadcasts, long dropped, long rateLimited, long duplicates, long queued, long compressed,
+                           long compressionRawBytes, long compressionWireBytes, long compressionNanos,
+                           LatencyHistogram.Snapshot dispatch, LatencyHistogram.Snapshot queueWait,
+                           LatencyHistogram.Snapshot broadcast, LatencyHistogram.Snapshot heartbeatRtt,
+                           BufferPool.Stats buffers) {
+        public double secondsSince(Snapshot earlier) {
+            return (nanoTime - earlier.nanoTime) / 1e9;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// JMX view of ServerMetrics, registered as chat:type=ChatServer,port=<port>. Latencies are
+// percentiles since the server started.
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsClosed();
+
+    // Closed for leaving a heartbeat PING unanswered
+    long getConnectionsReaped();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSocketWrites();
+
+    // Messages written per socket write call; above 1 when writes are batched
+    double getMessagesPerWrite();
+
+    long getBroadcasts();
+
+    long getMessagesDropped();
+
+    // Inbound messages over a connection or user rate limit
+    long getMessagesRateLimited();
+
+    // Resent client messages recognised by their id and dropped
+    long getDuplicateMessages();
+
+    long getQueuedMessages();
+
+    long getCompressedMessages();
+
+    long getCompressionBytesSaved();
+
+    // Compressed / original payload size, over all compressed messages
+    double getCompressionRatio();
+
+    double getCompressionMicrosPerMessage();
+
+    double getDispatchP50Micros();
+
+    double getDispatchP99Micros();
+
+    double getQueueWaitP50Micros();
+
+    double getQueueWaitP99Micros();
+
+    double getBroadcastP99Micros();
+
+    double getHeartbeatRttP50Micros();
+
+    double getHeartbeatRttP99Micros();
+
+    // The shared BufferPool: bytes leased to connections and kept on free lists, and buffers too large
+    // to pool that were allocated directly
+    long getBufferPoolLeasedBytes();
+
+    long getBufferPoolPooledBytes();
+
+    long getBufferPoolUnpooledAllocations();
+
+    // Leased and free buffers per size class
+    String getBufferPoolClasses();
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Compares serverSite's platform and virtual thread modes: server RSS versus idle connection count,
+// stepping up to the full count (10,000 by default), and echo latency at full load. A mode that cannot
+// hold the full count reports how many connections it had when it failed, and why.
+// Run: java ServerModeLoadTest [connections] [port]
+public class ServerModeLoadTest {
+    private static final int ECHO_SAMPLES = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7790;
+
+        System.out.printf("%-9s %12s %10s %12s%n", "mode", "connections", "rss (MB)", "p99 echo (us)");
+        for (serverSite.Mode mode : new serverSite.Mode[]{serverSite.Mode.PLATFORM, serverSite.Mode.VIRTUAL}) {
+            run(mode, connections, port++);
+        }
+    }
+
+    private static void run(serverSite.Mode mode, int connections, int port) throws Exception {
+        Process server = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-Dchat.console.mode=" + mode.name().toLowerCase(),
+                "-Dchat.console.echo=true",
+                "serverSite", String.valueOf(port))
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        try {
+            waitForServer(port);
+            int[] steps = {connections / 10, connections / 4, connections / 2, connections};
+            for (int step : steps) {
+                try {
+                    while (sockets.size() < step) {
+                        sockets.add(new Socket("localhost", port));
+                    }
+                } catch (IOException e) {
+                    System.out.printf("%-9s failed after %d connections: %s%n", mode.name().toLowerCase(),
+                            sockets.size(), server.isAlive() ? e.getMessage() : "server exited");
+                    return;
+                }
+                long rss = residentSetKb(server.pid());
+                double p99 = step == connections ? echoP99Micros(sockets) : Double.NaN;
+                System.out.printf("%-9s %12d %10.1f %12s%n", mode.name().toLowerCase(), step, rss / 1024.0,
+                        Double.isNaN(p99) ? "-" : String.format("%.1f", p99));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore cleanup errors
+                }
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // Round trip one line at a time on random connections so every sample hits a parked reader
+    private static double echoP99Micros(List<Socket> sockets) throws IOException {
+        byte[] line = "ping-0123456789abcdef\n".getBytes(StandardCharsets.UTF_8);
+        long[] samples = new long[ECHO_SAMPLES];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < samples.length; i++) {
+            Socket socket = sockets.get(random.nextInt(sockets.size()));
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            long start = System.nanoTime();
+            out.write(line);
+            out.flush();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) throw new IOException("Server closed connection");
+            }
+            samples[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(samples);
+        return samples[(int) (samples.length * 0.99)] / 1000.0;
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    // Linux only; reports -1 elsewhere
+    private static long residentSetKb(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            // Not available on this platform
+        }
+        return -1;
+    }
+}
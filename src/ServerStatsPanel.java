@@ -0,0 +1,133 @@
+import javax.swing.*;
+import java.awt.*;
+
+// Live server numbers for ChatServerGUI. Rates and latency percentiles cover the last refresh
+// interval; counts are totals since the server started.
+public class ServerStatsPanel extends JPanel {
+    public static final int REFRESH_MS = 1000;
+
+    private final JLabel clients = value();
+    private final JLabel messagesIn = value();
+    private final JLabel messagesOut = value();
+    private final JLabel bytesIn = value();
+    private final JLabel bytesOut = value();
+    private final JLabel batching = value();
+    private final JLabel queued = value();
+    private final JLabel dropped = value();
+    private final JLabel rateLimited = value();
+    private final JLabel duplicates = value();
+    private final JLabel compression = value();
+    private final JLabel dispatch = value();
+    private final JLabel queueWait = value();
+    private final JLabel broadcast = value();
+    private final JLabel reaped = value();
+    private final JLabel heartbeatRtt = value();
+    private final JLabel buffers = value();
+    private final JLabel unpooled = value();
+    private final Timer refreshTimer = new Timer(REFRESH_MS, e -> refresh());
+
+    private ServerMetrics metrics;
+    private ServerMetrics.Snapshot previous;
+
+    public ServerStatsPanel() {
+        super(new GridLayout(0, 2, 8, 4));
+        setBorder(BorderFactory.createCompoundBorder(BorderFactory.createTitledBorder("Server Stats"),
+                BorderFactory.createEmptyBorder(4, 6, 4, 6)));
+        row("Clients", clients);
+        row("Msgs in/s", messagesIn);
+        row("Msgs out/s", messagesOut);
+        row("KB in/s", bytesIn);
+        row("KB out/s", bytesOut);
+        row("Msgs per write", batching);
+        row("Queued", queued);
+        row("Dropped", dropped);
+        row("Rate limited", rateLimited);
+        row("Duplicates", duplicates);
+        row("Compression saved", compression);
+        row("Dispatch p99", dispatch);
+        row("Queue wait p99", queueWait);
+        row("Broadcast p99", broadcast);
+        row("Reaped (no pong)", reaped);
+        row("Heartbeat RTT p99", heartbeatRtt);
+        row("Buffers leased/pooled", buffers);
+        row("Unpooled buffers", unpooled);
+        clear();
+    }
+
+    // Start showing metrics (null to stop); call on the EDT
+    public void watch(ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.previous = metrics == null ? null : metrics.snapshot();
+        if (metrics == null) {
+            refreshTimer.stop();
+            clear();
+        } else {
+            refreshTimer.start();
+        }
+    }
+
+    private void refresh() {
+        if (metrics == null) return;
+        ServerMetrics.Snapshot now = metrics.snapshot();
+        ServerMetrics.Snapshot before = previous;
+        previous = now;
+        double seconds = Math.max(1e-3, now.secondsSince(before));
+
+        clients.setText(String.valueOf(now.activeConnections()));
+        messagesIn.setText(String.format("%.0f", (now.messagesIn() - before.messagesIn()) / seconds));
+        messagesOut.setText(String.format("%.0f", (now.messagesOut() - before.messagesOut()) / seconds));
+        bytesIn.setText(String.format("%.1f", (now.bytesIn() - before.bytesIn()) / seconds / 1024));
+        bytesOut.setText(String.format("%.1f", (now.bytesOut() - before.bytesOut()) / seconds / 1024));
+        batching.setText(perWrite(now.messagesOut() - before.messagesOut(),
+                now.socketWrites() - before.socketWrites()));
+        queued.setText(String.valueOf(now.queued()));
+        dropped.setText(String.valueOf(now.dropped()));
+        rateLimited.setText(String.valueOf(now.rateLimited()));
+        duplicates.setText(String.valueOf(now.duplicates()));
+        compression.setText(saved(now.compressionRawBytes() - before.compressionRawBytes(),
+                now.compressionWireBytes() - before.compressionWireBytes()));
+        dispatch.setText(p99(now.dispatch().since(before.dispatch())));
+        queueWait.setText(p99(now.queueWait().since(before.queueWait())));
+        broadcast.setText(p99(now.broadcast().since(before.broadcast())));
+        reaped.setText(String.valueOf(now.reaped()));
+        heartbeatRtt.setText(p99(now.heartbeatRtt().since(before.heartbeatRtt())));
+        buffers.setText(String.format("%d / %d KB", now.buffers().leasedBytes() / 1024,
+                now.buffers().pooledBytes() / 1024));
+        unpooled.setText(String.valueOf(now.buffers().unpooledAllocations()));
+    }
+
+    private void clear() {
+        for (Component component : getComponents()) {
+            if (component instanceof JLabel label && label.getHorizontalAlignment() == SwingConstants.RIGHT) {
+                label.setText("-");
+            }
+        }
+    }
+
+    private static String saved(long rawBytes, long wireBytes) {
+        if (rawBytes == 0) return "-";
+        return String.format("%.0f%%", 100.0 * (rawBytes - wireBytes) / rawBytes);
+    }
+
+    private static String perWrite(long messages, long writes) {
+        if (writes == 0) return "-";
+        return String.format("%.1f", (double) messages / writes);
+    }
+
+    private static String p99(LatencyHistogram.Snapshot window) {
+        if (window.count() == 0) return "-";
+        long nanos = window.percentile(99);
+        return nanos < 1_000_000 ? String.format("%d us", nanos / 1000) : String.format("%.1f ms", nanos / 1e6);
+    }
+
+    private void row(String name, JLabel value) {
+        add(new JLabel(name));
+        add(value);
+    }
+
+    private static JLabel value() {
+        JLabel label = new JLabel("-", SwingConstants.RIGHT);
+        label.setFont(new Font("Segoe UI", Font.BOLD, 12));
+        return label;
+    }
+}
@@ -0,0 +1,10 @@
+// What an outbound queue does when a recipient falls behind; -Dchat.outbound.policy=drop_oldest|drop_newest|disconnect
+public enum SlowConsumerPolicy {
+    DROP_OLDEST, // discard the oldest queued message to make room
+    DROP_NEWEST, // discard the message being offered
+    DISCONNECT;  // close the lagging connection
+
+    public static SlowConsumerPolicy fromProperty() {
+        return valueOf(System.getProperty("chat.outbound.policy", "drop_oldest").trim().toUpperCase());
+    }
+}
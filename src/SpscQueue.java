@@ -0,0 +1,59 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// Unbounded single-producer/single-consumer queue: a chain of fixed-size array chunks. The producer
+// publishes each slot with a volatile store and the consumer takes it with a volatile load, so
+// neither side takes a lock or retries a CAS, and they share no counter that would bounce between
+// cores. Successive producers must be serialized (one thread, or calls under a common lock); only
+// one thread may poll. Being unbounded, a producer never waits on a consumer that may be waiting on it.
+final class SpscQueue<T> {
+    private static final int CHUNK_SIZE = 1024;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private static final class Chunk {
+        final Object[] slots = new Object[CHUNK_SIZE];
+        volatile Chunk next;
+    }
+
+    // Producer side
+    private Chunk tail = new Chunk();
+    private int tailIndex;
+    // Consumer side
+    private Chunk head = tail;
+    private int headIndex;
+
+    // Item must not be null
+    void offer(T item) {
+        if (tailIndex < CHUNK_SIZE) {
+            SLOT.setVolatile(tail.slots, tailIndex++, item);
+            return;
+        }
+        Chunk chunk = new Chunk();
+        chunk.slots[0] = item;
+        tailIndex = 1;
+        Chunk full = tail;
+        tail = chunk;
+        full.next = chunk;
+    }
+
+    // Null when empty
+    @SuppressWarnings("unchecked")
+    T poll() {
+        if (headIndex == CHUNK_SIZE) {
+            Chunk next = head.next;
+            if (next == null) return null;
+            head = next;
+            headIndex = 0;
+        }
+        Object item = SLOT.getVolatile(head.slots, headIndex);
+        if (item == null) return null;
+        head.slots[headIndex++] = null;
+        return (T) item;
+    }
+
+    // Consumer side only
+    boolean isEmpty() {
+        if (headIndex == CHUNK_SIZE) return head.next == null;
+        return SLOT.getVolatile(head.slots, headIndex) == null;
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.function.Consumer;
+
+// A hashed timing wheel (Varghese and Lauck): a timeout hashes into a slot by its deadline tick, and
+// every tick visits a single slot, so scheduling, cancelling and expiring each cost O(1) however many
+// timeouts are pending. A deadline more than one revolution away waits extra passes (`rounds`).
+// Granularity is one tick; a timeout fires on the first tick at or after its deadline.
+// Not thread-safe: one event loop owns the wheel and its timeouts.
+final class TimingWheel<T> {
+    // One per owner, reused across schedules; intrusive links so no node is allocated per schedule
+    static final class Timeout<T> {
+        final T owner;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private int slot = -1;
+        private long rounds;
+
+        Timeout(T owner) {
+            this.owner = owner;
+        }
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Timeout<T>[] slots;
+    private final int mask;
+    // Ticks processed so far
+    private long tick;
+    private int size;
+
+    // slotCount is rounded up to a power of two
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickNanos, int slotCount, long startNanos) {
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+        int n = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        this.slots = (Timeout<T>[]) new Timeout<?>[n];
+        this.mask = n - 1;
+    }
+
+    // (Re)arm timeout to fire delayNanos after nowNanos, or on the next tick if that has already passed
+    void schedule(Timeout<T> timeout, long nowNanos, long delayNanos) {
+        cancel(timeout);
+        // An empty wheel may not have been advanced for a while
+        if (size == 0) tick = Math.max(tick, (nowNanos - startNanos) / tickNanos);
+        long deadline = nowNanos + delayNanos - startNanos;
+        long ticks = Math.max(1, (deadline + tickNanos - 1) / tickNanos - tick);
+        int slot = (int) ((tick + ticks) & mask);
+        timeout.rounds = (ticks - 1) / slots.length;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) timeout.next.prev = timeout;
+        slots[slot] = timeout;
+        size++;
+    }
+
+    void cancel(Timeout<T> timeout) {
+        if (timeout.slot < 0) return;
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    // Process every tick up to nowNanos, handing each expired owner to `expired`, which may reschedule
+    // or cancel that owner's timeout (but no other). Returns how many expired.
+    int advance(long nowNanos, Consumer<? super T> expired) {
+        long target = (nowNanos - startNanos) / tickNanos;
+        if (size == 0) {
+            // Nothing to visit; skip the idle stretch in one step
+            tick = Math.max(tick, target);
+            return 0;
+        }
+        int count = 0;
+        while (tick < target) {
+            tick++;
+            Timeout<T> timeout = slots[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    cancel(timeout);
+                    count++;
+                    expired.accept(timeout.owner);
+                }
+                timeout = next;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,99 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// TLS settings, read from system properties:
+//   chat.tls.keystore            server key and certificate, a PKCS12 or JKS file; TLS is on when set
+//   chat.tls.password            keystore (and key) password
+//   chat.tls.truststore          certificates clients trust, e.g. a self-signed server's (default: the JDK's)
+//   chat.tls.truststorePassword  truststore password (default: chat.tls.password)
+//   chat.tls.sessionTimeout      seconds a session stays resumable (default 86400)
+//
+// A self-signed certificate for loopback testing:
+//   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -dname CN=localhost \
+//       -ext san=dns:localhost,ip:127.0.0.1 -validity 365 -keystore chat.p12 -storepass changeit
+// then run the server with -Dchat.tls.keystore=chat.p12 -Dchat.tls.password=changeit and clients with
+// -Dchat.tls.truststore=chat.p12 -Dchat.tls.password=changeit.
+public final class TlsConfig {
+    private static final int SESSION_TIMEOUT = Integer.getInteger("chat.tls.sessionTimeout", 86400);
+
+    private static SSLContext clientContext;
+    private static ExecutorService handshakeExecutor;
+
+    private TlsConfig() {
+    }
+
+    public static boolean serverEnabled() {
+        return System.getProperty("chat.tls.keystore") != null;
+    }
+
+    public static SSLContext serverContext() throws IOException {
+        return serverContext(new File(System.getProperty("chat.tls.keystore")), password());
+    }
+
+    public static SSLContext serverContext(File keystore, char[] password) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(KeyStore.getInstance(keystore, password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Shared by every client connection in this JVM: its session cache is what lets a reconnect
+    // resume the previous session instead of running a full handshake
+    public static synchronized SSLContext clientContext() throws IOException {
+        if (clientContext == null) {
+            String truststore = System.getProperty("chat.tls.truststore");
+            String password = System.getProperty("chat.tls.truststorePassword");
+            clientContext = newClientContext(truststore == null ? null : new File(truststore),
+                    password != null ? password.toCharArray() : password());
+        }
+        return clientContext;
+    }
+
+    // A context with its own, empty session cache; a null truststore means the JDK's default trust
+    public static SSLContext newClientContext(File truststore, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trust = null;
+            if (truststore != null) {
+                trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trust.init(KeyStore.getInstance(truststore, password));
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust == null ? null : trust.getTrustManagers(), null);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load truststore " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Runs handshake key exchange and certificate work off the event loops; one thread per core
+    static synchronized ExecutorService handshakeExecutor() {
+        if (handshakeExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            handshakeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "TlsHandshake-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return handshakeExecutor;
+    }
+
+    private static char[] password() {
+        return System.getProperty("chat.tls.password", "").toCharArray();
+    }
+}
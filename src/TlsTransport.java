@@ -0,0 +1,282 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+// TLS over a SocketChannel with SSLEngine. Works on a non-blocking channel driven by a selector loop,
+// where read() and flush() return instead of waiting, and on a blocking channel used from plain
+// threads. The handshake needs no thread of its own: it advances inside read() and flush(), and the
+// engine's delegated tasks (key exchange, certificate checks) run on taskExecutor, after which
+// onTasksDone is called so the owner can call read() again.
+// One thread reads at a time; writes (and handshake output) are serialized on their own lock, so a
+// blocking reader and writer can share the transport.
+public class TlsTransport {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Executor taskExecutor;
+    private final Runnable onTasksDone;
+    private final Object writeLock = new Object();
+    // Ciphertext received but not yet unwrapped (write mode)
+    private ByteBuffer netIn;
+    // Ciphertext wrapped but not yet written (read mode), guarded by writeLock
+    private ByteBuffer netOut;
+    // Plaintext unwrapped but not yet handed to the reader (read mode)
+    private ByteBuffer appIn;
+    private volatile boolean handshakeComplete;
+    private volatile boolean runningTasks;
+    private final long startedAt = System.nanoTime();
+    private volatile long completedAt;
+
+    private TlsTransport(SocketChannel channel, SSLEngine engine, Executor taskExecutor, Runnable onTasksDone)
+            throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.taskExecutor = taskExecutor;
+        this.onTasksDone = onTasksDone;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+        engine.beginHandshake();
+    }
+
+    // Server side of an accepted, non-blocking channel
+    static TlsTransport server(SocketChannel channel, SSLContext context, Executor taskExecutor,
+                               Runnable onTasksDone) throws SSLException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsTransport(channel, engine, taskExecutor, onTasksDone);
+    }
+
+    // Client side of a blocking channel; tasks run inline. The host and port key the context's
+    // session cache, so a later connection to the same server can resume instead of a full handshake.
+    public static TlsTransport client(SocketChannel channel, SSLContext context, String host, int port)
+            throws SSLException {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsTransport(channel, engine, null, null);
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    public long nanosSinceStart() {
+        return System.nanoTime() - startedAt;
+    }
+
+    // 0 until the handshake is done
+    public long nanosSinceHandshake() {
+        return handshakeComplete ? System.nanoTime() - completedAt : 0;
+    }
+
+    private void completeHandshake() {
+        completedAt = System.nanoTime();
+        handshakeComplete = true;
+    }
+
+    public SSLSession session() {
+        return engine.getSession();
+    }
+
+    // Blocking channels only: run the handshake to completion
+    public void handshake() throws IOException {
+        while (!handshakeComplete) {
+            if (!step()) throw new EOFException("Connection closed during TLS handshake");
+        }
+    }
+
+    // Plaintext into dst; -1 at end of stream. On a non-blocking channel 0 means nothing more can be
+    // done until the socket is readable, pending output has been flushed or delegated tasks finish.
+    public int read(ByteBuffer dst) throws IOException {
+        while (!appIn.hasRemaining()) {
+            if (runningTasks) return 0;
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!flush()) return 0;
+            } else {
+                int progress = unwrap();
+                if (progress <= 0) return progress;
+            }
+        }
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        dst.put(appIn.slice(appIn.position(), n));
+        appIn.position(appIn.position() + n);
+        return n;
+    }
+
+    // One handshake step for the blocking handshake; false at end of stream
+    private boolean step() throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+            return true;
+        }
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            flush();
+            return true;
+        }
+        return unwrap() >= 0;
+    }
+
+    // True when read() may return more without the socket becoming readable again
+    public boolean hasBufferedInput() {
+        return appIn.hasRemaining() || netIn.position() > 0;
+    }
+
+    // 1 on progress, 0 when more ciphertext is needed and none is available, -1 at end of stream
+    private int unwrap() throws IOException {
+        SSLEngineResult result;
+        netIn.flip();
+        appIn.compact();
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) completeHandshake();
+        switch (result.getStatus()) {
+            case OK:
+                return 1;
+            case CLOSED:
+                return -1;
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return 1;
+            default:
+                // BUFFER_UNDERFLOW: the next record is incomplete
+                if (!netIn.hasRemaining()) netIn = enlarge(netIn.flip(), engine.getSession().getPacketBufferSize()).compact();
+                int n = channel.read(netIn);
+                if (n < 0) {
+                    closeInboundQuietly();
+                    return -1;
+                }
+                return n == 0 ? 0 : 1;
+        }
+    }
+
+    private void runTasks() {
+        if (taskExecutor == null) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) task.run();
+            return;
+        }
+        runningTasks = true;
+        taskExecutor.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) task.run();
+            runningTasks = false;
+            onTasksDone.run();
+        });
+    }
+
+    // Encrypt as much of src as the socket takes right now; returns the plaintext bytes consumed.
+    // Only after the handshake.
+    public int write(ByteBuffer src) throws IOException {
+        if (!handshakeComplete) return 0;
+        synchronized (writeLock) {
+            int consumed = 0;
+            while (src.hasRemaining() && flushLocked()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("TLS session closed");
+                consumed += result.bytesConsumed();
+                // Renegotiation in progress: the peer has to answer before any more data can go out
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) break;
+            }
+            flushLocked();
+            return consumed;
+        }
+    }
+
+    // Write pending ciphertext, wrapping more handshake records while the engine has them. True once
+    // nothing is left to write.
+    public boolean flush() throws IOException {
+        synchronized (writeLock) {
+            while (flushLocked()) {
+                if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) return true;
+                if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.CLOSED) return true;
+            }
+            return false;
+        }
+    }
+
+    public boolean hasPendingOutput() {
+        synchronized (writeLock) {
+            return netOut.hasRemaining();
+        }
+    }
+
+    // True when the engine can move on without hearing from the peer
+    public boolean canProgress() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return !runningTasks && (status == SSLEngineResult.HandshakeStatus.NEED_TASK
+                || status == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+    }
+
+    // Caller holds writeLock and netOut is empty
+    private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+        while (true) {
+            SSLEngineResult result;
+            netOut.compact();
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) completeHandshake();
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) return result;
+            netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    private boolean flushLocked() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) return false;
+        }
+        return true;
+    }
+
+    // Send close_notify if the socket takes it right away; the channel is closed by the caller
+    public void close() {
+        engine.closeOutbound();
+        try {
+            synchronized (writeLock) {
+                if (flushLocked()) {
+                    wrap(EMPTY);
+                    flushLocked();
+                }
+            }
+        } catch (IOException e) {
+            // Ignore cleanup errors
+        }
+    }
+
+    private void closeInboundQuietly() {
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // Peer closed without close_notify; nothing more will arrive either way
+        }
+    }
+
+    // A buffer in read mode with at least `needed` bytes of room after its contents
+    private static ByteBuffer enlarge(ByteBuffer buffer, int needed) {
+        ByteBuffer larger = ByteBuffer.allocate(buffer.remaining() + Math.max(needed, buffer.capacity()));
+        return larger.put(buffer).flip();
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket kept as a single atomic long, in the GCRA form: the state is the instant at which the
+// bucket will be full again. Taking a token moves that instant one refill interval later, and a take
+// that would move it more than a full bucket's worth of time past now is refused. Lock-free and
+// allocation-free, so any number of threads may share a bucket; it starts full.
+public class TokenBucket {
+    // Time to earn one token, and the whole capacity expressed as time
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double tokensPerSecond, int capacity) {
+        this.intervalNanos = Math.max(1, (long) (1e9 / tokensPerSecond));
+        this.capacityNanos = intervalNanos * Math.max(1, capacity);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    // 0 when a token was taken, otherwise the nanoseconds until one will be (and nothing is taken)
+    public long tryTake(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - nowNanos > 0 ? current : nowNanos) + intervalNanos;
+            long wait = next - nowNanos - capacityNanos;
+            if (wait > 0) return wait;
+            if (fullAt.compareAndSet(current, next)) return 0;
+        }
+    }
+
+    // Return a token taken by tryTake that went unused
+    public void giveBack() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+
+    // Nanoseconds until the bucket has refilled completely; 0 when it is full
+    public long untilFull(long nowNanos) {
+        return Math.max(0, fullAt.get() - nowNanos);
+    }
+}
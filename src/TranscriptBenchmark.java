@@ -0,0 +1,86 @@
+import javax.swing.*;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+// Finds the message rate at which the chat transcript starts to lag the EDT, comparing the old
+// one-invokeLater-per-message JTextArea append with ChatTranscript batching into a TranscriptView.
+// Works headless.
+// Run: java -Djava.awt.headless=true TranscriptBenchmark [secondsPerStep]
+public class TranscriptBenchmark {
+    private static final int[] RATES = {500, 1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000};
+    private static final long LAG_BUDGET_MS = 100;
+    private static final long PROBE_INTERVAL_MS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        // Warm up Swing and the JIT so the first measured step isn't paying for class loading
+        run("legacy", 1_000, 1);
+        run("batched", 1_000, 1);
+
+        System.out.printf("%-8s %10s %14s %14s%n", "mode", "msgs/s", "p99 lag (ms)", "max lag (ms)");
+        for (String mode : new String[]{"legacy", "batched"}) {
+            int sustained = 0;
+            for (int rate : RATES) {
+                long[] lags = run(mode, rate, seconds);
+                long p99 = lags[(int) (lags.length * 0.99)];
+                long max = lags[lags.length - 1];
+                System.out.printf("%-8s %10d %14d %14d%n", mode, rate, p99, max);
+                if (p99 > LAG_BUDGET_MS) break;
+                sustained = rate;
+            }
+            System.out.printf("%-8s sustains %d msgs/s within %d ms EDT lag%n%n", mode, sustained, LAG_BUDGET_MS);
+        }
+        System.exit(0);
+    }
+
+    // Feed `rate` messages per second for `seconds` while probing how long the EDT takes to run a task
+    private static long[] run(String mode, int rate, int seconds) throws Exception {
+        JTextArea area = new JTextArea();
+        ChatTranscript transcript = new ChatTranscript(new TranscriptView(new TranscriptModel()));
+        boolean batched = mode.equals("batched");
+
+        int probes = (int) (seconds * 1000 / PROBE_INTERVAL_MS);
+        long[] lags = new long[probes];
+        Thread producer = new Thread(() -> {
+            long interval = 1_000_000_000L / rate;
+            long next = System.nanoTime();
+            long end = next + seconds * 1_000_000_000L;
+            int i = 0;
+            while (next < end) {
+                String msg = "message number " + i++ + " with some ordinary chat text in it";
+                if (batched) {
+                    transcript.append(msg, "CLIENT");
+                } else {
+                    legacyAppend(area, msg, "CLIENT");
+                }
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+            }
+        }, "Producer");
+        producer.start();
+
+        for (int i = 0; i < probes; i++) {
+            long posted = System.nanoTime();
+            int slot = i;
+            SwingUtilities.invokeLater(() -> lags[slot] = (System.nanoTime() - posted) / 1_000_000L);
+            Thread.sleep(PROBE_INTERVAL_MS);
+        }
+        producer.join();
+        // Let the backlog drain so probes that never ran get their real lag
+        SwingUtilities.invokeAndWait(() -> { });
+        Arrays.sort(lags);
+        return lags;
+    }
+
+    // The pre-ChatTranscript appendToChat body
+    private static void legacyAppend(JTextArea chatArea, String message, String type) {
+        SwingUtilities.invokeLater(() -> {
+            String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+            chatArea.append(String.format("[%s] %s: %s%n", timestamp, type, message));
+            chatArea.setCaretPosition(chatArea.getDocument().getLength());
+        });
+    }
+}
@@ -0,0 +1,96 @@
+import javax.swing.*;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// List model over the whole transcript that keeps only the newest `capacity` rows on the heap.
+// Older rows are spilled to a TranscriptStore in order and paged back in, a page at a time,
+// when the view scrolls to them. Only touched on the EDT.
+public class TranscriptModel extends AbstractListModel<String> {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.transcript.capacity", 10_000);
+    private static final int CACHED_PAGES = 8;
+    private static final String UNAVAILABLE = "(history unavailable)";
+
+    private final String[] ring;
+    private int head;
+    private int ringSize;
+    private int total;
+
+    private TranscriptStore store;
+    private boolean storeFailed;
+    private final Map<Integer, String[]> pageCache = new LinkedHashMap<>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    public TranscriptModel() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TranscriptModel(int capacity) {
+        this.ring = new String[Math.max(1, capacity)];
+    }
+
+    // Appends a batch and fires a single interval event for it
+    public void appendAll(List<String> rows) {
+        if (rows.isEmpty()) return;
+        int first = total;
+        for (String row : rows) {
+            if (ringSize == ring.length) {
+                spill(ring[head]);
+                ring[head] = row;
+                head = (head + 1) % ring.length;
+            } else {
+                ring[(head + ringSize) % ring.length] = row;
+                ringSize++;
+            }
+            total++;
+        }
+        fireIntervalAdded(this, first, total - 1);
+    }
+
+    @Override
+    public int getSize() {
+        return total;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        int firstInRing = total - ringSize;
+        if (index >= firstInRing) {
+            return ring[(head + index - firstInRing) % ring.length];
+        }
+
+        int page = index / TranscriptStore.PAGE_SIZE;
+        String[] rows = pageCache.get(page);
+        if (rows == null) {
+            rows = loadPage(page);
+            // A partial last page would go stale as more rows spill, so only cache full ones
+            if (rows.length == TranscriptStore.PAGE_SIZE) pageCache.put(page, rows);
+        }
+        int offset = index % TranscriptStore.PAGE_SIZE;
+        return offset < rows.length ? rows[offset] : UNAVAILABLE;
+    }
+
+    private void spill(String row) {
+        if (storeFailed) return;
+        try {
+            if (store == null) store = new TranscriptStore();
+            store.append(row);
+        } catch (IOException e) {
+            storeFailed = true;
+        }
+    }
+
+    private String[] loadPage(int page) {
+        if (store == null || storeFailed) return new String[0];
+        try {
+            return store.readPage(page);
+        } catch (IOException e) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Append-only spill file for transcript rows that fell out of the in-memory window. Rows are
+// stored as UTF-8 lines and located through a sparse index holding the file offset of every
+// PAGE_SIZE-th row, so the heap cost is one long per page rather than one String per row.
+// Only touched on the EDT.
+public class TranscriptStore implements Closeable {
+    public static final int PAGE_SIZE = 256;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private long[] pageOffsets = new long[64];
+    private int rowCount;
+    private long fileLength;
+
+    public TranscriptStore() throws IOException {
+        this.file = Files.createTempFile("chat-transcript", ".log");
+        this.file.toFile().deleteOnExit();
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    public void append(String row) throws IOException {
+        if (rowCount % PAGE_SIZE == 0) {
+            int page = rowCount / PAGE_SIZE;
+            if (page == pageOffsets.length) pageOffsets = Arrays.copyOf(pageOffsets, page * 2);
+            pageOffsets[page] = fileLength + writeBuffer.position();
+        }
+
+        byte[] bytes = (row + "\n").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > writeBuffer.remaining()) flush();
+        if (bytes.length > writeBuffer.capacity()) {
+            fileLength += channel.write(ByteBuffer.wrap(bytes), fileLength);
+        } else {
+            writeBuffer.put(bytes);
+        }
+        rowCount++;
+    }
+
+    // Rows [page * PAGE_SIZE, page * PAGE_SIZE + PAGE_SIZE), fewer for the last, partial page
+    public String[] readPage(int page) throws IOException {
+        flush();
+        long start = pageOffsets[page];
+        long end = (page + 1) * PAGE_SIZE < rowCount ? pageOffsets[page + 1] : fileLength;
+
+        ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, start + bytes.position()) < 0) break;
+        }
+
+        List<String> rows = new ArrayList<>(PAGE_SIZE);
+        byte[] data = bytes.array();
+        int lineStart = 0;
+        for (int i = 0; i < bytes.position(); i++) {
+            if (data[i] == '\n') {
+                rows.add(new String(data, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+        return rows.toArray(new String[0]);
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            fileLength += channel.write(writeBuffer, fileLength);
+        }
+        writeBuffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,37 @@
+import javax.swing.*;
+import java.awt.*;
+
+// JList over a TranscriptModel. Fixed cell height and width-tracking mean Swing never measures
+// every row: layout and painting only touch the rows in the viewport.
+public class TranscriptView extends JList<String> {
+
+    public TranscriptView(TranscriptModel model) {
+        super(model);
+        setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        setFixedCellHeight(getFontMetrics(getFont()).getHeight() + 2);
+        setFixedCellWidth(1);
+        setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+    }
+
+    @Override
+    public TranscriptModel getModel() {
+        return (TranscriptModel) super.getModel();
+    }
+
+    // Rows are clipped to the viewport instead of widening the list
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    // True when the newest row is visible, i.e. new rows should keep the view pinned to the bottom
+    public boolean isScrolledToEnd() {
+        int last = getLastVisibleIndex();
+        return last < 0 || last >= getModel().getSize() - 1;
+    }
+
+    public void scrollToEnd() {
+        int size = getModel().getSize();
+        if (size > 0) ensureIndexIsVisible(size - 1);
+    }
+}
@@ -0,0 +1,199 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Logged-in users: a case-insensitive name -> connection map, so a direct message is one lookup
+// rather than a scan, plus presence. Presence changes are coalesced per user (only the latest state
+// survives) and pushed to every logged-in connection as one batch per interval, so a burst of logins
+// costs each peer a single message instead of one per change.
+//
+// Each login gets a random session token. A client that reconnects while its old connection is still
+// registered (the server has not yet noticed it die) presents the token and takes the name over: the
+// old connection is closed and the new one inherits its presence, rooms and message-id window.
+public class UserRegistry {
+    public static final int MAX_NAME_LENGTH = 32;
+    public static final long PRESENCE_BATCH_MS = Long.getLong("chat.presence.batchMs", 250);
+
+    public enum Presence {
+        ONLINE, AWAY, OFFLINE;
+
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final ChatServerEngine engine;
+    private final ConcurrentHashMap<String, ChatConnection> users = new ConcurrentHashMap<>();
+    // Logged-in connections; they are the ones told about presence changes
+    private final Broadcaster loggedIn = new Broadcaster();
+    private final ConcurrentHashMap<String, Change> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Per-user message budgets. A bucket outlives the login until it has refilled, so logging out
+    // and back in does not reset a flooder's budget.
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private record Change(String name, Presence presence) {
+    }
+
+    UserRegistry(ChatServerEngine engine) {
+        this.engine = engine;
+    }
+
+    // Letters, digits, '-' and '_'
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // Returns null on success, otherwise why the name was refused. token is the session token of an
+    // earlier login under the same name, or null.
+    String login(ChatConnection connection, String name, String token) {
+        if (connection.getUsername() != null) return "Already logged in as " + connection.getUsername();
+        if (!isValidName(name)) return "Invalid username: " + name;
+        if (engine.isLoggedInElsewhere(name)) return "Username " + name + " is taken";
+        ChatConnection previous = users.putIfAbsent(key(name), connection);
+        if (previous != null && !(sameSession(previous, token) && users.replace(key(name), previous, connection))) {
+            return "Username " + name + " is taken";
+        }
+        connection.setUsername(name, previous != null ? previous.getPresence() : Presence.ONLINE);
+        connection.sessionToken = nextToken();
+        RateLimitPolicy limits = engine.rateLimitPolicy();
+        if (limits.userRate() > 0) connection.setUserBucket(buckets.computeIfAbsent(key(name), k -> limits.userBucket()));
+        // Lost a race with the connection closing: logout may already have run
+        if (!connection.isOpen()) {
+            users.remove(key(name), connection);
+            if (previous != null) previous.close();
+            return "Connection closed";
+        }
+        loggedIn.join(connection);
+        if (previous != null) {
+            loggedIn.leave(previous);
+            engine.takeOver(previous, connection);
+        } else {
+            changed(name, Presence.ONLINE);
+            engine.clusterChanged();
+        }
+        return null;
+    }
+
+    private String nextToken() {
+        byte[] token = new byte[16];
+        random.nextBytes(token);
+        return HexFormat.of().formatHex(token);
+    }
+
+    private static boolean sameSession(ChatConnection previous, String token) {
+        String expected = previous.sessionToken;
+        return token != null && expected != null && MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    void logout(ChatConnection connection) {
+        String name = connection.getUsername();
+        if (name == null || !users.remove(key(name), connection)) return;
+        loggedIn.leave(connection);
+        changed(name, Presence.OFFLINE);
+        engine.clusterChanged();
+        TokenBucket bucket = buckets.get(key(name));
+        if (bucket != null) engine.schedule(() -> forgetBucket(key(name)), bucket.untilFull(System.nanoTime()) / 1_000_000);
+    }
+
+    // Drop a logged-out user's bucket once it is full again; a new login keeps using it
+    private void forgetBucket(String key) {
+        long now = System.nanoTime();
+        buckets.computeIfPresent(key, (k, bucket) -> users.containsKey(k) || bucket.untilFull(now) > 0 ? bucket : null);
+    }
+
+    // Online or away; false if the connection is not logged in or already in that state
+    public boolean setPresence(ChatConnection connection, Presence presence) {
+        String name = connection.getUsername();
+        if (name == null || presence == Presence.OFFLINE || connection.getPresence() == presence) return false;
+        connection.setUsername(name, presence);
+        changed(name, presence);
+        return true;
+    }
+
+    // O(1); null when no one by that name is online
+    public ChatConnection find(String name) {
+        return users.get(key(name));
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    // Lower-cased names of everyone logged in here
+    public Set<String> names() {
+        return Collections.unmodifiableSet(users.keySet());
+    }
+
+    // Everyone online, in the connection's protocol: a ROSTER frame or a single text line
+    void sendRoster(ChatConnection connection) {
+        List<Change> everyone = new ArrayList<>();
+        for (ChatConnection user : users.values()) {
+            String name = user.getUsername();
+            if (name != null) everyone.add(new Change(name, user.getPresence()));
+        }
+        if (connection.isBinary()) {
+            connection.enqueue(FrameCodec.encodeText(ChatFrame.PRESENCE, ChatFrame.ROSTER, 0, payload(everyone)));
+        } else {
+            StringBuilder line = new StringBuilder("Online:");
+            for (Change user : everyone) {
+                line.append(' ').append(user.name());
+                if (user.presence() == Presence.AWAY) line.append(" (away)");
+            }
+            connection.send(line.toString());
+        }
+    }
+
+    private void changed(String name, Presence presence) {
+        pending.put(key(name), new Change(name, presence));
+        if (flushScheduled.compareAndSet(false, true)) engine.schedule(this::flushPresence, PRESENCE_BATCH_MS);
+    }
+
+    // One PRESENCE frame and one text line per batch, encoded once and shared by every recipient
+    private void flushPresence() {
+        flushScheduled.set(false);
+        List<Change> batch = new ArrayList<>(pending.size());
+        for (Map.Entry<String, Change> entry : pending.entrySet()) {
+            if (pending.remove(entry.getKey(), entry.getValue())) batch.add(entry.getValue());
+        }
+        if (batch.isEmpty()) return;
+
+        StringBuilder line = new StringBuilder("Presence:");
+        for (Change change : batch) {
+            line.append(' ').append(change.name()).append(" is ").append(change.presence().label()).append(',');
+        }
+        line.setLength(line.length() - 1);
+        ByteBuffer frame = FrameCodec.encodeText(ChatFrame.PRESENCE, (byte) 0, 0, payload(batch)).asReadOnlyBuffer();
+        loggedIn.publish(line.toString(), frame, null);
+    }
+
+    private static String payload(List<Change> changes) {
+        StringBuilder payload = new StringBuilder();
+        for (Change change : changes) {
+            if (!payload.isEmpty()) payload.append('\n');
+            payload.append(change.name()).append('=').append(change.presence().label());
+        }
+        return payload.toString();
+    }
+}
@@ -1,24 +1,36 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 public class clientSite {
 
+    private final String host;
+    private final int port;
     private Socket socket;
     private BufferedReader bufferedReader;
-    private PrintWriter printWriter;
+    private CoalescingWriter printWriter;
+
+    public clientSite() {
+        this("localhost", 7777);
+    }
+
+    public clientSite(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
 
     // Start the client
     public void startClient() {
         try {
             System.out.println("Connecting to server...");
-            socket = new Socket("localhost", 7777);
+            socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
             System.out.println("Connected to server: " + socket);
 
             bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            printWriter = new PrintWriter(socket.getOutputStream(), true);
+            printWriter = new CoalescingWriter(socket.getChannel(), FlushPolicy.fromProperties());
 
             startReading();
             startWriting();
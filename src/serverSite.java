@@ -1,26 +1,72 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
 public class serverSite {
 
+    // How client connections are served; picked with -Dchat.console.mode=single|platform|virtual
+    public enum Mode {
+        SINGLE,   // one client, one reader and one writer platform thread
+        PLATFORM, // accept loop, one platform reader thread per client
+        VIRTUAL;  // accept loop, one virtual reader thread per client
+
+        public static Mode fromProperty() {
+            return valueOf(System.getProperty("chat.console.mode", "single").trim().toUpperCase());
+        }
+    }
+
+    public static final int DEFAULT_PORT = 7777;
+
+    private final int port;
+    private final Mode mode;
+    // Echo each client line back to its sender; used by ServerModeLoadTest
+    private final boolean echo = Boolean.getBoolean("chat.console.echo");
+    private final FlushPolicy flushPolicy = FlushPolicy.fromProperties();
+
     private ServerSocket serverSocket;
     private Socket socket;
     private BufferedReader bufferedReader;
-    private PrintWriter printWriter;
+    private CoalescingWriter printWriter;
+    private final Set<CoalescingWriter> clientWriters = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    public serverSite() {
+        this(DEFAULT_PORT, Mode.fromProperty());
+    }
+
+    public serverSite(int port, Mode mode) {
+        this.port = port;
+        this.mode = mode;
+    }
 
     // Start the server
     public void startServer() {
         try {
-            serverSocket = new ServerSocket(7777);
+            // Opened through a channel so accepted sockets have one for CoalescingWriter's gathering writes
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
+            running = true;
             System.out.println("Server is ready to accept connection...");
+
+            if (mode != Mode.SINGLE) {
+                System.out.println("Accepting clients (" + mode.name().toLowerCase() + " threads)...");
+                startWriting();
+                acceptClients();
+                return;
+            }
+
             System.out.println("Waiting for client...");
 
             socket = serverSocket.accept();
             System.out.println("Client connected: " + socket);
 
             bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            printWriter = new PrintWriter(socket.getOutputStream(), true);
+            printWriter = new CoalescingWriter(socket.getChannel(), flushPolicy);
 
             startReading();
             startWriting();
@@ -30,6 +76,47 @@ public class serverSite {
         }
     }
 
+    // Accept loop for the multi-client modes; runs until the server socket is closed
+    private void acceptClients() {
+        ThreadFactory readers = mode == Mode.VIRTUAL
+                ? Thread.ofVirtual().name("client-reader-", 1).factory()
+                : Thread.ofPlatform().name("client-reader-", 1).factory();
+
+        while (running) {
+            try {
+                Socket client = serverSocket.accept();
+                readers.newThread(() -> serveClient(client)).start();
+            } catch (IOException e) {
+                if (running) System.out.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Blocking reader for one client in the multi-client modes
+    private void serveClient(Socket client) {
+        CoalescingWriter writer = null;
+        try (client;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()))) {
+            writer = new CoalescingWriter(client.getChannel(), flushPolicy);
+            clientWriters.add(writer);
+
+            String msg;
+            while ((msg = reader.readLine()) != null && !msg.equalsIgnoreCase("exit")) {
+                if (echo) {
+                    // Echoes of a burst share a write: flush only once the lines already read are used up
+                    writer.append(msg);
+                    if (!reader.ready()) writer.flush();
+                } else {
+                    System.out.println("Client " + client.getPort() + ": " + msg);
+                }
+            }
+        } catch (IOException e) {
+            // Client dropped; fall through to cleanup
+        } finally {
+            if (writer != null) clientWriters.remove(writer);
+        }
+    }
+
     // Thread for reading messages from client
     private void startReading() {
         Runnable readerTask = () -> {
@@ -51,14 +138,19 @@ public class serverSite {
         new Thread(readerTask).start();
     }
 
-    // Thread for writing messages to client
+    // Thread for writing messages to client (to every client in the multi-client modes)
     private void startWriting() {
         Runnable writerTask = () -> {
             System.out.println("Writer started...");
             try (BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in))) {
                 while (true) {
                     String content = consoleReader.readLine();
-                    printWriter.println(content);
+                    if (content == null) break;
+                    if (mode == Mode.SINGLE) {
+                        printWriter.println(content);
+                    } else {
+                        for (CoalescingWriter writer : clientWriters) writer.println(content);
+                    }
                     if (content.equalsIgnoreCase("exit")) {
                         closeResources();
                         break;
@@ -73,9 +165,11 @@ public class serverSite {
 
     // Close all resources properly
     private void closeResources() {
+        running = false;
         try {
             if (bufferedReader != null) bufferedReader.close();
             if (printWriter != null) printWriter.close();
+            for (CoalescingWriter writer : clientWriters) writer.close();
             if (socket != null) socket.close();
             if (serverSocket != null) serverSocket.close();
             System.out.println("Server closed.");
@@ -84,9 +178,10 @@ public class serverSite {
         }
     }
 
-//    // Entry point
-//    public static void main(String[] args) {
-//        System.out.println("Starting server...");
-//        new serverSite().startServer();
-//    }
-}
\ No newline at end of file
+    // Entry point, used on its own by ServerModeLoadTest
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        System.out.println("Starting server...");
+        new serverSite(port, Mode.fromProperty()).startServer();
+    }
+}